@@ -0,0 +1,55 @@
+package com.example.android.notepad;
+
+import java.util.Arrays;
+
+/**
+ * Latency samples of one operation in a benchmark, kept whole so that percentiles are exact.
+ * Samples can be recorded from several threads.
+ */
+class LatencySamples {
+
+    private long[] mNanos = new long[256];
+    private int mCount;
+    private long mTotalNanos;
+
+    /**
+     * Records one sample.
+     */
+    synchronized void record(long nanos) {
+        if (mCount == mNanos.length) {
+            mNanos = Arrays.copyOf(mNanos, mCount * 2);
+        }
+        mNanos[mCount++] = nanos;
+        mTotalNanos += nanos;
+    }
+
+    synchronized int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the percentile of the samples, in microseconds: at least percentile% of the
+     * samples took no longer.
+     */
+    synchronized long getPercentileMicros(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(mNanos, mCount);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(mCount * percentile / 100);
+        return sorted[Math.max(rank - 1, 0)] / 1000;
+    }
+
+    /**
+     * Describes the samples: their number, the operations per second that one thread would
+     * complete back to back, and the 50th, 95th and 99th percentiles and the maximum.
+     */
+    @Override
+    public synchronized String toString() {
+        return "n=" + mCount + ", " + (mCount * 1000000000L / Math.max(mTotalNanos, 1))
+                + " ops/sec, p50=" + getPercentileMicros(50) + "us, p95="
+                + getPercentileMicros(95) + "us, p99=" + getPercentileMicros(99) + "us, max="
+                + getPercentileMicros(100) + "us";
+    }
+}
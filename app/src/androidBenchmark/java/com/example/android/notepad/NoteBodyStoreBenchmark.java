@@ -0,0 +1,114 @@
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+/**
+ * Measures the cost of small edits to a large note: each save of a note of about a megabyte
+ * changes a few characters, as an autosave while typing does. With the body in the notes table
+ * every save rewrites the whole body; with the body store it appends a delta, plus the
+ * occasional compaction. The bytes written and the time taken are written to the log under the
+ * tag "NoteBodyStoreBenchmark".
+ */
+public class NoteBodyStoreBenchmark extends ProviderTestCase2<NotePadProvider> {
+
+    private static final String TAG = "NoteBodyStoreBenchmark";
+
+    // The length of the note, in characters
+    private static final int BODY_LENGTH = 1024 * 1024;
+
+    // The number of saves, each after a small edit
+    private static final int EDITS = 50;
+
+    private MockContentResolver mMockResolver;
+    private NoteBodyStore mBodyStore;
+
+    public NoteBodyStoreBenchmark() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockResolver = getMockContentResolver();
+        mBodyStore = getProvider().getBodyStoreForTest();
+    }
+
+    /*
+     * Saves the same edits with the body in the notes table and with the body store, and checks
+     * that the store writes at least ten times fewer bytes.
+     */
+    public void testWriteAmplification() {
+        String body = createBody();
+
+        // Every save writes the whole body.
+        mBodyStore.setLargeBodyLength(Integer.MAX_VALUE);
+        Uri uri = insertNote(body);
+        long plainBytes = 0;
+        long start = SystemClock.elapsedRealtime();
+        StringBuilder text = new StringBuilder(body);
+        for (int i = 0; i < EDITS; i++) {
+            edit(text, i);
+            updateNote(uri, text.toString());
+            plainBytes += Utf8.length(text);
+        }
+        long plainMillis = SystemClock.elapsedRealtime() - start;
+        report("notes table", plainBytes, plainMillis);
+
+        // Saves append deltas; the compactions they cause are counted too.
+        mBodyStore.setLargeBodyLength(NoteBodyStore.DEFAULT_LARGE_BODY_LENGTH);
+        uri = insertNote(body);
+        long storedBefore = mBodyStore.getStoredBytes();
+        start = SystemClock.elapsedRealtime();
+        text = new StringBuilder(body);
+        for (int i = 0; i < EDITS; i++) {
+            edit(text, i);
+            updateNote(uri, text.toString());
+        }
+        mBodyStore.compactPending();
+        long deltaMillis = SystemClock.elapsedRealtime() - start;
+        long deltaBytes = mBodyStore.getStoredBytes() - storedBefore;
+        report("body store", deltaBytes, deltaMillis);
+        Log.i(TAG, mBodyStore.describeMetrics());
+
+        assertTrue("Body store wrote " + deltaBytes + " bytes against " + plainBytes,
+                deltaBytes * 10 <= plainBytes);
+    }
+
+    // Returns a body of BODY_LENGTH characters, mixing Chinese and ASCII lines.
+    private static String createBody() {
+        StringBuilder body = new StringBuilder(BODY_LENGTH);
+        for (int i = 0; body.length() < BODY_LENGTH; i++) {
+            body.append("第").append(i).append("行 的笔记内容 line ").append(i).append('\n');
+        }
+        body.setLength(BODY_LENGTH);
+        return body.toString();
+    }
+
+    // Types a few characters somewhere in the body.
+    private static void edit(StringBuilder text, int i) {
+        text.insert((int) ((i * 7919L) % text.length()), "编辑" + i);
+    }
+
+    private Uri insertNote(String body) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Large");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body);
+        return mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+    }
+
+    private void updateNote(Uri uri, String body) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body);
+        assertEquals(1, mMockResolver.update(uri, values, null, null));
+    }
+
+    private static void report(String storage, long bytes, long millis) {
+        Log.i(TAG, storage + ": " + EDITS + " saves wrote " + bytes + " bytes in " + millis
+                + " ms (" + (millis / (double) EDITS) + " ms/save)");
+    }
+}
@@ -0,0 +1,281 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import java.util.Random;
+
+/**
+ * Fills a notes provider with a synthetic dataset at the scale the app runs at: many notes,
+ * many categories, a few bodies of several megabytes, and todos with priorities and due dates.
+ * The same seed and settings always produce the same dataset. The notes are inserted through
+ * the provider, with bulkInsert() in batches, so they go through the same code as real notes.
+ *
+ * Body lengths follow a log-normal distribution around a median, with a small share of huge
+ * bodies. Bodies are Chinese sentences, mixed with a few English words, in which the words of
+ * {@link #SEARCH_TERMS} turn up now and then so that searches find something.
+ *
+ * The settings are changed with the setters before {@link #generate(ContentResolver)}; after
+ * that the generator is only read, and {@link #createNote(Random, long[])} can be called from
+ * several threads.
+ */
+class NoteDatasetGenerator {
+
+    /**
+     * The words that bodies contain now and then, for searches to look for.
+     */
+    static final String[] SEARCH_TERMS = {
+        "会议", "记录", "项目", "计划", "旅行", "读书", "购物", "想法", "meeting", "draft"
+    };
+
+    // Common characters that the bodies are made of
+    private static final String HANZI =
+            "的一是在不了有和人这中大为上个国我以要他时来用们生到作地于出就分对成会可主发年动同工也"
+            + "能下过子说产种面而方后多定行学法所民得经十三之进着等部度家电力里如水化高自二理起小物现"
+            + "实加量都两体制机当使点从业本去把性好应开它合还因由其些然前外天政四日那社义事平形相全表间"
+            + "样与关各重新线内数正心反你明看原又么利比或但质气第向道命此变条只没结解问意建月公无系军很";
+
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    // The number of notes inserted by each bulkInsert()
+    private static final int INSERT_BATCH = 2000;
+
+    private long mSeed = 42;
+    private int mNoteCount = 10000;
+    private int mCategoryCount = 100;
+    private int mMedianBodyLength = 250;
+    private double mBodyLengthSigma = 1.0;
+    private int mMaxBodyLength = 20000;
+    private double mHugeBodyRatio = 0;
+    private int mHugeBodyLength = 2 * 1024 * 1024;
+    private double mTodoRatio = 0.3;
+    private double mCompletedRatio = 0.4;
+    private double mDueDateRatio = 0.7;
+    private int[] mPriorityWeights = { 60, 30, 10 };
+    private long mNow = 1704067200000L; // 2024-01-01 00:00 UTC
+    private int mHistoryDays = 365;
+
+    /**
+     * The dataset that {@link #generate(ContentResolver)} inserted.
+     */
+    static final class Dataset {
+        final long[] noteIds;
+        final long[] hugeNoteIds;
+        final long[] categoryIds;
+        final long totalBodyLength;
+
+        Dataset(long[] noteIds, long[] hugeNoteIds, long[] categoryIds, long totalBodyLength) {
+            this.noteIds = noteIds;
+            this.hugeNoteIds = hugeNoteIds;
+            this.categoryIds = categoryIds;
+            this.totalBodyLength = totalBodyLength;
+        }
+
+        @Override
+        public String toString() {
+            return noteIds.length + " notes (" + hugeNoteIds.length + " huge), "
+                    + categoryIds.length + " categories, " + totalBodyLength + " body chars";
+        }
+    }
+
+    NoteDatasetGenerator setSeed(long seed) {
+        mSeed = seed;
+        return this;
+    }
+
+    NoteDatasetGenerator setNoteCount(int noteCount) {
+        mNoteCount = noteCount;
+        return this;
+    }
+
+    /**
+     * Sets the number of categories the notes are spread over, besides the default category.
+     */
+    NoteDatasetGenerator setCategoryCount(int categoryCount) {
+        mCategoryCount = categoryCount;
+        return this;
+    }
+
+    /**
+     * Sets the distribution of body lengths, in characters: log-normal with the given median
+     * and sigma (of the logarithm), cut off at maxLength.
+     */
+    NoteDatasetGenerator setBodyLength(int median, double sigma, int maxLength) {
+        mMedianBodyLength = median;
+        mBodyLengthSigma = sigma;
+        mMaxBodyLength = maxLength;
+        return this;
+    }
+
+    /**
+     * Sets the share of notes, between 0 and 1, whose body is huge, and the length of such a
+     * body in characters.
+     */
+    NoteDatasetGenerator setHugeBodies(double ratio, int length) {
+        mHugeBodyRatio = ratio;
+        mHugeBodyLength = length;
+        return this;
+    }
+
+    /**
+     * Sets the share of notes that are todos, and the shares of todos that are completed and
+     * that have a due date.
+     */
+    NoteDatasetGenerator setTodos(double todoRatio, double completedRatio, double dueDateRatio) {
+        mTodoRatio = todoRatio;
+        mCompletedRatio = completedRatio;
+        mDueDateRatio = dueDateRatio;
+        return this;
+    }
+
+    /**
+     * Sets the relative weights of the low, medium and high priorities.
+     */
+    NoteDatasetGenerator setPriorityWeights(int low, int medium, int high) {
+        mPriorityWeights = new int[] { low, medium, high };
+        return this;
+    }
+
+    /**
+     * Sets the time the dataset is generated at. Notes were modified in the preceding
+     * historyDays days, and due dates fall within historyDays days either side.
+     */
+    NoteDatasetGenerator setNow(long now, int historyDays) {
+        mNow = now;
+        mHistoryDays = historyDays;
+        return this;
+    }
+
+    /**
+     * Inserts the categories and the notes through the resolver.
+     *
+     * @return the _ids of what was inserted
+     */
+    Dataset generate(ContentResolver resolver) {
+        Random random = new Random(mSeed);
+
+        long[] categoryIds = new long[mCategoryCount + 1];
+        categoryIds[0] = 1;
+        for (int i = 1; i <= mCategoryCount; i++) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Categories.COLUMN_NAME_CATEGORY_NAME, "分类 " + i);
+            values.put(NotePad.Categories.COLUMN_NAME_CATEGORY_COLOR, 0xFF000000 | random.nextInt());
+            categoryIds[i] = ContentUris.parseId(
+                    resolver.insert(NotePad.Categories.CONTENT_URI, values));
+        }
+
+        // Huge notes are inserted one at a time, so that no batch holds more than one.
+        long totalBodyLength = 0;
+        int hugeCount = (int) Math.round(mNoteCount * mHugeBodyRatio);
+        long[] hugeNoteIds = new long[hugeCount];
+        for (int i = 0; i < hugeCount; i++) {
+            ContentValues note = createNote(random, categoryIds, mHugeBodyLength);
+            totalBodyLength += note.getAsString(NotePad.Notes.COLUMN_NAME_NOTE).length();
+            hugeNoteIds[i] = ContentUris.parseId(resolver.insert(NotePad.Notes.CONTENT_URI, note));
+        }
+
+        ContentValues[] notes = new ContentValues[INSERT_BATCH];
+        for (int inserted = hugeCount; inserted < mNoteCount; ) {
+            int batch = Math.min(INSERT_BATCH, mNoteCount - inserted);
+            if (batch < notes.length) {
+                notes = new ContentValues[batch];
+            }
+            for (int i = 0; i < batch; i++) {
+                notes[i] = createNote(random, categoryIds, nextBodyLength(random));
+                totalBodyLength += notes[i].getAsString(NotePad.Notes.COLUMN_NAME_NOTE).length();
+            }
+            resolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes);
+            inserted += batch;
+        }
+
+        Cursor cursor = resolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes._ID }, null, null, null);
+        long[] noteIds = new long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            noteIds[i] = cursor.getLong(0);
+        }
+        cursor.close();
+        return new Dataset(noteIds, hugeNoteIds, categoryIds, totalBodyLength);
+    }
+
+    /**
+     * Returns a new note like those of the dataset, in one of the given categories, with a body
+     * from the usual distribution.
+     */
+    ContentValues createNote(Random random, long[] categoryIds) {
+        return createNote(random, categoryIds, nextBodyLength(random));
+    }
+
+    /**
+     * Returns a body from the usual distribution of lengths.
+     */
+    String createBody(Random random) {
+        return createBody(random, nextBodyLength(random));
+    }
+
+    private ContentValues createNote(Random random, long[] categoryIds, int bodyLength) {
+        String body = createBody(random, bodyLength);
+        long modified = mNow - (long) (random.nextDouble() * mHistoryDays * DAY_MILLIS);
+        long created = modified - (long) (random.nextDouble() * 30 * DAY_MILLIS);
+
+        ContentValues note = new ContentValues();
+        note.put(NotePad.Notes.COLUMN_NAME_TITLE, body.substring(0, Math.min(body.length(), 16)));
+        note.put(NotePad.Notes.COLUMN_NAME_NOTE, body);
+        note.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID,
+                categoryIds[random.nextInt(categoryIds.length)]);
+        note.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, created);
+        note.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, modified);
+        note.put(NotePad.Notes.COLUMN_NAME_PRIORITY, nextPriority(random));
+        if (random.nextDouble() < mTodoRatio) {
+            note.put(NotePad.Notes.COLUMN_NAME_IS_TODO, 1);
+            note.put(NotePad.Notes.COLUMN_NAME_IS_COMPLETED,
+                    random.nextDouble() < mCompletedRatio ? 1 : 0);
+            if (random.nextDouble() < mDueDateRatio) {
+                note.put(NotePad.Notes.COLUMN_NAME_DUE_DATE,
+                        mNow + (long) ((random.nextDouble() * 2 - 1) * mHistoryDays * DAY_MILLIS));
+            }
+        }
+        return note;
+    }
+
+    private int nextBodyLength(Random random) {
+        double length = mMedianBodyLength * Math.exp(mBodyLengthSigma * random.nextGaussian());
+        return (int) Math.max(1, Math.min(length, mMaxBodyLength));
+    }
+
+    private int nextPriority(Random random) {
+        int total = 0;
+        for (int weight : mPriorityWeights) {
+            total += weight;
+        }
+        int pick = random.nextInt(Math.max(total, 1));
+        for (int priority = 0; priority < mPriorityWeights.length; priority++) {
+            pick -= mPriorityWeights[priority];
+            if (pick < 0) {
+                return priority;
+            }
+        }
+        return NotePad.Notes.PRIORITY_LOW;
+    }
+
+    // Returns a body of about length characters: sentences of Chinese characters, with a
+    // search term now and then, and a line break every few sentences.
+    private static String createBody(Random random, int length) {
+        StringBuilder body = new StringBuilder(length + 40);
+        while (body.length() < length) {
+            int sentence = 8 + random.nextInt(20);
+            for (int i = 0; i < sentence; i++) {
+                if (random.nextInt(30) == 0) {
+                    body.append(SEARCH_TERMS[random.nextInt(SEARCH_TERMS.length)]);
+                } else {
+                    body.append(HANZI.charAt(random.nextInt(HANZI.length())));
+                }
+            }
+            body.append(random.nextInt(8) == 0 ? "。\n" : "，");
+        }
+        body.setLength(length);
+        return body.toString();
+    }
+}
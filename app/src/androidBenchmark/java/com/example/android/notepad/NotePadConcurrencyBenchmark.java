@@ -0,0 +1,163 @@
+package com.example.android.notepad;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how well the list's readers and an editor's writes proceed at the same time, with
+ * the rollback journal and with write-ahead logging. Reader threads page through the notes list
+ * while a writer thread saves notes, as NoteEditor.onPause() does. Throughput and the slowest
+ * read are written to the log under the tag "NotePadConcurrencyBenchmark".
+ */
+public class NotePadConcurrencyBenchmark extends ProviderTestCase2<NotePadProvider> {
+
+    private static final String TAG = "NotePadConcurrencyBenchmark";
+
+    // The number of notes in the database
+    private static final int NOTE_COUNT = 2000;
+
+    // The number of threads reading the list
+    private static final int READER_COUNT = 3;
+
+    // How long each workload runs
+    private static final long RUN_MILLIS = 5000;
+
+    // The page of the list that readers query
+    private static final Uri LIST_PAGE_URI = NotePad.Notes.CONTENT_URI.buildUpon()
+            .appendQueryParameter(NotePad.Notes.PAGE_SIZE_PARAMETER, "50")
+            .build();
+
+    private static final String[] LIST_PROJECTION = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_PREVIEW,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY_NAME
+    };
+
+    private MockContentResolver mMockResolver;
+    private long[] mNoteIds;
+
+    public NotePadConcurrencyBenchmark() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockResolver = getMockContentResolver();
+
+        ContentValues[] notes = new ContentValues[NOTE_COUNT];
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            notes[i] = new ContentValues();
+            notes[i].put(NotePad.Notes.COLUMN_NAME_TITLE, "Note " + i);
+            notes[i].put(NotePad.Notes.COLUMN_NAME_NOTE, "The body of note " + i);
+        }
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes);
+
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes._ID }, null, null, null);
+        mNoteIds = new long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            mNoteIds[i] = cursor.getLong(0);
+        }
+        cursor.close();
+    }
+
+    /*
+     * Runs the workload with the rollback journal, where it is supported, and then with
+     * write-ahead logging.
+     */
+    public void testReadersAndWriters() throws InterruptedException {
+        SQLiteDatabase db = getProvider().getOpenHelperForTest().getWritableDatabase();
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            db.disableWriteAheadLogging();
+            runWorkload("rollback journal");
+            db.enableWriteAheadLogging();
+        }
+
+        long[] totals = runWorkload("write-ahead log");
+        assertTrue(totals[0] > 0);
+        assertTrue(totals[1] > 0);
+    }
+
+    /**
+     * Runs the readers and the writer for RUN_MILLIS and logs the results.
+     *
+     * @return the number of reads and of writes completed
+     */
+    private long[] runWorkload(String journal) throws InterruptedException {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong reads = new AtomicLong();
+        final AtomicLong writes = new AtomicLong();
+        final AtomicLong slowestReadMillis = new AtomicLong();
+
+        Thread[] threads = new Thread[READER_COUNT + 1];
+        for (int i = 0; i < READER_COUNT; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (running.get()) {
+                        long start = SystemClock.elapsedRealtime();
+                        Cursor cursor = mMockResolver.query(LIST_PAGE_URI, LIST_PROJECTION,
+                                null, null, null);
+                        while (cursor.moveToNext()) {
+                            cursor.getString(1);
+                        }
+                        cursor.close();
+                        long elapsed = SystemClock.elapsedRealtime() - start;
+
+                        reads.incrementAndGet();
+                        long slowest = slowestReadMillis.get();
+                        while (elapsed > slowest
+                                && !slowestReadMillis.compareAndSet(slowest, elapsed)) {
+                            slowest = slowestReadMillis.get();
+                        }
+                    }
+                }
+            });
+        }
+        threads[READER_COUNT] = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random(0);
+                ContentValues values = new ContentValues();
+                while (running.get()) {
+                    long noteId = mNoteIds[random.nextInt(mNoteIds.length)];
+                    values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Saved at " + System.nanoTime());
+                    mMockResolver.update(
+                            ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId),
+                            values, null, null);
+                    writes.incrementAndGet();
+                }
+            }
+        });
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep(RUN_MILLIS);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Log.i(TAG, journal + ": " + (reads.get() * 1000 / RUN_MILLIS) + " list reads/sec over "
+                + READER_COUNT + " readers, " + (writes.get() * 1000 / RUN_MILLIS)
+                + " writes/sec, slowest read " + slowestReadMillis.get() + " ms");
+        return new long[] { reads.get(), writes.get() };
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.android.notepad;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Measures how fast notes can be imported into the provider: one insert() per note, which
+ * commits each note in its own transaction, against bulkInsert() and applyBatch(), which commit
+ * the whole import at once. The rates are written to the log under the tag
+ * "NotePadImportBenchmark".
+ */
+public class NotePadImportBenchmark extends ProviderTestCase2<NotePadProvider> {
+
+    private static final String TAG = "NotePadImportBenchmark";
+
+    // The number of notes in each import
+    private static final int IMPORT_SIZE = 10000;
+
+    private MockContentResolver mMockResolver;
+
+    public NotePadImportBenchmark() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockResolver = getMockContentResolver();
+    }
+
+    /*
+     * Imports the notes with each method in turn, starting from an empty table each time.
+     */
+    public void testImportThroughput() throws RemoteException, OperationApplicationException {
+        ContentValues[] notes = createNotes();
+
+        long start = SystemClock.elapsedRealtime();
+        for (ContentValues note : notes) {
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, note);
+        }
+        long insertMillis = SystemClock.elapsedRealtime() - start;
+        report("insert", insertMillis);
+        clearNotes();
+
+        start = SystemClock.elapsedRealtime();
+        assertEquals(IMPORT_SIZE, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes));
+        long bulkInsertMillis = SystemClock.elapsedRealtime() - start;
+        report("bulkInsert", bulkInsertMillis);
+        clearNotes();
+
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(IMPORT_SIZE);
+        for (ContentValues note : notes) {
+            operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                    .withValues(note)
+                    .build());
+        }
+        start = SystemClock.elapsedRealtime();
+        assertEquals(IMPORT_SIZE, mMockResolver.applyBatch(NotePad.AUTHORITY, operations).length);
+        long applyBatchMillis = SystemClock.elapsedRealtime() - start;
+        report("applyBatch", applyBatchMillis);
+
+        // Committing once must beat committing every note.
+        assertTrue(bulkInsertMillis < insertMillis);
+        assertTrue(applyBatchMillis < insertMillis);
+    }
+
+    // Creates the notes to import, with bodies of a typical length.
+    private static ContentValues[] createNotes() {
+        ContentValues[] notes = new ContentValues[IMPORT_SIZE];
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < IMPORT_SIZE; i++) {
+            notes[i] = new ContentValues();
+            notes[i].put(NotePad.Notes.COLUMN_NAME_TITLE, "Imported note " + i);
+            notes[i].put(NotePad.Notes.COLUMN_NAME_NOTE, "Imported note " + i
+                    + ": the body of an imported note, long enough to need a preview. 导入的笔记");
+            notes[i].put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, now - i);
+            notes[i].put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now - i);
+        }
+        return notes;
+    }
+
+    private void clearNotes() {
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI, null, null);
+    }
+
+    private static void report(String method, long millis) {
+        Log.i(TAG, method + ": " + IMPORT_SIZE + " notes in " + millis + " ms, "
+                + (IMPORT_SIZE * 1000L / Math.max(millis, 1)) + " rows/sec");
+    }
+}
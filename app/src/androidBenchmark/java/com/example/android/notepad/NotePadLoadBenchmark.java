@@ -0,0 +1,83 @@
+package com.example.android.notepad;
+
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.util.Log;
+
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Runs the mixed traffic of {@link NotePadLoadHarness} against a dataset the size of a heavy
+ * user's: 20,000 notes in 200 categories, a third of them todos, with a few bodies of several
+ * megabytes. The latency of each kind of operation is written to the log under the tag
+ * "NotePadLoadBenchmark", first with one thread and then with several at once, so that runs
+ * can be compared to catch regressions and contention.
+ */
+public class NotePadLoadBenchmark extends ProviderTestCase2<NotePadProvider> {
+
+    private static final String TAG = "NotePadLoadBenchmark";
+
+    private static final int NOTE_COUNT = 20000;
+    private static final int CATEGORY_COUNT = 200;
+
+    // The number of operations each thread runs
+    private static final int OPERATIONS = 1000;
+    private static final int THREADS = 4;
+
+    private NoteDatasetGenerator mGenerator;
+    private NoteDatasetGenerator.Dataset mDataset;
+
+    public NotePadLoadBenchmark() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mGenerator = new NoteDatasetGenerator()
+                .setSeed(7)
+                .setNoteCount(NOTE_COUNT)
+                .setCategoryCount(CATEGORY_COUNT)
+                .setBodyLength(300, 1.2, 50000)
+                .setHugeBodies(0.0002, 3 * 1024 * 1024)
+                .setTodos(0.35, 0.5, 0.6)
+                .setPriorityWeights(50, 35, 15);
+        long start = SystemClock.elapsedRealtime();
+        mDataset = mGenerator.generate(getMockContentResolver());
+        Log.i(TAG, mDataset + ", built in " + (SystemClock.elapsedRealtime() - start) + " ms");
+    }
+
+    /**
+     * Checks the shape of the dataset, and that the same seed gives the same notes.
+     */
+    public void testDatasetIsDeterministic() {
+        assertEquals(NOTE_COUNT, mDataset.noteIds.length);
+        assertEquals(4, mDataset.hugeNoteIds.length);
+        assertEquals(CATEGORY_COUNT + 1, mDataset.categoryIds.length);
+
+        Random first = new Random(7);
+        Random second = new Random(7);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(mGenerator.createNote(first, mDataset.categoryIds),
+                    mGenerator.createNote(second, mDataset.categoryIds));
+        }
+    }
+
+    public void testSingleThread() throws InterruptedException {
+        report("1 thread", new NotePadLoadHarness(getMockContentResolver(), mGenerator, mDataset)
+                .run(1, OPERATIONS * THREADS));
+    }
+
+    public void testConcurrentThreads() throws InterruptedException {
+        report(THREADS + " threads",
+                new NotePadLoadHarness(getMockContentResolver(), mGenerator, mDataset)
+                        .run(THREADS, OPERATIONS));
+    }
+
+    private static void report(String run, Map<String, LatencySamples> samples) {
+        for (Map.Entry<String, LatencySamples> entry : samples.entrySet()) {
+            Log.i(TAG, run + ", " + entry.getKey() + ": " + entry.getValue());
+        }
+    }
+}
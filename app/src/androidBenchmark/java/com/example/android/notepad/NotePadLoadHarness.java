@@ -0,0 +1,246 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Replays the traffic of the app against a dataset from {@link NoteDatasetGenerator}: several
+ * threads each pick operations at random, weighted by how often the app does them, and the
+ * latency of every operation is recorded per kind. The operations are what the screens do:
+ * paging through the list, showing the open todos, opening a note, searching, saving a note,
+ * ticking off a todo, and creating and deleting notes.
+ *
+ * Each thread draws from its own Random seeded from the harness's seed, so a run with one thread
+ * always does the same operations. Notes are saved with bodies of the usual lengths and never
+ * replace a huge body; only notes that the harness created itself are deleted, so the dataset
+ * keeps its shape however long the run.
+ */
+class NotePadLoadHarness {
+
+    static final String LIST_PAGE = "list page";
+    static final String LIST_TODOS = "list open todos";
+    static final String OPEN_NOTE = "open note";
+    static final String SEARCH = "search";
+    static final String SAVE_NOTE = "save note";
+    static final String TOGGLE_TODO = "toggle todo";
+    static final String CREATE_NOTE = "create note";
+    static final String DELETE_NOTE = "delete note";
+
+    // The operations, and how many of every 100 are of each kind
+    private static final String[] OPERATIONS = {
+        LIST_PAGE, LIST_TODOS, OPEN_NOTE, SEARCH, SAVE_NOTE, TOGGLE_TODO, CREATE_NOTE, DELETE_NOTE
+    };
+    private static final int[] DEFAULT_WEIGHTS = { 30, 10, 25, 10, 12, 5, 5, 3 };
+
+    private static final String PAGE_SIZE = "50";
+
+    private static final String[] LIST_PROJECTION = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_PREVIEW,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY_NAME,
+            NotePad.Notes.COLUMN_NAME_IS_TODO,
+            NotePad.Notes.COLUMN_NAME_IS_COMPLETED
+    };
+
+    private static final String[] NOTE_PROJECTION = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE
+    };
+
+    private static final String OPEN_TODOS_SELECTION = NotePad.Notes.COLUMN_NAME_IS_TODO
+            + " = 1 AND " + NotePad.Notes.COLUMN_NAME_IS_COMPLETED + " = 0";
+
+    private final ContentResolver mResolver;
+    private final NoteDatasetGenerator mGenerator;
+    private final NoteDatasetGenerator.Dataset mDataset;
+    private final Set<Long> mHugeNoteIds = new HashSet<Long>();
+    private final int[] mWeights = DEFAULT_WEIGHTS.clone();
+    private long mSeed = 42;
+
+    // The samples of each operation, in the order of OPERATIONS
+    private final Map<String, LatencySamples> mSamples = new LinkedHashMap<String, LatencySamples>();
+
+    private Throwable mFailure;
+
+    /**
+     * @param generator the generator that created the dataset; new notes are made like its own
+     * @param dataset the notes and categories that the operations pick from
+     */
+    NotePadLoadHarness(ContentResolver resolver, NoteDatasetGenerator generator,
+            NoteDatasetGenerator.Dataset dataset) {
+        mResolver = resolver;
+        mGenerator = generator;
+        mDataset = dataset;
+        for (long id : dataset.hugeNoteIds) {
+            mHugeNoteIds.add(id);
+        }
+        for (String operation : OPERATIONS) {
+            mSamples.put(operation, new LatencySamples());
+        }
+    }
+
+    NotePadLoadHarness setSeed(long seed) {
+        mSeed = seed;
+        return this;
+    }
+
+    /**
+     * Sets how often an operation is picked, relative to the others. A weight of 0 leaves it out.
+     */
+    NotePadLoadHarness setWeight(String operation, int weight) {
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            if (OPERATIONS[i].equals(operation)) {
+                mWeights[i] = weight;
+                return this;
+            }
+        }
+        throw new IllegalArgumentException("Unknown operation " + operation);
+    }
+
+    /**
+     * Runs operationsPerThread operations on each of threadCount threads and waits for them
+     * all to finish. Calls to run() add to the samples of the calls before.
+     *
+     * @return the latency samples of each kind of operation
+     * @throws RuntimeException if an operation failed on any thread
+     */
+    Map<String, LatencySamples> run(int threadCount, final int operationsPerThread)
+            throws InterruptedException {
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final Random random = new Random(mSeed + i);
+            threads[i] = new Thread("NotePadLoadHarness-" + i) {
+                @Override
+                public void run() {
+                    try {
+                        runOperations(random, operationsPerThread);
+                    } catch (Throwable t) {
+                        synchronized (NotePadLoadHarness.this) {
+                            if (mFailure == null) {
+                                mFailure = t;
+                            }
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        synchronized (this) {
+            if (mFailure != null) {
+                throw new RuntimeException("Operation failed under load", mFailure);
+            }
+        }
+        return mSamples;
+    }
+
+    // Runs count operations on the current thread.
+    private void runOperations(Random random, int count) {
+        int total = 0;
+        for (int weight : mWeights) {
+            total += weight;
+        }
+        // The notes this thread created and hasn't deleted yet
+        List<Long> created = new ArrayList<Long>();
+        for (int i = 0; i < count; i++) {
+            int pick = random.nextInt(total);
+            int operation = 0;
+            while (pick >= mWeights[operation]) {
+                pick -= mWeights[operation++];
+            }
+            // With nothing of its own to delete, the thread creates a note instead.
+            if (OPERATIONS[operation].equals(DELETE_NOTE) && created.isEmpty()) {
+                operation--;
+            }
+            long start = System.nanoTime();
+            runOperation(OPERATIONS[operation], random, created);
+            mSamples.get(OPERATIONS[operation]).record(System.nanoTime() - start);
+        }
+    }
+
+    private void runOperation(String operation, Random random, List<Long> created) {
+        if (LIST_PAGE.equals(operation)) {
+            // Mostly the first pages, as people rarely scroll far
+            int offset = (int) Math.min(Math.abs(random.nextGaussian()) * 200,
+                    mDataset.noteIds.length);
+            Uri page = NotePad.Notes.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.PAGE_SIZE_PARAMETER, PAGE_SIZE)
+                    .appendQueryParameter(NotePad.Notes.PAGE_OFFSET_PARAMETER,
+                            String.valueOf(offset))
+                    .build();
+            readAll(mResolver.query(page, LIST_PROJECTION, null, null, null));
+        } else if (LIST_TODOS.equals(operation)) {
+            Uri page = NotePad.Notes.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.PAGE_SIZE_PARAMETER, PAGE_SIZE)
+                    .build();
+            readAll(mResolver.query(page, LIST_PROJECTION, OPEN_TODOS_SELECTION, null, null));
+        } else if (OPEN_NOTE.equals(operation)) {
+            // The editor reads the title, then the body chunk by chunk.
+            Uri note = randomNote(random);
+            readAll(mResolver.query(note, NOTE_PROJECTION, null, null, null));
+            readAll(mResolver.query(Uri.withAppendedPath(note, NotePad.Notes.CHUNKS_PATH_SEGMENT),
+                    null, null, null, null));
+        } else if (SEARCH.equals(operation)) {
+            Uri search = NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.SEARCH_QUERY_PARAMETER,
+                            NoteDatasetGenerator.SEARCH_TERMS[random.nextInt(
+                                    NoteDatasetGenerator.SEARCH_TERMS.length)])
+                    .build();
+            readAll(mResolver.query(search, LIST_PROJECTION, null, null, null));
+        } else if (SAVE_NOTE.equals(operation)) {
+            Uri note = randomNote(random);
+            while (mHugeNoteIds.contains(ContentUris.parseId(note))) {
+                note = randomNote(random);
+            }
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, mGenerator.createBody(random));
+            mResolver.update(note, values, null, null);
+        } else if (TOGGLE_TODO.equals(operation)) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_IS_TODO, 1);
+            values.put(NotePad.Notes.COLUMN_NAME_IS_COMPLETED, random.nextBoolean() ? 1 : 0);
+            mResolver.update(randomNote(random), values, null, null);
+        } else if (CREATE_NOTE.equals(operation)) {
+            created.add(ContentUris.parseId(mResolver.insert(NotePad.Notes.CONTENT_URI,
+                    mGenerator.createNote(random, mDataset.categoryIds))));
+        } else if (DELETE_NOTE.equals(operation)) {
+            long id = created.remove(random.nextInt(created.size()));
+            mResolver.delete(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, id),
+                    null, null);
+        }
+    }
+
+    private Uri randomNote(Random random) {
+        return ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                mDataset.noteIds[random.nextInt(mDataset.noteIds.length)]);
+    }
+
+    // Steps through every row and column of a cursor, then closes it.
+    private static void readAll(Cursor cursor) {
+        if (cursor == null) {
+            return;
+        }
+        int columns = cursor.getColumnCount();
+        while (cursor.moveToNext()) {
+            for (int column = 0; column < columns; column++) {
+                cursor.getString(column);
+            }
+        }
+        cursor.close();
+    }
+}
@@ -0,0 +1,239 @@
+package com.example.android.notepad;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Measures each of the provider's query and write paths on databases of 1,000, 50,000 and
+ * 500,000 notes with Chinese bodies of realistic lengths. Every operation runs a fixed number of
+ * times against random notes; the throughput and the 50th, 95th and 99th percentile and maximum
+ * latency of each, in microseconds, are written to the log under the tag
+ * "NotePadProviderBenchmark", one line per URI type, so that runs can be compared to catch
+ * regressions. Reads step through every row they return, as a list or the editor would.
+ *
+ * The largest dataset takes minutes to build; run its test on its own when needed. Like the
+ * other benchmarks, it is only built into the instrumentation tests with -Pbenchmarks.
+ */
+public class NotePadProviderBenchmark extends ProviderTestCase2<NotePadProvider> {
+
+    private static final String TAG = "NotePadProviderBenchmark";
+
+    // The number of times each read and each write is timed
+    private static final int READS = 500;
+    private static final int WRITES = 200;
+
+    // The number of categories the notes are spread over, besides the default one
+    private static final int CATEGORY_COUNT = 8;
+
+    private static final String[] LIST_PROJECTION = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_PREVIEW,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY_NAME
+    };
+
+    private static final String[] NOTE_PROJECTION = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY_ID
+    };
+
+    private MockContentResolver mMockResolver;
+    private Random mRandom;
+    private NoteDatasetGenerator mGenerator;
+    private long[] mNoteIds;
+    private long[] mCategoryIds;
+
+    public NotePadProviderBenchmark() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockResolver = getMockContentResolver();
+        mRandom = new Random(42);
+    }
+
+    public void testSmallDataset() {
+        runBenchmark(1000);
+    }
+
+    public void testMediumDataset() {
+        runBenchmark(50000);
+    }
+
+    public void testLargeDataset() {
+        runBenchmark(500000);
+    }
+
+    /**
+     * Builds a dataset of noteCount notes and times every operation against it.
+     */
+    private void runBenchmark(int noteCount) {
+        String dataset = noteCount + " notes";
+        long start = SystemClock.elapsedRealtime();
+        mGenerator = new NoteDatasetGenerator()
+                .setNoteCount(noteCount)
+                .setCategoryCount(CATEGORY_COUNT);
+        NoteDatasetGenerator.Dataset notes = mGenerator.generate(mMockResolver);
+        mNoteIds = notes.noteIds;
+        mCategoryIds = notes.categoryIds;
+        long millis = SystemClock.elapsedRealtime() - start;
+        Log.i(TAG, dataset + ": built in " + millis + " ms, "
+                + (noteCount * 1000L / Math.max(millis, 1)) + " rows/sec");
+        assertEquals(noteCount, mNoteIds.length);
+
+        report(dataset, "query notes (page)", READS, READS / 10, new Operation() {
+            @Override
+            public void run(int i) {
+                Uri page = NotePad.Notes.CONTENT_URI.buildUpon()
+                        .appendQueryParameter(NotePad.Notes.PAGE_SIZE_PARAMETER, "50")
+                        .appendQueryParameter(NotePad.Notes.PAGE_OFFSET_PARAMETER,
+                                String.valueOf(mRandom.nextInt(Math.min(mNoteIds.length, 5000))))
+                        .build();
+                readAll(mMockResolver.query(page, LIST_PROJECTION, null, null, null));
+            }
+        });
+        report(dataset, "query notes (category)", READS, READS / 10, new Operation() {
+            @Override
+            public void run(int i) {
+                Uri page = NotePad.Notes.CONTENT_URI.buildUpon()
+                        .appendQueryParameter(NotePad.Notes.PAGE_SIZE_PARAMETER, "50")
+                        .build();
+                readAll(mMockResolver.query(page, LIST_PROJECTION,
+                        NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?",
+                        new String[] { String.valueOf(randomCategory()) }, null));
+            }
+        });
+        report(dataset, "query note_id", READS, READS / 10, new Operation() {
+            @Override
+            public void run(int i) {
+                readAll(mMockResolver.query(randomNote(), NOTE_PROJECTION, null, null, null));
+            }
+        });
+        report(dataset, "query note chunks", READS, READS / 10, new Operation() {
+            @Override
+            public void run(int i) {
+                readAll(mMockResolver.query(Uri.withAppendedPath(randomNote(),
+                        NotePad.Notes.CHUNKS_PATH_SEGMENT), null, null, null, null));
+            }
+        });
+        report(dataset, "query search", READS, READS / 10, new Operation() {
+            @Override
+            public void run(int i) {
+                Uri search = NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                        .appendQueryParameter(NotePad.Notes.SEARCH_QUERY_PARAMETER,
+                                NoteDatasetGenerator.SEARCH_TERMS[mRandom.nextInt(
+                                        NoteDatasetGenerator.SEARCH_TERMS.length)])
+                        .build();
+                readAll(mMockResolver.query(search, LIST_PROJECTION, null, null, null));
+            }
+        });
+        report(dataset, "query categories", READS, READS / 10, new Operation() {
+            @Override
+            public void run(int i) {
+                readAll(mMockResolver.query(NotePad.Categories.CONTENT_URI, null, null, null,
+                        null));
+            }
+        });
+        report(dataset, "query category_id", READS, READS / 10, new Operation() {
+            @Override
+            public void run(int i) {
+                readAll(mMockResolver.query(ContentUris.withAppendedId(
+                        NotePad.Categories.CONTENT_URI, randomCategory()), null, null, null, null));
+            }
+        });
+
+        // The notes inserted here are the ones deleted below, so the dataset keeps its size.
+        final long[] insertedIds = new long[WRITES];
+        report(dataset, "insert notes", WRITES, 0, new Operation() {
+            @Override
+            public void run(int i) {
+                insertedIds[i] = ContentUris.parseId(
+                        mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                                mGenerator.createNote(mRandom, mCategoryIds)));
+            }
+        });
+        report(dataset, "update note_id", WRITES, 0, new Operation() {
+            @Override
+            public void run(int i) {
+                ContentValues values = new ContentValues();
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, mGenerator.createBody(mRandom));
+                assertEquals(1, mMockResolver.update(randomNote(), values, null, null));
+            }
+        });
+        report(dataset, "update category_id", WRITES, 0, new Operation() {
+            @Override
+            public void run(int i) {
+                ContentValues values = new ContentValues();
+                values.put(NotePad.Categories.COLUMN_NAME_CATEGORY_COLOR, mRandom.nextInt());
+                assertEquals(1, mMockResolver.update(ContentUris.withAppendedId(
+                        NotePad.Categories.CONTENT_URI, randomCategory()), values, null, null));
+            }
+        });
+        report(dataset, "delete note_id", WRITES, 0, new Operation() {
+            @Override
+            public void run(int i) {
+                assertEquals(1, mMockResolver.delete(ContentUris.withAppendedId(
+                        NotePad.Notes.CONTENT_ID_URI_BASE, insertedIds[i]), null, null));
+            }
+        });
+    }
+
+    /**
+     * An operation that is timed. i counts the runs from 0.
+     */
+    private interface Operation {
+        void run(int i);
+    }
+
+    /**
+     * Runs the operation the given number of times, after some untimed runs to warm up the
+     * caches, and logs its throughput and latency percentiles. Writes aren't warmed up, since
+     * each run of a delete removes a note inserted by the same run of the insert.
+     */
+    private void report(String dataset, String name, int runs, int warmUps, Operation operation) {
+        for (int i = 0; i < warmUps; i++) {
+            operation.run(i);
+        }
+        LatencySamples samples = new LatencySamples();
+        for (int i = 0; i < runs; i++) {
+            long runStart = System.nanoTime();
+            operation.run(i);
+            samples.record(System.nanoTime() - runStart);
+        }
+        Log.i(TAG, dataset + ", " + name + ": " + samples);
+    }
+
+    // Steps through every row and column of a cursor, then closes it.
+    private static void readAll(Cursor cursor) {
+        assertNotNull(cursor);
+        int columns = cursor.getColumnCount();
+        while (cursor.moveToNext()) {
+            for (int column = 0; column < columns; column++) {
+                cursor.getString(column);
+            }
+        }
+        cursor.close();
+    }
+
+    private Uri randomNote() {
+        return ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                mNoteIds[mRandom.nextInt(mNoteIds.length)]);
+    }
+
+    private long randomCategory() {
+        return mCategoryIds[mRandom.nextInt(mCategoryIds.length)];
+    }
+}
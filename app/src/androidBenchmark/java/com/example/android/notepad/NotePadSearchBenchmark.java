@@ -0,0 +1,131 @@
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures search-as-you-type on a large database. Each phrase is typed one character at a
+ * time, and every prefix is searched the way NotesList searches it: through the search URI,
+ * restricted to the previous results by {@link IncrementalSearch} when possible. The latency
+ * of each search, from issuing the query to having its rows counted as CursorLoader does, is
+ * recorded in a histogram and written to the log under the tag "NotePadSearchBenchmark",
+ * alongside the latency of searching every prefix from scratch.
+ */
+public class NotePadSearchBenchmark extends ProviderTestCase2<NotePadProvider> {
+
+    private static final String TAG = "NotePadSearchBenchmark";
+
+    // The number of notes in the database
+    private static final int NOTE_COUNT = 50000;
+
+    // The phrases typed into the search box
+    private static final String[] PHRASES = {
+        "note 4242", "meeting notes", "购物清单", "项目会议"
+    };
+
+    private static final String[] WORDS = {
+        "meeting", "notes", "groceries", "travel", "project", "deadline", "ideas", "reading",
+        "会议", "记录", "购物", "清单", "旅行", "项目", "想法", "读书"
+    };
+
+    private static final String[] PROJECTION = new String[] {
+        NotePad.Notes._ID,
+        NotePad.Notes.COLUMN_NAME_TITLE,
+        NotePad.Notes.COLUMN_NAME_PREVIEW,
+        NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+        NotePad.Notes.COLUMN_NAME_CATEGORY_NAME
+    };
+
+    private MockContentResolver mMockResolver;
+
+    public NotePadSearchBenchmark() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockResolver = getMockContentResolver();
+
+        Random random = new Random(42);
+        ContentValues[] notes = new ContentValues[5000];
+        for (int inserted = 0; inserted < NOTE_COUNT; inserted += notes.length) {
+            for (int i = 0; i < notes.length; i++) {
+                StringBuilder body = new StringBuilder();
+                for (int word = 0; word < 40; word++) {
+                    body.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+                }
+                notes[i] = new ContentValues();
+                notes[i].put(NotePad.Notes.COLUMN_NAME_TITLE, "note " + (inserted + i));
+                notes[i].put(NotePad.Notes.COLUMN_NAME_NOTE, body.toString());
+            }
+            mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes);
+        }
+    }
+
+    /*
+     * Types each phrase with and without reusing the previous results, checks that both find
+     * the same notes, and logs the latency of each.
+     */
+    public void testSearchAsYouType() {
+        LatencyHistogram incremental = new LatencyHistogram();
+        LatencyHistogram fromScratch = new LatencyHistogram();
+        IncrementalSearch search = new IncrementalSearch();
+
+        for (String phrase : PHRASES) {
+            search.reset();
+            for (int length = 1; length <= phrase.length(); length++) {
+                String query = phrase.substring(0, length).trim();
+                if (query.length() == 0) {
+                    continue;
+                }
+
+                long start = SystemClock.elapsedRealtime();
+                Cursor cursor = search(query, search.refineSelection(query, ""));
+                incremental.record(SystemClock.elapsedRealtime() - start);
+                search.setResults(query, "", cursor, 0);
+                long[] incrementalIds = getSortedIds(cursor);
+                cursor.close();
+
+                start = SystemClock.elapsedRealtime();
+                cursor = search(query, null);
+                fromScratch.record(SystemClock.elapsedRealtime() - start);
+                long[] allIds = getSortedIds(cursor);
+                cursor.close();
+
+                assertTrue("Different results for " + query, Arrays.equals(allIds, incrementalIds));
+            }
+        }
+
+        Log.i(TAG, "Search as you type on " + NOTE_COUNT + " notes: " + incremental);
+        Log.i(TAG, "Searching every prefix from scratch: " + fromScratch);
+    }
+
+    // Searches as CursorLoader would, counting the rows before returning the cursor.
+    private Cursor search(String query, String selection) {
+        Uri uri = NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.SEARCH_QUERY_PARAMETER, query)
+                .build();
+        Cursor cursor = mMockResolver.query(uri, PROJECTION, selection, null, null);
+        cursor.getCount();
+        return cursor;
+    }
+
+    private static long[] getSortedIds(Cursor cursor) {
+        long[] ids = new long[cursor.getCount()];
+        cursor.moveToPosition(-1);
+        for (int i = 0; cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(0);
+        }
+        Arrays.sort(ids);
+        return ids;
+    }
+}
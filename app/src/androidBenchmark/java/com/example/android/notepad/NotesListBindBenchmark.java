@@ -0,0 +1,134 @@
+package com.example.android.notepad;
+
+import android.database.MatrixCursor;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
+import android.util.Log;
+import android.view.View;
+
+import java.util.Random;
+
+/**
+ * Measures binding rows of the notes list with {@link NotesListAdapter}, with and without
+ * a search query to highlight. Every row is bound into the same recycled view, as the list
+ * does while scrolling. The cost per row is written to the log under the tag
+ * "NotesListBindBenchmark".
+ */
+public class NotesListBindBenchmark extends AndroidTestCase {
+
+    private static final String TAG = "NotesListBindBenchmark";
+
+    // The number of rows bound in each pass
+    private static final int ROW_COUNT = 1000;
+
+    // The number of passes over all rows; the first pass of each run is a warm-up
+    private static final int PASSES = 10;
+
+    private static final String[] WORDS = {
+        "meeting", "notes", "groceries", "travel", "project", "deadline", "ideas", "reading",
+        "会议", "记录", "购物", "清单", "旅行", "项目", "想法", "读书"
+    };
+
+    private MatrixCursor mCursor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        Random random = new Random(42);
+        mCursor = new MatrixCursor(NotesList.PROJECTION, ROW_COUNT);
+        for (int i = 0; i < ROW_COUNT; i++) {
+            StringBuilder preview = new StringBuilder();
+            while (preview.length() < NotePadProvider.PREVIEW_LENGTH) {
+                preview.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            boolean isTodo = random.nextBoolean();
+            mCursor.addRow(new Object[] {
+                (long) i,
+                "Note " + i + " " + WORDS[random.nextInt(WORDS.length)],
+                preview.toString(),
+                System.currentTimeMillis() - random.nextInt(1000000000),
+                1L,
+                isTodo ? 1 : 0,
+                isTodo && random.nextBoolean() ? 1 : 0,
+                0L,
+                0,
+                "默认分类"
+            });
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCursor.close();
+        super.tearDown();
+    }
+
+    /*
+     * Binds every row without a query and with a query matching most rows, and logs the
+     * cost per row of each.
+     */
+    public void testBind() {
+        SearchHighlighter highlighter = new SearchHighlighter();
+        NotesListAdapter adapter = new NotesListAdapter(getContext(), highlighter);
+        adapter.swapCursor(mCursor);
+        View row = adapter.newView(getContext(), mCursor, null);
+
+        highlighter.setQuery("");
+        long plain = bindAll(adapter, row);
+
+        highlighter.setQuery("note 会议");
+        long highlighted = bindAll(adapter, row);
+
+        Log.i(TAG, "Binding " + ROW_COUNT + " rows: " + plain + "ns/row without highlighting, "
+                + highlighted + "ns/row with highlighting");
+    }
+
+    /*
+     * Checks that every match is highlighted, ignoring case, and that the spans are reused
+     * across rows.
+     */
+    public void testHighlight() {
+        SearchHighlighter highlighter = new SearchHighlighter();
+        highlighter.setQuery("NOTE  会");
+
+        SpannableStringBuilder text = new SpannableStringBuilder("note 会议 Notes 会");
+        assertEquals(4, highlighter.highlight(text, 0, text.length()));
+        BackgroundColorSpan[] spans = text.getSpans(0, text.length(), BackgroundColorSpan.class);
+        assertEquals(4, spans.length);
+        assertEquals(0, text.getSpanStart(spans[0]));
+        assertEquals(4, text.getSpanEnd(spans[0]));
+
+        SpannableStringBuilder other = new SpannableStringBuilder("a note");
+        assertEquals(1, highlighter.highlight(other, 0, other.length()));
+        BackgroundColorSpan[] otherSpans =
+                other.getSpans(0, other.length(), BackgroundColorSpan.class);
+        assertSame(spans[0], otherSpans[0]);
+        assertEquals(Spanned.SPAN_EXCLUSIVE_EXCLUSIVE, other.getSpanFlags(otherSpans[0]));
+
+        // Only the given range is highlighted
+        assertEquals(0, highlighter.highlight(other, 0, 4));
+
+        highlighter.setQuery("  ");
+        assertFalse(highlighter.isActive());
+    }
+
+    // Binds every row PASSES times and returns the average cost per row after the warm-up.
+    private long bindAll(NotesListAdapter adapter, View row) {
+        long elapsed = 0;
+        for (int pass = 0; pass < PASSES; pass++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            mCursor.moveToPosition(-1);
+            while (mCursor.moveToNext()) {
+                adapter.bindView(row, getContext(), mCursor);
+            }
+            if (pass > 0) {
+                elapsed += SystemClock.elapsedRealtimeNanos() - start;
+            }
+        }
+        return elapsed / ((PASSES - 1) * ROW_COUNT);
+    }
+}
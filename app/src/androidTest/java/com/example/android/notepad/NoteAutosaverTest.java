@@ -0,0 +1,210 @@
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.text.SpannableStringBuilder;
+
+/**
+ * Tests {@link NoteAutosaver}: saves are written in the background, in order, saves that
+ * haven't started are merged into one write, and no save is dropped when many are queued.
+ */
+public class NoteAutosaverTest extends ProviderTestCase2<NotePadProvider> {
+
+    private MockContentResolver mMockResolver;
+    private Uri mNoteUri;
+
+    public NoteAutosaverTest() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockResolver = getMockContentResolver();
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Autosaved");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "");
+        mNoteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+    }
+
+    /*
+     * Saves many versions of a note quickly and checks that the last one wins, that the category
+     * saved along the way isn't lost by merging, and that the bytes written are counted.
+     */
+    public void testSaveAndFlush() {
+        NoteAutosaver autosaver = new NoteAutosaver(mMockResolver, mNoteUri);
+        long savesBefore = NoteAutosaver.getSaveCount();
+        long coalescedBefore = NoteAutosaver.getCoalescedCount();
+        long bytesBefore = NoteAutosaver.getBytesWritten();
+
+        ContentValues category = new ContentValues();
+        category.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, 1);
+        autosaver.save(category);
+
+        StringBuilder text = new StringBuilder();
+        int versions = 200;
+        for (int i = 0; i < versions; i++) {
+            text.append("第").append(i).append("行\n");
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, text.toString());
+            autosaver.save(values);
+        }
+        autosaver.flush();
+
+        assertEquals(text.toString(), readNote());
+        long saves = NoteAutosaver.getSaveCount() - savesBefore;
+        long coalesced = NoteAutosaver.getCoalescedCount() - coalescedBefore;
+        assertTrue(saves >= 1);
+        assertEquals(versions + 1, saves + coalesced);
+        assertTrue(NoteAutosaver.getBytesWritten() - bytesBefore
+                >= Utf8.length(text.toString()));
+    }
+
+    /*
+     * Checks that replace() drops the saves that haven't been written and writes its values
+     * after the save being written, without merging them.
+     */
+    public void testReplace() {
+        NoteAutosaver autosaver = new NoteAutosaver(mMockResolver, mNoteUri);
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Written");
+        autosaver.save(values);
+        autosaver.flush();
+
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Maybe written");
+        autosaver.save(values);
+
+        ContentValues original = new ContentValues();
+        original.put(NotePad.Notes.COLUMN_NAME_NOTE, "Reverted");
+        autosaver.replace(original);
+        autosaver.flush();
+        assertEquals("Reverted", readNote());
+    }
+
+    /*
+     * Checks that delete() deletes the note after the saves being written, and that nothing
+     * is written after it.
+     */
+    public void testDelete() {
+        NoteAutosaver autosaver = new NoteAutosaver(mMockResolver, mNoteUri);
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Deleted soon");
+        autosaver.save(values);
+        autosaver.delete();
+        autosaver.save(values);
+        autosaver.replace(values);
+        autosaver.flush();
+
+        Cursor cursor = mMockResolver.query(mNoteUri, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Checks that awaitPendingWrites() returns after the saves submitted before it are written.
+     */
+    public void testAwaitPendingWrites() {
+        NoteAutosaver autosaver = new NoteAutosaver(mMockResolver, mNoteUri);
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Written before reading");
+        autosaver.save(values);
+        NoteAutosaver.awaitPendingWrites();
+        assertEquals("Written before reading", readNote());
+    }
+
+    /*
+     * Holds the database while many notes are saved, so that their writes queue up behind the
+     * first one, and checks that every note ends up with its last save.
+     */
+    public void testFullQueueKeepsSaves() {
+        int notes = 20;
+        NoteAutosaver[] autosavers = new NoteAutosaver[notes];
+        Uri[] uris = new Uri[notes];
+        for (int i = 0; i < notes; i++) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Queued" + i);
+            uris[i] = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+            autosavers[i] = new NoteAutosaver(mMockResolver, uris[i]);
+        }
+
+        SQLiteDatabase db = getProvider().getOpenHelperForTest().getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int version = 0; version < 3; version++) {
+                for (int i = 0; i < notes; i++) {
+                    ContentValues values = new ContentValues();
+                    values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Note " + i + " v" + version);
+                    autosavers[i].save(values);
+                }
+            }
+        } finally {
+            db.endTransaction();
+        }
+        NoteAutosaver.awaitPendingWrites();
+
+        for (int i = 0; i < notes; i++) {
+            assertEquals("Note " + i + " v2", readNote(uris[i]));
+        }
+    }
+
+    /*
+     * Checks that a save from a mirror writes the text the mirror holds when it is written, and
+     * that the mirror follows each edit.
+     */
+    public void testSaveFromMirror() {
+        NoteAutosaver autosaver = new NoteAutosaver(mMockResolver, mNoteUri);
+        NoteAutosaver.TextMirror mirror = new NoteAutosaver.TextMirror();
+        SpannableStringBuilder text = new SpannableStringBuilder();
+        edit(mirror, text, 0, 0, "Hello world");
+        edit(mirror, text, 6, 5, "笔记");
+        edit(mirror, text, 5, 0, ",");
+        assertEquals("Hello, 笔记", mirror.snapshot());
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, 1);
+        autosaver.save(values, mirror);
+        edit(mirror, text, text.length(), 0, "!");
+        autosaver.flush();
+        assertEquals("Hello, 笔记!", readNote());
+
+        // A save with its own text replaces the mirror.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Own text");
+        autosaver.save(values, mirror);
+        autosaver.save(values);
+        autosaver.flush();
+        assertEquals("Own text", readNote());
+    }
+
+    // Replaces [start, start + before) of text, the way an EditText does, and tells the mirror
+    private static void edit(NoteAutosaver.TextMirror mirror, SpannableStringBuilder text,
+            int start, int before, String replacement) {
+        text.replace(start, start + before, replacement);
+        mirror.onTextChanged(text, start, before, replacement.length());
+    }
+
+    public void testUtf8Length() {
+        assertEquals(0, Utf8.length(null));
+        assertEquals(5, Utf8.length("hello"));
+        assertEquals(6, Utf8.length("笔记"));
+        assertEquals(2, Utf8.length("é"));
+        assertEquals(4, Utf8.length("📝"));
+    }
+
+    private String readNote() {
+        return readNote(mNoteUri);
+    }
+
+    private String readNote(Uri uri) {
+        Cursor cursor = mMockResolver.query(uri,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        String note = cursor.getString(0);
+        cursor.close();
+        return note;
+    }
+}
@@ -0,0 +1,374 @@
+package com.example.android.notepad;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tests {@link NoteBodyStore}: large bodies are kept as a chunked base text and a chain of
+ * deltas, read back whole or a chunk at a time through the provider, compacted, and moved back
+ * to the notes table when they shrink. A small threshold keeps most of the notes short.
+ */
+public class NoteBodyStoreTest extends ProviderTestCase2<NotePadProvider> {
+
+    // The threshold used by these tests, in characters
+    private static final int LARGE_BODY_LENGTH = 1000;
+
+    private MockContentResolver mMockResolver;
+    private NoteBodyStore mBodyStore;
+    private SQLiteDatabase mDb;
+
+    public NoteBodyStoreTest() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockResolver = getMockContentResolver();
+        mBodyStore = getProvider().getBodyStoreForTest();
+        mBodyStore.setLargeBodyLength(LARGE_BODY_LENGTH);
+        mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+    }
+
+    /*
+     * A large note's body is kept out of the notes table, but reads and the preview see it whole.
+     */
+    public void testInsertLargeNote() {
+        String body = largeBody("插入");
+        Uri uri = insertNote(body);
+
+        assertNull(readColumn(uri));
+        assertEquals(body, readNote(uri));
+        assertEquals(1, countRows(NoteBodyStore.CHUNKS_TABLE_NAME, uri));
+
+        Cursor cursor = mMockResolver.query(uri, new String[] {
+                NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_PREVIEW
+        }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertFalse(cursor.isNull(0));
+        assertEquals(Cursor.FIELD_TYPE_STRING, cursor.getType(0));
+        assertEquals(NotePadProvider.makePreview(body), cursor.getString(1));
+        cursor.close();
+
+        // isNull() and getType() answer without the body being read into memory.
+        mBodyStore.discardCache();
+        assertTrue(mBodyStore.contains(ContentUris.parseId(uri)));
+        cursor = mMockResolver.query(uri, new String[] { NotePad.Notes.COLUMN_NAME_NOTE },
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertFalse(cursor.isNull(0));
+        assertEquals(Cursor.FIELD_TYPE_STRING, cursor.getType(0));
+        cursor.close();
+        ContentValues empty = new ContentValues();
+        empty.putNull(NotePad.Notes.COLUMN_NAME_NOTE);
+        Uri emptyUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, empty);
+        assertFalse(mBodyStore.contains(ContentUris.parseId(emptyUri)));
+        cursor = mMockResolver.query(emptyUri, new String[] { NotePad.Notes.COLUMN_NAME_NOTE },
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertTrue(cursor.isNull(0));
+        assertEquals(Cursor.FIELD_TYPE_NULL, cursor.getType(0));
+        cursor.close();
+
+        // A query for many notes reads the body by each row's _id.
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, new String[] {
+                NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_NOTE
+        }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(body, cursor.getString(1));
+        cursor.close();
+    }
+
+    /*
+     * Small edits append deltas, which read back as the edited text before and after they are
+     * compacted. Edits next to a surrogate pair must not split it.
+     */
+    public void testEditsAndCompaction() {
+        String body = largeBody("编辑") + "😀";
+        Uri uri = insertNote(body);
+
+        StringBuilder text = new StringBuilder(body);
+        int saves = 0;
+        for (int i = 0; i < 5; i++) {
+            text.insert(text.length() / 2, "第" + i + "次");
+            updateNote(uri, text.toString());
+            text.deleteCharAt(i);
+            updateNote(uri, text.toString());
+            saves += 2;
+            assertEquals(text.toString(), readNote(uri));
+        }
+        // 😀 and 😃 share their high surrogate.
+        text.replace(text.length() - 2, text.length(), "😃");
+        updateNote(uri, text.toString());
+        text.insert(text.length() - 2, "edited");
+        updateNote(uri, text.toString());
+        saves += 2;
+        assertEquals(text.toString(), readNote(uri));
+        assertEquals(saves, countRows(NoteBodyStore.DELTAS_TABLE_NAME, uri));
+
+        // Reads that miss the cache rebuild the text from the base and the deltas.
+        mBodyStore.discardCache();
+        assertEquals(text.toString(), readNote(uri));
+
+        long compactions = mBodyStore.getCompactionCount();
+        mBodyStore.compactPending();
+        assertEquals(compactions + 1, mBodyStore.getCompactionCount());
+        assertEquals(0, countRows(NoteBodyStore.DELTAS_TABLE_NAME, uri));
+        mBodyStore.discardCache();
+        assertEquals(text.toString(), readNote(uri));
+
+        // Each delta wrote much less than the body.
+        assertTrue(mBodyStore.getStoredBytes() < mBodyStore.getLogicalBytes());
+    }
+
+    /*
+     * An edit that replaces most of the body rewrites the base instead of adding a delta.
+     */
+    public void testLargeEditRewritesBase() {
+        Uri uri = insertNote(largeBody("原文"));
+        String replaced = largeBody("全部替换");
+        updateNote(uri, replaced);
+
+        assertEquals(0, countRows(NoteBodyStore.DELTAS_TABLE_NAME, uri));
+        mBodyStore.discardCache();
+        assertEquals(replaced, readNote(uri));
+    }
+
+    /*
+     * The search index holds the body as of the last base write, and is brought up to date by
+     * compaction. Updating only the title doesn't clear the indexed body.
+     */
+    public void testSearchIndex() {
+        Uri uri = insertNote(largeBody("索引") + " original");
+        assertEquals(1, search("original"));
+
+        updateNote(uri, readNote(uri) + " appended");
+        mBodyStore.compactPending();
+        assertEquals(1, search("appended"));
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Retitled");
+        mMockResolver.update(uri, values, null, null);
+        assertEquals(1, search("appended"));
+        assertEquals(1, search("Retitled"));
+
+        // A CJK word inside a longer run is found whether the search segments it or falls back
+        // to LIKE, which matches the body kept by the store through the FTS table.
+        insertNote(largeBody("全文索引"));
+        assertEquals(1, search("文索"));
+    }
+
+    /*
+     * A body that shrinks below half the threshold moves back to the notes table; one that
+     * shrinks less stays in the store.
+     */
+    public void testShrinkBack() {
+        Uri uri = insertNote(largeBody("缩短"));
+
+        String shorter = readNote(uri).substring(0, LARGE_BODY_LENGTH * 3 / 4);
+        updateNote(uri, shorter);
+        assertNull(readColumn(uri));
+        assertEquals(shorter, readNote(uri));
+
+        updateNote(uri, "short");
+        assertEquals("short", readColumn(uri));
+        assertEquals("short", readNote(uri));
+        assertEquals(0, countRows(NoteBodyStore.CHUNKS_TABLE_NAME, uri));
+        assertEquals(1, search("short"));
+    }
+
+    /*
+     * Deleting a note deletes its base and deltas; updating many notes' bodies at once moves
+     * them back to the notes table.
+     */
+    public void testDeleteAndBulkUpdate() {
+        Uri deleted = insertNote(largeBody("删除"));
+        updateNote(deleted, readNote(deleted) + "!");
+        Uri updated = insertNote(largeBody("批量"));
+
+        assertEquals(1, mMockResolver.delete(deleted, null, null));
+        assertEquals(0, countRows(NoteBodyStore.CHUNKS_TABLE_NAME, deleted));
+        assertEquals(0, countRows(NoteBodyStore.DELTAS_TABLE_NAME, deleted));
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "replaced");
+        assertEquals(1, mMockResolver.update(NotePad.Notes.CONTENT_URI, values, null, null));
+        assertEquals("replaced", readColumn(updated));
+        assertEquals("replaced", readNote(updated));
+        assertEquals(0, countRows(NoteBodyStore.CHUNKS_TABLE_NAME, updated));
+    }
+
+    /*
+     * A small note's body comes back from the chunks URI as a single chunk; a missing note has
+     * none.
+     */
+    public void testSmallNoteChunks() {
+        Uri uri = insertNote("small");
+        Cursor cursor = queryChunks(uri);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("small", cursor.getString(
+                cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_CHUNK_TEXT)));
+        cursor.close();
+
+        cursor = queryChunks(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 999999));
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        assertEquals(NotePad.Notes.CONTENT_CHUNK_TYPE, mMockResolver.getType(
+                Uri.withAppendedPath(uri, NotePad.Notes.CHUNKS_PATH_SEGMENT)));
+    }
+
+    /*
+     * A note of about 20 MB of UTF-8 is stored in chunks, none of them too large for a
+     * CursorWindow, and streams back through the chunks URI, before and after an edit in the
+     * middle is compacted. Compacting the edit rewrites only the chunks around it.
+     */
+    public void testHugeNoteStreams() {
+        StringBuilder builder = new StringBuilder(7 * 1024 * 1024);
+        for (int i = 0; builder.length() < 7 * 1024 * 1024; i++) {
+            builder.append("第").append(i).append("行，很长的笔记内容。😀\n");
+        }
+        String body = builder.toString();
+        builder = null;
+        Uri uri = insertNote(body);
+        assertNull(readColumn(uri));
+        mBodyStore.discardCache();
+
+        Set<Long> seqs = new HashSet<Long>();
+        assertEquals(body.length(), streamAndCompare(uri, body, seqs));
+
+        // Inserts a line in the middle, after the nearest line break.
+        int position = body.indexOf('\n', body.length() / 2) + 1;
+        body = body.substring(0, position) + "插入的一行\n" + body.substring(position);
+        updateNote(uri, body);
+        mBodyStore.discardCache();
+
+        // Reading the edited note streams the edit without compacting it, which is left to
+        // the background.
+        assertEquals(body.length(), streamAndCompare(uri, body, new HashSet<Long>()));
+        assertTrue(countRows(NoteBodyStore.DELTAS_TABLE_NAME, uri) > 0);
+        mBodyStore.compactPending();
+        mBodyStore.discardCache();
+
+        Set<Long> editedSeqs = new HashSet<Long>();
+        assertEquals(body.length(), streamAndCompare(uri, body, editedSeqs));
+        int kept = 0;
+        for (Long seq : editedSeqs) {
+            if (seqs.contains(seq)) {
+                kept++;
+            }
+        }
+        assertTrue("Only " + kept + " of " + seqs.size() + " chunks kept",
+                kept >= seqs.size() - 2);
+        assertEquals(0, countRows(NoteBodyStore.DELTAS_TABLE_NAME, uri));
+
+        // The editor reads the note through the same chunks, into a buffer of the exact length.
+        CharSequence text = NoteEditor.readNoteText(mMockResolver, uri);
+        assertEquals(body.length(), text.length());
+        assertTrue(body.contentEquals(text));
+        text = null;
+
+        NoteEditor.NoteLoader loader = new NoteEditor.NoteLoader(getMockContext(), uri, true);
+        NoteEditor.NoteCursor cursor = (NoteEditor.NoteCursor) loader.loadInBackground();
+        try {
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.hasText());
+            text = cursor.takeText();
+            assertEquals(body.length(), text.length());
+            assertTrue(body.contentEquals(text));
+            assertFalse(cursor.hasText());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Streams a note's chunks, compares each with the expected body and collects their _ids.
+    // Returns the length streamed.
+    private int streamAndCompare(Uri uri, String body, Set<Long> ids) {
+        Cursor cursor = queryChunks(uri);
+        int idColumn = cursor.getColumnIndexOrThrow(NotePad.Notes._ID);
+        int chunkColumn = cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_CHUNK_TEXT);
+        int length = 0;
+        try {
+            while (cursor.moveToNext()) {
+                String chunk = cursor.getString(chunkColumn);
+                assertTrue(chunk.length() <= NoteBodyStore.CHUNK_LENGTH);
+                assertTrue("Chunk at " + length + " differs",
+                        body.regionMatches(length, chunk, 0, chunk.length()));
+                length += chunk.length();
+                ids.add(cursor.getLong(idColumn));
+            }
+        } finally {
+            cursor.close();
+        }
+        return length;
+    }
+
+    private Cursor queryChunks(Uri uri) {
+        return mMockResolver.query(Uri.withAppendedPath(uri, NotePad.Notes.CHUNKS_PATH_SEGMENT),
+                null, null, null, null);
+    }
+
+    // Returns a body of about twice the threshold, made of numbered lines.
+    private static String largeBody(String word) {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; body.length() < LARGE_BODY_LENGTH * 2; i++) {
+            body.append(word).append(' ').append(i).append('\n');
+        }
+        return body.toString();
+    }
+
+    private Uri insertNote(String body) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Large");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body);
+        return mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+    }
+
+    private void updateNote(Uri uri, String body) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body);
+        assertEquals(1, mMockResolver.update(uri, values, null, null));
+    }
+
+    // Reads the body through the provider.
+    private String readNote(Uri uri) {
+        Cursor cursor = mMockResolver.query(uri,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        String note = cursor.getString(0);
+        cursor.close();
+        return note;
+    }
+
+    // Reads the body column of the notes table itself.
+    private String readColumn(Uri uri) {
+        return DatabaseUtils.stringForQuery(mDb, "SELECT " + NotePad.Notes.COLUMN_NAME_NOTE
+                + " FROM " + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " = ?",
+                new String[] { String.valueOf(ContentUris.parseId(uri)) });
+    }
+
+    private long countRows(String table, Uri uri) {
+        return DatabaseUtils.queryNumEntries(mDb, table, NoteBodyStore.COLUMN_NAME_NOTE_ID + " = ?",
+                new String[] { String.valueOf(ContentUris.parseId(uri)) });
+    }
+
+    private int search(String query) {
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.SEARCH_QUERY_PARAMETER, query).build(),
+                new String[] { NotePad.Notes._ID }, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+}
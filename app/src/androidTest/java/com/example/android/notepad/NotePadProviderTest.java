@@ -16,23 +16,38 @@
 
 package com.example.android.notepad;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
 import android.test.ProviderTestCase2;
 import android.test.mock.MockContentResolver;
+import android.text.TextUtils;
+import android.util.Log;
 
 import java.io.BufferedReader;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /*
  */
@@ -48,6 +63,15 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
     private static final Uri INVALID_URI =
         Uri.withAppendedPath(NotePad.Notes.CONTENT_URI, "invalid");
 
+    // For logging the timings of upgrade tests
+    private static final String TAG = "NotePadProviderTest";
+
+    // The number of notes in each database that testUpgradeFromEachVersion() upgrades
+    private static final int UPGRADE_NOTE_COUNT = 3000;
+
+    // The longest an upgrade of UPGRADE_NOTE_COUNT notes may take
+    private static final long MAX_UPGRADE_MILLIS = 10000;
+
     // Contains a reference to the mocked content resolver for the provider under test.
     private MockContentResolver mMockResolver;
 
@@ -139,6 +163,9 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         // Creates an instance of the ContentValues map type expected by database insertions
         ContentValues values = new ContentValues();
 
+        // The rows are written straight to the database, past the provider's result cache
+        getProvider().getQueryCache().clear();
+
         // Sets up test data
         for (int index = 0; index < TEST_NOTES.length; index++) {
 
@@ -176,6 +203,10 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         mimeType = mMockResolver.getType(noteIdUri);
         assertEquals(NotePad.Notes.CONTENT_ITEM_TYPE, mimeType);
 
+        // Tests the MIME type for the search URI.
+        mimeType = mMockResolver.getType(NotePad.Notes.CONTENT_SEARCH_URI);
+        assertEquals(NotePad.Notes.CONTENT_TYPE, mimeType);
+
         // Tests an invalid URI. This should throw an IllegalArgumentException.
         mimeType = mMockResolver.getType(INVALID_URI);
     }
@@ -186,9 +217,14 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
      */
     public void testGetStreamTypes() {
 
-        // Tests the notes table URI. This should return null, since the content provider does
-        // not provide a stream MIME type for multiple notes.
-        assertNull(mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL));
+        // Tests the notes table URI and a category URI. All the notes, or the notes of a
+        // category, can be exported as a single text/plain document.
+        String[] collectionTypes =
+                mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL);
+        assertNotNull(collectionTypes);
+        assertEquals(MIME_TYPE_TEXT, collectionTypes[0]);
+        assertNotNull(mMockResolver.getStreamTypes(
+                ContentUris.withAppendedId(NotePad.Categories.CONTENT_URI, 1), MIME_TYPES_ALL));
 
         // Tests the live folders URI. This should return null, since the content provider does not
         // provide a stream MIME type for multiple notes.
@@ -222,7 +258,7 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
          * Tests with a URI that should not have any associated stream MIME types, but with a
          * filter that returns all types. The result should still be null.
          */
-        mimeType = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL);
+        mimeType = mMockResolver.getStreamTypes(NotePad.Categories.CONTENT_URI, MIME_TYPES_ALL);
         assertNull(mimeType);
 
     }
@@ -280,13 +316,25 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         testAssetDescriptor.close();
 
         /*
-         * Changes the URI to a notes URI for multiple notes, and re-test. This should fail, since
+         * Changes the URI to the live folder URI, and re-test. This should fail, since
          * the provider does not support this type of URI. A FileNotFound exception is expected,
          * so call fail() if it does *not* occur.
          */
         try {
             testAssetDescriptor = mMockResolver.openTypedAssetFileDescriptor(
-                    NotePad.Notes.CONTENT_URI,
+                    NotePad.Notes.LIVE_FOLDER_URI,
+                    MIME_TYPE_TEXT,
+                    null
+            );
+            fail();
+        } catch (FileNotFoundException e) {
+            // continue
+        }
+
+        // A note that doesn't exist can't be opened either.
+        try {
+            mMockResolver.openTypedAssetFileDescriptor(
+                    ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 999),
                     MIME_TYPE_TEXT,
                     null
             );
@@ -415,6 +463,72 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         assertEquals(TEST_NOTES[0].note, inputData[2]);
     }
 
+    /*
+     * Tests exporting all the notes, and the notes of a category, as one document. Each note is
+     * its title, an empty line and its body, newest first, with an empty line between notes. The
+     * body of a large note, kept by the body store, is streamed whole, non-ASCII text included.
+     */
+    public void testExportNotes() throws IOException {
+        insertData();
+        getProvider().getBodyStoreForTest().setLargeBodyLength(1000);
+
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; large.length() < 5000; i++) {
+            large.append("第").append(i).append("行 😀 line ").append(i).append('\n');
+        }
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Categories.COLUMN_NAME_CATEGORY_NAME, "Export");
+        Uri categoryUri = mMockResolver.insert(NotePad.Categories.CONTENT_URI, values);
+
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "大笔记");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, large.toString());
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, ContentUris.parseId(categoryUri));
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        // The large note is the newest, then the test notes from the last to the first.
+        StringBuilder expected = new StringBuilder();
+        expected.append("大笔记\n\n").append(large).append('\n');
+        for (int index = TEST_NOTES.length - 1; index >= 0; index--) {
+            expected.append('\n').append(TEST_NOTES[index].title).append("\n\n")
+                    .append(TEST_NOTES[index].note).append('\n');
+        }
+        assertEquals(expected.toString(), readStream(NotePad.Notes.CONTENT_URI));
+
+        assertEquals("大笔记\n\n" + large + "\n", readStream(categoryUri));
+
+        // A category without notes exports an empty document; a missing one can't be opened.
+        values = new ContentValues();
+        values.put(NotePad.Categories.COLUMN_NAME_CATEGORY_NAME, "Empty");
+        assertEquals("", readStream(mMockResolver.insert(NotePad.Categories.CONTENT_URI, values)));
+        try {
+            mMockResolver.openTypedAssetFileDescriptor(
+                    ContentUris.withAppendedId(NotePad.Categories.CONTENT_URI, 999),
+                    MIME_TYPE_TEXT, null);
+            fail();
+        } catch (FileNotFoundException e) {
+            // continue
+        }
+    }
+
+    // Reads the whole text/plain stream of a URI as UTF-8.
+    private String readStream(Uri uri) throws IOException {
+        AssetFileDescriptor descriptor =
+                mMockResolver.openTypedAssetFileDescriptor(uri, MIME_TYPE_TEXT, null);
+        Reader in = new InputStreamReader(descriptor.createInputStream(), "UTF-8");
+        try {
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                text.append(buffer, 0, count);
+            }
+            return text.toString();
+        } finally {
+            in.close();
+        }
+    }
+
     /*
      * Tests the provider's public API for querying data in the table, using the URI for
      * a dataset of records.
@@ -790,6 +904,911 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
 
     }
 
+    /*
+     * Tests full-text searches through the search URI. The FTS table is filled by triggers, so
+     * the rows inserted directly into the notes table by insertData() are searchable.
+     */
+    public void testFullTextSearch() {
+        insertData();
+
+        // Every test note's body contains the word "note".
+        Cursor cursor = mMockResolver.query(searchUri("note"), null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+
+        // Only one title starts with "Note5".
+        cursor = mMockResolver.query(searchUri("Note5"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Note5",
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+
+        // Search results can be combined with an ordinary selection.
+        cursor = mMockResolver.query(searchUri("note"), null,
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?", new String[] { "2" }, null);
+        assertEquals(0, cursor.getCount());
+
+        // Deleted notes disappear from the index.
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note5" });
+        cursor = mMockResolver.query(searchUri("Note5"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+
+        // FTS operators typed by the user are taken literally instead of failing the query.
+        cursor = mMockResolver.query(searchUri("\"note OR"), null, null, null, null);
+        assertNotNull(cursor);
+
+        // LIKE wildcards typed by the user are matched literally by the CJK fallback.
+        assertEquals("100\\%", NotePadProvider.escapeLikePattern("100%"));
+        assertEquals("a\\_b", NotePadProvider.escapeLikePattern("a_b"));
+        assertEquals("c:\\\\d", NotePadProvider.escapeLikePattern("c:\\d"));
+        assertEquals("笔记", NotePadProvider.escapeLikePattern("笔记"));
+    }
+
+    /*
+     * Tests that notes queries return the name and color of each note's category when the
+     * projection asks for them, and that selections written for the notes table still work.
+     */
+    public void testQueriesJoinCategories() {
+        insertData();
+
+        final String[] projection = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY_NAME,
+            NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR
+        };
+
+        // Adds a category and moves one note into it.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Categories.COLUMN_NAME_CATEGORY_NAME, "Work");
+        values.put(NotePad.Categories.COLUMN_NAME_CATEGORY_COLOR, 0xFFFF0000);
+        Uri categoryUri = mMockResolver.insert(NotePad.Categories.CONTENT_URI, values);
+        long categoryId = ContentUris.parseId(categoryUri);
+
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, categoryId);
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note1" });
+
+        // Every note is still returned, and the other notes are in the default category.
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection, null, null,
+                null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        int titleIndex = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
+        int nameIndex = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CATEGORY_NAME);
+        int colorIndex = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR);
+        while (cursor.moveToNext()) {
+            if ("Note1".equals(cursor.getString(titleIndex))) {
+                assertEquals("Work", cursor.getString(nameIndex));
+                assertEquals(0xFFFF0000, cursor.getInt(colorIndex));
+            } else {
+                assertEquals(NotePad.Categories.DEFAULT_CATEGORY_NAME, cursor.getString(nameIndex));
+            }
+        }
+        cursor.close();
+
+        // The join also works for single notes and for searches.
+        cursor = mMockResolver.query(searchUri("Note1"), projection, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Work", cursor.getString(nameIndex));
+        long noteId = cursor.getLong(0);
+        cursor.close();
+
+        cursor = mMockResolver.query(
+                ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId),
+                projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Work", cursor.getString(nameIndex));
+        cursor.close();
+
+        // A selection and sort order naming columns both tables have mean the note's columns,
+        // as they do without the join.
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection,
+                NotePad.Notes._ID + " = ? AND " + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " > 0"
+                        + " AND " + NotePad.Notes.COLUMN_NAME_TITLE + " != '_id'",
+                new String[] { String.valueOf(noteId) },
+                NotePad.Notes.COLUMN_NAME_CREATE_DATE + " DESC, " + NotePad.Notes._ID);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(noteId, cursor.getLong(0));
+        assertEquals("Work", cursor.getString(nameIndex));
+        cursor.close();
+        assertEquals("notes._id = ? AND notes.created > 0 AND title = '_id' AND \"created\" = 1"
+                + " AND categories._id = 1 AND category_id = 2 AND x.created < 1e5",
+                NotePadProvider.qualifyNotesColumns("_id = ? AND created > 0 AND title = '_id'"
+                        + " AND \"created\" = 1 AND categories._id = 1 AND category_id = 2"
+                        + " AND x.created < 1e5"));
+        assertNull(NotePadProvider.qualifyNotesColumns(null));
+
+        // Once the note is moved back to the default category, the category can be deleted.
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, 1);
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?",
+                new String[] { String.valueOf(categoryId) });
+        assertEquals(1, mMockResolver.delete(categoryUri, null, null));
+        cursor = mMockResolver.query(searchUri("Note1"), projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(NotePad.Categories.DEFAULT_CATEGORY_NAME, cursor.getString(nameIndex));
+        cursor.close();
+    }
+
+    /*
+     * Tests that notes can only refer to categories that exist.
+     */
+    public void testCategoryForeignKey() {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Categories.COLUMN_NAME_CATEGORY_NAME, "Work");
+        Uri categoryUri = mMockResolver.insert(NotePad.Categories.CONTENT_URI, values);
+
+        // A note can't be put in a category that doesn't exist.
+        values = new NoteInfo("Note1", "This is note 1").getContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, ContentUris.parseId(categoryUri) + 1);
+        try {
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+            fail("Expected an SQLException for a missing category");
+        } catch (SQLException e) {
+            // expected
+        }
+
+        // A category that still has notes can't be deleted.
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, ContentUris.parseId(categoryUri));
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        try {
+            mMockResolver.delete(categoryUri, null, null);
+            fail("Expected an SQLException for deleting a category in use");
+        } catch (SQLException e) {
+            // expected
+        }
+    }
+
+    /*
+     * Tests inserting many notes at once.
+     */
+    public void testBulkInsert() {
+        ContentValues[] values = new ContentValues[TEST_NOTES.length];
+        for (int i = 0; i < TEST_NOTES.length; i++) {
+            values[i] = TEST_NOTES[i].getContentValues();
+        }
+
+        assertEquals(TEST_NOTES.length, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, values));
+
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_PREVIEW },
+                null, null, NotePad.Notes._ID);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        for (int i = 0; cursor.moveToNext(); i++) {
+            assertEquals(TEST_NOTES[i].title, cursor.getString(0));
+            assertEquals(TEST_NOTES[i].note, cursor.getString(1));
+        }
+        cursor.close();
+
+        // If one row fails, none are inserted.
+        ContentValues[] categories = new ContentValues[2];
+        categories[0] = new ContentValues();
+        categories[0].put(NotePad.Categories.COLUMN_NAME_CATEGORY_NAME, "Work");
+        categories[1] = new ContentValues();
+        categories[1].put(NotePad.Categories.COLUMN_NAME_CATEGORY_NAME, "Work");
+        try {
+            mMockResolver.bulkInsert(NotePad.Categories.CONTENT_URI, categories);
+            fail("Expected an SQLException for a duplicate category name");
+        } catch (SQLException e) {
+            // expected
+        }
+        cursor = mMockResolver.query(NotePad.Categories.CONTENT_URI, null,
+                NotePad.Categories.COLUMN_NAME_CATEGORY_NAME + " = ?", new String[] { "Work" },
+                null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests applying a batch of operations.
+     */
+    public void testApplyBatch() throws RemoteException, OperationApplicationException {
+        insertData();
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                .withValues(new NoteInfo("Note10", "This is note 10").getContentValues())
+                .build());
+        operations.add(ContentProviderOperation.newUpdate(NotePad.Notes.CONTENT_URI)
+                .withSelection(NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note1" })
+                .withValue(NotePad.Notes.COLUMN_NAME_NOTE, "Updated in a batch")
+                .withExpectedCount(1)
+                .build());
+        operations.add(ContentProviderOperation.newDelete(NotePad.Notes.CONTENT_URI)
+                .withSelection(NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note2" })
+                .build());
+
+        ContentProviderResult[] results = mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+        assertEquals(3, results.length);
+        assertNotNull(results[0].uri);
+        assertEquals(1, results[1].count.intValue());
+        assertEquals(1, results[2].count.intValue());
+        assertEquals(TEST_NOTES.length, countNotes());
+
+        // If an operation's expectation fails, none of the operations take effect.
+        operations.clear();
+        operations.add(ContentProviderOperation.newDelete(NotePad.Notes.CONTENT_URI).build());
+        operations.add(ContentProviderOperation.newUpdate(NotePad.Notes.CONTENT_URI)
+                .withValue(NotePad.Notes.COLUMN_NAME_NOTE, "Never written")
+                .withExpectedCount(1)
+                .build());
+        try {
+            mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+            fail("Expected an OperationApplicationException for a failed expectation");
+        } catch (OperationApplicationException e) {
+            // expected
+        }
+        assertEquals(TEST_NOTES.length, countNotes());
+    }
+
+    // Returns the number of notes in the provider.
+    private int countNotes() {
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    /*
+     * Tests that writes notify observers once per change, and only when something changed.
+     */
+    public void testChangeNotifications() throws RemoteException, OperationApplicationException {
+        RateCounter sent = getProvider().getNotificationsSent();
+        RateCounter coalesced = getProvider().getNotificationsCoalesced();
+
+        // A bulk insert notifies the notes URI once, for all its rows.
+        ContentValues[] values = new ContentValues[TEST_NOTES.length];
+        for (int i = 0; i < TEST_NOTES.length; i++) {
+            values[i] = TEST_NOTES[i].getContentValues();
+        }
+        long sentBefore = sent.getTotal();
+        long coalescedBefore = coalesced.getTotal();
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, values);
+        assertEquals(sentBefore + 1, sent.getTotal());
+        assertEquals(coalescedBefore + TEST_NOTES.length, coalesced.getTotal());
+
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes._ID }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                cursor.getLong(0));
+        cursor.close();
+
+        ContentValues update = new ContentValues();
+        update.put(NotePad.Notes.COLUMN_NAME_NOTE, "Changed");
+
+        // An update that changes nothing notifies nobody.
+        sentBefore = sent.getTotal();
+        assertEquals(0, mMockResolver.update(
+                ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, Integer.MAX_VALUE),
+                update, null, null));
+        assertEquals(sentBefore, sent.getTotal());
+
+        // Updating one note notifies once, and so does a batch that updates one note.
+        mMockResolver.update(noteUri, update, null, null);
+        assertEquals(sentBefore + 1, sent.getTotal());
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newUpdate(noteUri).withValues(update).build());
+        mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+        assertEquals(sentBefore + 2, sent.getTotal());
+
+        // A new category doesn't show in any note, but renaming one does.
+        ContentValues category = new ContentValues();
+        category.put(NotePad.Categories.COLUMN_NAME_CATEGORY_NAME, "Work");
+        sentBefore = sent.getTotal();
+        Uri categoryUri = mMockResolver.insert(NotePad.Categories.CONTENT_URI, category);
+        assertEquals(sentBefore + 1, sent.getTotal());
+        category.put(NotePad.Categories.COLUMN_NAME_CATEGORY_NAME, "Office");
+        mMockResolver.update(categoryUri, category, null, null);
+        assertEquals(sentBefore + 3, sent.getTotal());
+    }
+
+    /*
+     * Tests that notes and categories queries are answered from the cache when they repeat, and
+     * that each write drops exactly the cached results that read the table it changed.
+     */
+    public void testQueryCache() throws RemoteException, OperationApplicationException {
+        insertData();
+        QueryResultCache cache = getProvider().getQueryCache();
+        String[] projection = { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE };
+        String[] listProjection = { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_CATEGORY_NAME };
+
+        // The same query, however it's spaced, is a hit with the same rows.
+        Cursor first = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection,
+                NotePad.Notes.COLUMN_NAME_TITLE + " != ?", new String[] { "Note0" }, null);
+        long misses = cache.getMisses();
+        Cursor second = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection,
+                NotePad.Notes.COLUMN_NAME_TITLE + "  !=\n ?", new String[] { "Note0" }, null);
+        assertEquals(1, cache.getHits());
+        assertEquals(misses, cache.getMisses());
+        assertEquals(TEST_NOTES.length - 1, second.getCount());
+        while (first.moveToNext()) {
+            assertTrue(second.moveToNext());
+            assertEquals(first.getLong(0), second.getLong(0));
+            assertEquals(first.getString(1), second.getString(1));
+        }
+        first.close();
+        second.close();
+
+        // Other arguments, and other pages, are other queries.
+        mMockResolver.query(NotePad.Notes.CONTENT_URI, projection,
+                NotePad.Notes.COLUMN_NAME_TITLE + " != ?", new String[] { "Note1" }, null).close();
+        for (int offset = 0; offset < 2; offset++) {
+            Uri page = NotePad.Notes.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.PAGE_SIZE_PARAMETER, "2")
+                    .appendQueryParameter(NotePad.Notes.PAGE_OFFSET_PARAMETER,
+                            String.valueOf(offset))
+                    .build();
+            mMockResolver.query(page, listProjection, null, null, null).close();
+        }
+        assertEquals(1, cache.getHits());
+        mMockResolver.query(NotePad.Categories.CONTENT_URI, null, null, null, null).close();
+        assertEquals(5, cache.size());
+
+        // A new note drops the notes queries but keeps the categories.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Cached");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertEquals(1, cache.size());
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection,
+                NotePad.Notes.COLUMN_NAME_TITLE + " != ?", new String[] { "Note0" }, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+        mMockResolver.query(NotePad.Categories.CONTENT_URI, null, null, null, null).close();
+        assertEquals(2, cache.getHits());
+
+        // Renaming a category drops the categories and the notes listed with their category,
+        // but not notes queries that don't read categories. The default category can't be
+        // renamed, so the new note is moved to a category of its own first.
+        ContentValues category = new ContentValues();
+        category.put(NotePad.Categories.COLUMN_NAME_CATEGORY_NAME, "Work");
+        Uri categoryUri = mMockResolver.insert(NotePad.Categories.CONTENT_URI, category);
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, ContentUris.parseId(categoryUri));
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        mMockResolver.query(NotePad.Notes.CONTENT_URI, projection,
+                NotePad.Notes.COLUMN_NAME_TITLE + " != ?", new String[] { "Note0" }, null).close();
+        mMockResolver.query(NotePad.Categories.CONTENT_URI, null, null, null, null).close();
+        mMockResolver.query(NotePad.Notes.CONTENT_URI, listProjection, null, null, null).close();
+        assertEquals(3, cache.size());
+        long hits = cache.getHits();
+
+        category.put(NotePad.Categories.COLUMN_NAME_CATEGORY_NAME, "Renamed");
+        assertEquals(1, mMockResolver.update(categoryUri, category, null, null));
+        assertEquals(1, cache.size());
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, listProjection, null, null, null);
+        assertEquals(hits, cache.getHits());
+        int renamed = 0;
+        while (cursor.moveToNext()) {
+            if (cursor.getLong(0) == ContentUris.parseId(noteUri)) {
+                assertEquals("Renamed", cursor.getString(1));
+                renamed++;
+            } else {
+                assertEquals(NotePad.Categories.DEFAULT_CATEGORY_NAME, cursor.getString(1));
+            }
+        }
+        assertEquals(1, renamed);
+        cursor.close();
+        mMockResolver.query(NotePad.Notes.CONTENT_URI, projection,
+                NotePad.Notes.COLUMN_NAME_TITLE + " != ?", new String[] { "Note0" }, null).close();
+        assertEquals(hits + 1, cache.getHits());
+
+        // A batch drops what it changed, too.
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newDelete(NotePad.Notes.CONTENT_URI).build());
+        mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, listProjection, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests that the metrics record nothing until they're enabled, and then count each entry
+     * point by URI pattern, along with rows, streamed bytes and notifications.
+     */
+    public void testMetrics() throws IOException {
+        ProviderMetrics metrics = getProvider().getMetrics();
+        Bundle result = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.METHOD_GET_METRICS, null, null);
+        assertFalse(result.getBoolean(NotePad.KEY_METRICS_ENABLED));
+
+        // Disabled metrics record nothing.
+        insertData();
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, new ContentValues());
+        mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null).close();
+        assertNull(metrics.getLatency(ProviderMetrics.INSERT, 1));
+        assertNull(metrics.getLatency(ProviderMetrics.QUERY, 1));
+        assertEquals(0, metrics.getNotifications(2));
+
+        result = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.METHOD_SET_METRICS_ENABLED, "true", null);
+        assertTrue(result.getBoolean(NotePad.KEY_METRICS_ENABLED));
+
+        // Each query is counted under its URI pattern, with the rows it returned.
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        cursor.close();
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1);
+        mMockResolver.query(noteUri, null, null, null, null).close();
+        assertEquals(1, metrics.getLatency(ProviderMetrics.QUERY, 1).getCount());
+        assertEquals(TEST_NOTES.length + 1, metrics.getRows(ProviderMetrics.QUERY, 1));
+        assertEquals(1, metrics.getLatency(ProviderMetrics.QUERY, 2).getCount());
+        assertEquals(1, metrics.getRows(ProviderMetrics.QUERY, 2));
+
+        // Writes are counted with the rows they changed, and notifications by URI pattern.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Changed");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(1, metrics.getRows(ProviderMetrics.UPDATE, 2));
+        assertEquals(1, metrics.getNotifications(2));
+        assertEquals(1, mMockResolver.delete(noteUri, null, null));
+        assertEquals(1, metrics.getLatency(ProviderMetrics.DELETE, 2).getCount());
+
+        // Exports count the bytes they wrote.
+        String export = readStream(NotePad.Notes.CONTENT_URI);
+        assertEquals(export.getBytes("UTF-8").length, metrics.getBytesStreamed());
+
+        result = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.METHOD_GET_METRICS, null, null);
+        String report = result.getString(NotePad.KEY_METRICS_REPORT);
+        assertTrue(report, report.contains("query notes: n=1"));
+        assertTrue(report, report.contains("update note_id: n=1"));
+
+        // Reset clears everything; disabling stops recording.
+        mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_RESET_METRICS, null, null);
+        assertNull(metrics.getLatency(ProviderMetrics.QUERY, 1));
+        assertEquals(0, metrics.getBytesStreamed());
+        mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.METHOD_SET_METRICS_ENABLED, "false", null);
+        mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null).close();
+        assertNull(metrics.getLatency(ProviderMetrics.QUERY, 1));
+    }
+
+    /*
+     * Tests that queries over the threshold are logged with their SQL, the shape of their
+     * arguments and their plan, without the values the user typed, that results served from the
+     * cache aren't logged, and that the log keeps only the latest queries.
+     */
+    public void testSlowQueryLog() {
+        insertData();
+        SlowQueryLog log = getProvider().getSlowQueries();
+        Bundle result = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.METHOD_SET_SLOW_QUERY_THRESHOLD, "0", null);
+        assertEquals(0, result.getLong(NotePad.KEY_SLOW_QUERY_THRESHOLD));
+
+        // A filtered list and a search, the way the list builds them.
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_CATEGORY_NAME },
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ? AND "
+                        + NotePad.Notes.COLUMN_NAME_TITLE + " != ?",
+                new String[] { "1", "Secret" }, null);
+        int rows = cursor.getCount();
+        cursor.close();
+        Uri search = NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.SEARCH_QUERY_PARAMETER, "Plaintext")
+                .build();
+        mMockResolver.query(search, null, null, null, null).close();
+        getProvider().awaitSlowQueryPlansForTest();
+
+        SlowQueryLog.Entry[] entries = log.getEntries();
+        assertEquals(2, entries.length);
+        assertEquals("notes", entries[0].uriPattern);
+        assertEquals(rows, entries[0].rows);
+        assertEquals("[num, text(6)]", entries[0].args);
+        assertTrue(entries[0].sql, entries[0].sql.contains("category_id = ?"));
+        assertTrue(entries[0].sql, entries[0].sql.contains("LEFT OUTER JOIN categories"));
+        assertFalse(entries[0].plan, TextUtils.isEmpty(entries[0].plan));
+        assertEquals("search", entries[1].uriPattern);
+        assertFalse(entries[1].sql, entries[1].sql.contains("Plaintext"));
+
+        // The same list again comes from the cache and runs no SQL.
+        mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_CATEGORY_NAME },
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ? AND "
+                        + NotePad.Notes.COLUMN_NAME_TITLE + " != ?",
+                new String[] { "1", "Secret" }, null).close();
+        assertEquals(2, log.getRecordedCount());
+
+        result = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.METHOD_GET_SLOW_QUERIES, null, null);
+        String report = result.getString(NotePad.KEY_SLOW_QUERIES);
+        assertTrue(report, report.contains("2 recorded"));
+        assertFalse(report, report.contains("Secret"));
+
+        // The log keeps only the latest queries. Each has its own argument, so none is a hit.
+        for (int i = 0; i < SlowQueryLog.DEFAULT_CAPACITY; i++) {
+            mMockResolver.query(NotePad.Categories.CONTENT_URI, null,
+                    NotePad.Categories._ID + " != ?", new String[] { String.valueOf(-i) },
+                    null).close();
+        }
+        getProvider().awaitSlowQueryPlansForTest();
+        entries = log.getEntries();
+        assertEquals(SlowQueryLog.DEFAULT_CAPACITY, entries.length);
+        assertEquals(SlowQueryLog.DEFAULT_CAPACITY + 2, log.getRecordedCount());
+        assertEquals("categories", entries[0].uriPattern);
+
+        // Clearing empties it, and a negative threshold turns it off.
+        mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.METHOD_CLEAR_SLOW_QUERIES, null, null);
+        assertEquals(0, log.getEntries().length);
+        mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.METHOD_SET_SLOW_QUERY_THRESHOLD, "-1", null);
+        mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null).close();
+        assertEquals(0, log.getRecordedCount());
+
+        assertEquals("SELECT * FROM notes WHERE title = '…' AND note LIKE '…'",
+                SlowQueryLog.maskLiterals(
+                        "SELECT * FROM notes WHERE title = 'it''s' AND note LIKE '%x%'"));
+    }
+
+    /**
+     * Tests that the latency histogram keeps percentiles within an eighth of the true value.
+     */
+    public void testMetricsHistogram() {
+        ProviderMetrics.Histogram histogram = new ProviderMetrics.Histogram();
+        for (int micros = 1; micros <= 10000; micros++) {
+            histogram.record(micros);
+        }
+        assertEquals(10000, histogram.getCount());
+        assertEquals(10000, histogram.getMax());
+        assertEquals(5000, histogram.getMean());
+        long p50 = histogram.getPercentile(50);
+        assertTrue(String.valueOf(p50), p50 >= 5000 && p50 <= 5000 + 5000 / 8);
+        long p99 = histogram.getPercentile(99);
+        assertTrue(String.valueOf(p99), p99 >= 9900 && p99 <= 10000);
+        assertEquals(10000, histogram.getPercentile(100));
+    }
+
+    /*
+     * Tests that the provider keeps the preview column in step with the note text.
+     */
+    public void testPreview() {
+        final String[] projection = { NotePad.Notes.COLUMN_NAME_PREVIEW };
+        StringBuilder longText = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            longText.append("0123456789");
+        }
+
+        // A short note is its own preview.
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Short", "A short note").getContentValues());
+        Cursor cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("A short note", cursor.getString(0));
+        cursor.close();
+
+        // A long note is cut to its first characters, and a preview from the caller is ignored.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, longText.toString());
+        values.put(NotePad.Notes.COLUMN_NAME_PREVIEW, "Ignored");
+        mMockResolver.update(noteUri, values, null, null);
+        cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(longText.substring(0, NotePadProvider.PREVIEW_LENGTH) + "...",
+                cursor.getString(0));
+        cursor.close();
+
+        // An update that leaves the text alone leaves the preview alone.
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        mMockResolver.update(noteUri, values, null, null);
+        cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertTrue(cursor.getString(0).startsWith("0123456789"));
+        cursor.close();
+
+        // Surrogate pairs count as one character and are never split.
+        StringBuilder emoji = new StringBuilder();
+        for (int i = 0; i < NotePadProvider.PREVIEW_LENGTH + 1; i++) {
+            emoji.appendCodePoint(0x1F600);
+        }
+        assertEquals(emoji.substring(0, emoji.offsetByCodePoints(0, NotePadProvider.PREVIEW_LENGTH))
+                + "...", NotePadProvider.makePreview(emoji.toString()));
+    }
+
+    /*
+     * Tests paged queries on the notes URI, both keyset ("after") and offset forms.
+     */
+    public void testPagedQueries() {
+        insertData();
+
+        final String[] projection = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+        };
+
+        // Walks the notes four at a time, newest first, continuing after the last row of each page.
+        String[][] expectedPages = {
+            { "Note9", "Note8", "Note7", "Note6" },
+            { "Note5", "Note4", "Note3", "Note2" },
+            { "Note1" },
+            { }
+        };
+        Uri pageUri = pageUri(4).build();
+        for (String[] expectedTitles : expectedPages) {
+            Cursor cursor = mMockResolver.query(pageUri, projection, null, null, null);
+            assertEquals(expectedTitles.length, cursor.getCount());
+            for (String expectedTitle : expectedTitles) {
+                assertTrue(cursor.moveToNext());
+                assertEquals(expectedTitle, cursor.getString(1));
+            }
+            if (cursor.moveToLast()) {
+                pageUri = pageUri(4)
+                        .appendQueryParameter(NotePad.Notes.PAGE_AFTER_MODIFIED_PARAMETER,
+                                String.valueOf(cursor.getLong(2)))
+                        .appendQueryParameter(NotePad.Notes.PAGE_AFTER_ID_PARAMETER,
+                                String.valueOf(cursor.getLong(0)))
+                        .build();
+            }
+            cursor.close();
+        }
+
+        // An offset skips the given number of rows.
+        Cursor cursor = mMockResolver.query(
+                pageUri(4).appendQueryParameter(NotePad.Notes.PAGE_OFFSET_PARAMETER, "8").build(),
+                projection, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Note1", cursor.getString(1));
+        cursor.close();
+
+        // Notes with the same modification date are neither repeated nor skipped across pages.
+        for (int i = 0; i < 3; i++) {
+            NoteInfo note = new NoteInfo("Tied" + i, "Same modification date as Note1");
+            note.setModificationDate(START_DATE);
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, note.getContentValues());
+        }
+        Set<Long> seenIds = new HashSet<Long>();
+        pageUri = pageUri(2).build();
+        while (true) {
+            cursor = mMockResolver.query(pageUri, projection, null, null, null);
+            if (!cursor.moveToFirst()) {
+                cursor.close();
+                break;
+            }
+            do {
+                assertTrue(seenIds.add(cursor.getLong(0)));
+            } while (cursor.moveToNext());
+            cursor.moveToLast();
+            pageUri = pageUri(2)
+                    .appendQueryParameter(NotePad.Notes.PAGE_AFTER_MODIFIED_PARAMETER,
+                            String.valueOf(cursor.getLong(2)))
+                    .appendQueryParameter(NotePad.Notes.PAGE_AFTER_ID_PARAMETER,
+                            String.valueOf(cursor.getLong(0)))
+                    .build();
+            cursor.close();
+        }
+        assertEquals(TEST_NOTES.length + 3, seenIds.size());
+
+        // A paged cursor walks the same rows forward and backward, with the pages next to the
+        // current one prefetched in the background.
+        PagedNotesCursor paged = new PagedNotesCursor(mMockResolver, NotePad.Notes.CONTENT_URI,
+                projection, null, null, 2);
+        paged.loadFirstPage();
+        assertEquals(TEST_NOTES.length + 3, paged.getCount());
+        List<Long> forward = new ArrayList<Long>();
+        while (paged.moveToNext()) {
+            forward.add(paged.getLong(0));
+        }
+        assertEquals(seenIds, new HashSet<Long>(forward));
+        for (int position = paged.getCount() - 1; position >= 0; position--) {
+            assertTrue(paged.moveToPosition(position));
+            assertEquals(forward.get(position).longValue(), paged.getLong(0));
+        }
+        paged.close();
+
+        // Paged results have a fixed order, so a sort order is rejected.
+        try {
+            mMockResolver.query(pageUri(4).build(), projection, null, null,
+                    NotePad.Notes.COLUMN_NAME_TITLE);
+            fail("Expected an IllegalArgumentException for a sorted paged query");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /*
+     * Tests that the list's queries read notes in order from an index, rather than scanning the
+     * table and sorting the result in a temporary B-tree.
+     */
+    public void testListQueriesUseIndexes() {
+        insertData();
+
+        final String select = "SELECT notes._id, notes.title, categories.name FROM notes"
+                + " LEFT OUTER JOIN categories ON (notes.category_id = categories._id)";
+        final String pagedOrder = " ORDER BY notes.modified DESC, notes._id DESC LIMIT 50";
+
+        // The unfiltered list, its first page and a later page.
+        assertUsesIndex(select + " ORDER BY notes.modified DESC");
+        assertUsesIndex(select + pagedOrder);
+        assertUsesIndex(select + " WHERE notes.modified <= ? AND (notes.modified < ? OR notes._id < ?)"
+                + pagedOrder, String.valueOf(START_DATE), String.valueOf(START_DATE), "5");
+
+        // The category and todo filters.
+        assertUsesIndex(select + " WHERE category_id = ?" + pagedOrder, "1");
+        assertUsesIndex(select + " WHERE is_todo = 1 AND is_completed = 0" + pagedOrder);
+
+        // Todos by deadline.
+        assertUsesIndex("SELECT _id FROM notes WHERE due_date < ? ORDER BY due_date",
+                String.valueOf(START_DATE));
+    }
+
+    // Asserts that the query plan reads notes through an index and has no sort step.
+    private void assertUsesIndex(String sql, String... args) {
+        Cursor plan = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        StringBuilder details = new StringBuilder();
+        int detailIndex = plan.getColumnIndexOrThrow("detail");
+        while (plan.moveToNext()) {
+            details.append(plan.getString(detailIndex)).append('\n');
+        }
+        plan.close();
+
+        assertTrue("No notes index in plan for " + sql + ":\n" + details,
+                details.indexOf("INDEX notes_") >= 0);
+        assertTrue("Sort step in plan for " + sql + ":\n" + details,
+                details.indexOf("TEMP B-TREE") < 0);
+    }
+
+    /*
+     * Tests upgrading a database full of notes from each earlier schema version. The upgraded
+     * database must have the same schema as a new one, and every note must survive with its
+     * derived data (category, search index, preview) filled in.
+     */
+    public void testUpgradeFromEachVersion() {
+        NotePadProvider.DatabaseHelper helper = getProvider().getOpenHelperForTest();
+        final int latestVersion = mDb.getVersion();
+
+        // The schema that every upgrade must arrive at.
+        SQLiteDatabase fresh = SQLiteDatabase.create(null);
+        helper.onCreate(fresh);
+        Set<String> expectedColumns = getColumns(fresh, NotePad.Notes.TABLE_NAME);
+        Set<String> expectedSchema = getSchemaObjects(fresh);
+        fresh.close();
+
+        for (int version = NotePadProvider.DatabaseHelper.FIRST_MIGRATABLE_VERSION;
+                version < latestVersion; version++) {
+            SQLiteDatabase db = SQLiteDatabase.create(null);
+            try {
+                // Builds the schema of the historical version and fills it with notes.
+                createVersion2Schema(db);
+                NotePadProvider.DatabaseHelper.migrate(db, 2, version);
+                seedNotes(db, version);
+
+                Map<Integer, Long> timings =
+                        NotePadProvider.DatabaseHelper.migrate(db, version, latestVersion);
+                long totalMillis = 0;
+                for (long millis : timings.values()) {
+                    totalMillis += millis;
+                }
+                Log.i(TAG, "Upgraded " + UPGRADE_NOTE_COUNT + " notes from version " + version
+                        + " in " + totalMillis + " ms, by step: " + timings);
+
+                assertEquals(latestVersion - version, timings.size());
+                assertTrue("Upgrade from version " + version + " took " + totalMillis + " ms",
+                        totalMillis < MAX_UPGRADE_MILLIS);
+                assertEquals(expectedColumns, getColumns(db, NotePad.Notes.TABLE_NAME));
+                assertEquals(expectedSchema, getSchemaObjects(db));
+                checkUpgradedNotes(db);
+            } finally {
+                db.close();
+            }
+        }
+    }
+
+    // Creates the schema of version 2, the original NotePad sample, which only has notes.
+    private static void createVersion2Schema(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + NotePad.Notes.TABLE_NAME + " ("
+                + NotePad.Notes._ID + " INTEGER PRIMARY KEY,"
+                + NotePad.Notes.COLUMN_NAME_TITLE + " TEXT,"
+                + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT,"
+                + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER,"
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER"
+                + ");");
+    }
+
+    // Inserts UPGRADE_NOTE_COUNT notes, using only the columns that exist in every version.
+    private static void seedNotes(SQLiteDatabase db, int version) {
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < UPGRADE_NOTE_COUNT; i++) {
+                ContentValues values = new NoteInfo("Note" + i, seedBody(i)).getContentValues();
+                if (version >= 7) {
+                    // From version 7 on, the provider writes the preview along with the note.
+                    values.put(NotePad.Notes.COLUMN_NAME_PREVIEW,
+                            NotePadProvider.makePreview(seedBody(i)));
+                }
+                db.insert(NotePad.Notes.TABLE_NAME, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // Returns the body of the seeded note with the given index. Every third body is long.
+    private static String seedBody(int index) {
+        StringBuilder body = new StringBuilder("marker" + index + " 笔记内容 " + index);
+        if (index % 3 == 0) {
+            for (int i = 0; i < 20; i++) {
+                body.append(" lorem ipsum");
+            }
+        }
+        return body.toString();
+    }
+
+    // Checks the seeded notes after an upgrade.
+    private static void checkUpgradedNotes(SQLiteDatabase db) {
+        Cursor cursor = db.query(NotePad.Notes.TABLE_NAME, new String[] {
+                NotePad.Notes.COLUMN_NAME_TITLE,
+                NotePad.Notes.COLUMN_NAME_NOTE,
+                NotePad.Notes.COLUMN_NAME_PREVIEW,
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID,
+                NotePad.Notes.COLUMN_NAME_IS_TODO
+        }, null, null, null, null, NotePad.Notes._ID);
+        assertEquals(UPGRADE_NOTE_COUNT, cursor.getCount());
+        for (int i = 0; cursor.moveToNext(); i++) {
+            assertEquals("Note" + i, cursor.getString(0));
+            assertEquals(seedBody(i), cursor.getString(1));
+            assertEquals(NotePadProvider.makePreview(seedBody(i)), cursor.getString(2));
+            assertEquals(1, cursor.getLong(3));
+            assertEquals(0, cursor.getInt(4));
+        }
+        cursor.close();
+
+        // The notes are in the default category, which exists.
+        cursor = db.rawQuery("SELECT " + NotePad.Categories.COLUMN_NAME_CATEGORY_NAME + " FROM "
+                + NotePad.Categories.TABLE_NAME + " WHERE " + NotePad.Categories._ID + " = 1",
+                null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(NotePad.Categories.DEFAULT_CATEGORY_NAME, cursor.getString(0));
+        cursor.close();
+
+        // The notes are in the search index.
+        cursor = db.rawQuery("SELECT docid FROM notes_fts WHERE notes_fts MATCH ?",
+                new String[] { "marker" + (UPGRADE_NOTE_COUNT - 1) });
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+    }
+
+    // Returns the names of the columns of a table.
+    private static Set<String> getColumns(SQLiteDatabase db, String table) {
+        Set<String> columns = new HashSet<String>();
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        while (cursor.moveToNext()) {
+            columns.add(cursor.getString(cursor.getColumnIndexOrThrow("name")));
+        }
+        cursor.close();
+        return columns;
+    }
+
+    // Returns the type and name of each table, index and trigger in a database.
+    private static Set<String> getSchemaObjects(SQLiteDatabase db) {
+        Set<String> objects = new HashSet<String>();
+        Cursor cursor = db.rawQuery("SELECT type, name FROM sqlite_master"
+                + " WHERE name NOT LIKE 'sqlite_%' AND name != 'android_metadata'", null);
+        while (cursor.moveToNext()) {
+            objects.add(cursor.getString(0) + " " + cursor.getString(1));
+        }
+        cursor.close();
+        return objects;
+    }
+
+    // Builds a paged notes URI with the given page size.
+    private static Uri.Builder pageUri(int pageSize) {
+        return NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.PAGE_SIZE_PARAMETER, String.valueOf(pageSize));
+    }
+
+    // Builds a search URI for the given query text.
+    private static Uri searchUri(String query) {
+        return NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.SEARCH_QUERY_PARAMETER, query)
+                .build();
+    }
+
     // A utility for converting note data to a ContentValues map.
     private static class NoteInfo {
         String title;
@@ -0,0 +1,75 @@
+package com.example.android.notepad;
+
+import junit.framework.TestCase;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Tests {@link TimestampFormatter}: absolute times must match SimpleDateFormat, memoized
+ * strings must be reused within a minute (within a day for dates), and recent times must be
+ * shown relative to now.
+ */
+public class TimestampFormatterTest extends TestCase {
+
+    private static final long MINUTE = 60 * 1000L;
+    private static final long HOUR = 60 * MINUTE;
+
+    public void testFormat() {
+        SimpleDateFormat expected = new SimpleDateFormat("yyyy-MM-dd HH:mm", Locale.getDefault());
+        TimestampFormatter formatter = TimestampFormatter.getDateTimeInstance();
+
+        long now = System.currentTimeMillis();
+        for (long timestamp : new long[] { 0, -1, -MINUTE - 1, now, now - 400 * 24 * HOUR }) {
+            assertEquals(expected.format(new Date(timestamp)), formatter.format(timestamp));
+        }
+
+        // The same minute yields the same string, a different minute does not
+        long minute = now - now % MINUTE;
+        String text = formatter.format(minute);
+        assertSame(text, formatter.format(minute + MINUTE - 1));
+        assertFalse(text.equals(formatter.format(minute + MINUTE)));
+    }
+
+    public void testFormatDate() {
+        SimpleDateFormat expected = new SimpleDateFormat("yyyy-MM-dd", Locale.getDefault());
+        long now = System.currentTimeMillis();
+        TimestampFormatter formatter = TimestampFormatter.getDateInstance();
+        for (long timestamp : new long[] { 0, -1, now, now - 400 * 24 * HOUR }) {
+            assertEquals(expected.format(new Date(timestamp)), formatter.format(timestamp));
+        }
+
+        // The whole local day shares one memoized string, the next day does not
+        Calendar day = Calendar.getInstance();
+        day.setTimeInMillis(now);
+        day.set(Calendar.HOUR_OF_DAY, 0);
+        day.set(Calendar.MINUTE, 0);
+        day.set(Calendar.SECOND, 0);
+        day.set(Calendar.MILLISECOND, 0);
+        long start = day.getTimeInMillis();
+        day.add(Calendar.DAY_OF_MONTH, 1);
+        long end = day.getTimeInMillis();
+        String text = formatter.format(start);
+        assertSame(text, formatter.format(start + 12 * HOUR + 34 * MINUTE));
+        assertSame(text, formatter.format(end - 1));
+        assertFalse(text.equals(formatter.format(end)));
+    }
+
+    public void testFormatRelative() {
+        TimestampFormatter formatter = TimestampFormatter.getDateTimeInstance();
+        long now = System.currentTimeMillis();
+
+        assertEquals("刚刚", formatter.formatRelative(now - 59 * 1000L, now));
+        assertEquals("5 分钟前", formatter.formatRelative(now - 5 * MINUTE - 1, now));
+        assertEquals("59 分钟前", formatter.formatRelative(now - HOUR + 1, now));
+        assertEquals("1 小时前", formatter.formatRelative(now - HOUR, now));
+        assertEquals("23 小时前", formatter.formatRelative(now - 24 * HOUR + 1, now));
+
+        // Older and future times are shown in full
+        assertEquals(formatter.format(now - 24 * HOUR),
+                formatter.formatRelative(now - 24 * HOUR, now));
+        assertEquals(formatter.format(now + MINUTE), formatter.formatRelative(now + MINUTE, now));
+    }
+}
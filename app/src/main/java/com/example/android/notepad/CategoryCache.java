@@ -0,0 +1,137 @@
+package com.example.android.notepad;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 进程内共享的分类缓存。
+ *
+ * 分类按创建时间升序加载一次，之后的读取都直接使用内存中的数据。缓存通过注册在
+ * {@link NotePad.Categories#CONTENT_URI} 上的 ContentObserver 失效，下次读取时重新加载。
+ */
+final class CategoryCache {
+
+    private static final String[] PROJECTION = new String[] {
+            NotePad.Categories._ID, // 0
+            NotePad.Categories.COLUMN_NAME_CATEGORY_NAME, // 1
+            NotePad.Categories.COLUMN_NAME_CATEGORY_COLOR // 2
+    };
+
+    private static CategoryCache sInstance;
+
+    private final Context mContext;
+
+    // 按创建时间排序的分类列表和按ID的索引；为 null 表示缓存已失效
+    private List<Category> mCategories;
+    private Map<Long, Category> mCategoriesById;
+
+    /**
+     * 缓存中的一个分类，内容不可变
+     */
+    static final class Category {
+        final long id;
+        final String name;
+        final int color;
+
+        Category(long id, String name, int color) {
+            this.id = id;
+            this.name = name;
+            this.color = color;
+        }
+    }
+
+    private CategoryCache(Context context) {
+        mContext = context;
+
+        // 分类有任何变化时使缓存失效
+        mContext.getContentResolver().registerContentObserver(
+                NotePad.Categories.CONTENT_URI, true, new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        invalidate();
+                    }
+                });
+    }
+
+    /**
+     * 获取进程内唯一的缓存实例
+     */
+    static synchronized CategoryCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CategoryCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * 返回按创建时间升序排列的全部分类（只读列表）
+     */
+    synchronized List<Category> getCategories() {
+        if (!ensureLoaded()) {
+            return Collections.emptyList();
+        }
+        return mCategories;
+    }
+
+    /**
+     * 返回指定ID的分类，不存在时返回 null
+     */
+    synchronized Category getCategory(long categoryId) {
+        if (!ensureLoaded()) {
+            return null;
+        }
+        return mCategoriesById.get(categoryId);
+    }
+
+    /**
+     * 使缓存失效。修改分类后立即读取的调用者应先调用此方法，因为变更通知是异步送达的。
+     */
+    synchronized void invalidate() {
+        mCategories = null;
+        mCategoriesById = null;
+    }
+
+    /**
+     * 如有必要从提供者加载分类。查询失败时不缓存结果，返回 false。
+     */
+    private boolean ensureLoaded() {
+        if (mCategories != null) {
+            return true;
+        }
+
+        List<Category> categories = new ArrayList<>();
+        Map<Long, Category> categoriesById = new HashMap<>();
+
+        Cursor cursor = mContext.getContentResolver().query(
+                NotePad.Categories.CONTENT_URI,
+                PROJECTION,
+                null, null, NotePad.Categories.COLUMN_NAME_CREATE_DATE + " ASC"
+        );
+
+        if (cursor == null) {
+            return false;
+        }
+
+        try {
+            while (cursor.moveToNext()) {
+                Category category = new Category(
+                        cursor.getLong(0), cursor.getString(1), cursor.getInt(2));
+                categories.add(category);
+                categoriesById.put(category.id, category);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        mCategories = Collections.unmodifiableList(categories);
+        mCategoriesById = categoriesById;
+        return true;
+    }
+}
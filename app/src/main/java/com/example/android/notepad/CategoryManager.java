@@ -74,30 +74,25 @@ public class CategoryManager extends Activity {
 
     private void loadCategories() {
         categories.clear();
-        Cursor cursor = getContentResolver().query(
-                NotePad.Categories.CONTENT_URI,
-                new String[]{
-                        NotePad.Categories._ID,
-                        NotePad.Categories.COLUMN_NAME_CATEGORY_NAME,
-                        NotePad.Categories.COLUMN_NAME_CATEGORY_COLOR
-                },
-                null, null, NotePad.Categories.COLUMN_NAME_CREATE_DATE + " ASC"
-        );
-
-        if (cursor != null) {
-            while (cursor.moveToNext()) {
-                Category category = new Category();
-                category.id = cursor.getLong(0);
-                category.name = cursor.getString(1);
-                category.color = cursor.getInt(2);
-                categories.add(category);
-            }
-            cursor.close();
+        for (CategoryCache.Category cached : CategoryCache.getInstance(this).getCategories()) {
+            Category category = new Category();
+            category.id = cached.id;
+            category.name = cached.name;
+            category.color = cached.color;
+            categories.add(category);
         }
 
         adapter.notifyDataSetChanged();
     }
 
+    /**
+     * 修改分类后重新加载。变更通知是异步送达缓存的，所以先主动使缓存失效。
+     */
+    private void reloadCategories() {
+        CategoryCache.getInstance(this).invalidate();
+        loadCategories();
+    }
+
     private void addCategory() {
         String categoryName = etCategoryName.getText().toString().trim();
         if (categoryName.isEmpty()) {
@@ -113,7 +108,7 @@ public class CategoryManager extends Activity {
         try {
             getContentResolver().insert(NotePad.Categories.CONTENT_URI, values);
             etCategoryName.setText("");
-            loadCategories();
+            reloadCategories();
             Toast.makeText(this, "分类添加成功", Toast.LENGTH_SHORT).show();
         } catch (Exception e) {
             Toast.makeText(this, "分类名称已存在", Toast.LENGTH_SHORT).show();
@@ -174,7 +169,7 @@ public class CategoryManager extends Activity {
                 new String[]{String.valueOf(categoryId)}
         );
 
-        loadCategories();
+        reloadCategories();
     }
 
     private void deleteCategory(Category category) {
@@ -221,7 +216,7 @@ public class CategoryManager extends Activity {
                 new String[]{String.valueOf(categoryId)}
         );
 
-        loadCategories();
+        reloadCategories();
         Toast.makeText(this, "分类删除成功", Toast.LENGTH_SHORT).show();
     }
 
@@ -2,7 +2,6 @@ package com.example.android.notepad;
 
 import android.app.Dialog;
 import android.content.Context;
-import android.database.Cursor;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.AdapterView;
@@ -82,31 +81,19 @@ public class CategorySelectDialog extends Dialog {
 
     private void loadCategories() {
         categories.clear();
-        Cursor cursor = context.getContentResolver().query(
-                NotePad.Categories.CONTENT_URI,
-                new String[]{
-                        NotePad.Categories._ID,
-                        NotePad.Categories.COLUMN_NAME_CATEGORY_NAME
-                },
-                null, null, NotePad.Categories.COLUMN_NAME_CREATE_DATE + " ASC"
-        );
-
-        if (cursor != null) {
-            List<String> categoryNames = new ArrayList<>();
-            while (cursor.moveToNext()) {
-                CategoryItem category = new CategoryItem();
-                category.id = cursor.getLong(0);
-                category.name = cursor.getString(1);
-                categories.add(category);
-                categoryNames.add(category.name);
-            }
-            cursor.close();
-
-            ArrayAdapter<String> adapter = new ArrayAdapter<>(
-                    context, android.R.layout.simple_spinner_item, categoryNames);
-            adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
-            categorySpinner.setAdapter(adapter);
+        List<String> categoryNames = new ArrayList<>();
+        for (CategoryCache.Category cached : CategoryCache.getInstance(context).getCategories()) {
+            CategoryItem category = new CategoryItem();
+            category.id = cached.id;
+            category.name = cached.name;
+            categories.add(category);
+            categoryNames.add(category.name);
         }
+
+        ArrayAdapter<String> adapter = new ArrayAdapter<>(
+                context, android.R.layout.simple_spinner_item, categoryNames);
+        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        categorySpinner.setAdapter(adapter);
     }
 
     public void setSelectedCategory(long categoryId) {
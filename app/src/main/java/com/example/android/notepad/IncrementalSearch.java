@@ -0,0 +1,86 @@
+package com.example.android.notepad;
+
+import android.database.Cursor;
+
+/**
+ * 边输入边搜索时复用上一次的搜索结果。
+ *
+ * 搜索词的每个词都按前缀匹配，而且所有词都必须匹配，所以在上一次的搜索词后面继续输入
+ * 只会让结果变少：新结果一定在上一次匹配到的笔记之中。这时只需在这些笔记里查找，
+ * 不必重新扫描全部笔记（对于不使用全文索引的中文搜索，这避免了全表扫描）。
+ *
+ * 笔记发生变化后上一次的结果可能已经不完整，调用者应调用 {@link #reset()}。
+ */
+final class IncrementalSearch {
+
+    // 上一次的结果不超过这个数量时才复用；结果太多时按ID限定并不比重新搜索快
+    static final int MAX_REFINE_IDS = 1000;
+
+    // 上一次搜索的搜索词、筛选条件和匹配到的笔记ID；没有可复用的结果时 mIds 为 null
+    private String mQuery;
+    private String mFilter;
+    private long[] mIds;
+
+    /**
+     * 返回把搜索限定在上一次结果中的查询条件；不能复用上一次的结果时返回 null。
+     *
+     * @param query 新的搜索词
+     * @param filter 除搜索词外的其他筛选条件，筛选条件不同的结果不能复用
+     */
+    String refineSelection(String query, String filter) {
+        if (mIds == null || !filter.equals(mFilter) || query.equals(mQuery)
+                || !query.startsWith(mQuery)) {
+            return null;
+        }
+
+        // 中文搜索在没有中文分词器时改用子串匹配，两种匹配方式的结果不能互相限定
+        if (NotePadProvider.containsCjk(query) != NotePadProvider.containsCjk(mQuery)) {
+            return null;
+        }
+
+        // ID 是数字，可以直接写入查询条件
+        StringBuilder selection = new StringBuilder(NotePad.Notes.TABLE_NAME)
+                .append('.').append(NotePad.Notes._ID).append(" IN (");
+        for (int i = 0; i < mIds.length; i++) {
+            if (i > 0) {
+                selection.append(',');
+            }
+            selection.append(mIds[i]);
+        }
+        return selection.append(')').toString();
+    }
+
+    /**
+     * 保存一次搜索的结果，供之后的搜索复用。结果太多时不保存。
+     *
+     * @param query 搜索词
+     * @param filter 除搜索词外的其他筛选条件
+     * @param cursor 搜索结果；读取后位置会恢复到第一行之前
+     * @param idColumn 笔记ID所在的列
+     */
+    void setResults(String query, String filter, Cursor cursor, int idColumn) {
+        mQuery = query;
+        mFilter = filter;
+        if (cursor == null || cursor.getCount() > MAX_REFINE_IDS) {
+            mIds = null;
+            return;
+        }
+
+        long[] ids = new long[cursor.getCount()];
+        cursor.moveToPosition(-1);
+        for (int i = 0; cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(idColumn);
+        }
+        cursor.moveToPosition(-1);
+        mIds = ids;
+    }
+
+    /**
+     * 丢弃保存的结果
+     */
+    void reset() {
+        mQuery = null;
+        mFilter = null;
+        mIds = null;
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.android.notepad;
+
+/**
+ * 延迟直方图。
+ *
+ * 样本按毫秒记入固定的桶中，因此记录的开销和占用的内存都是常数。百分位数以所在桶的上界
+ * 估计（不超过记录到的最大值）。可以在多个线程中使用。
+ */
+final class LatencyHistogram {
+
+    // 各个桶的上界（毫秒，含）；更慢的样本记入最后一个桶
+    private static final long[] BUCKET_LIMITS = {
+            1, 2, 5, 10, 20, 30, 50, 75, 100, 150, 250, 500, 1000, 2500, 5000
+    };
+
+    private final long[] mCounts = new long[BUCKET_LIMITS.length + 1];
+    private long mCount;
+    private long mMax;
+
+    /**
+     * 记录一个样本
+     * @param millis 延迟（毫秒）
+     */
+    synchronized void record(long millis) {
+        int bucket = 0;
+        while (bucket < BUCKET_LIMITS.length && millis > BUCKET_LIMITS[bucket]) {
+            bucket++;
+        }
+        mCounts[bucket]++;
+        mCount++;
+        if (millis > mMax) {
+            mMax = millis;
+        }
+    }
+
+    /**
+     * 返回记录的样本数
+     */
+    synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * 返回百分位数的估计值（毫秒）：至少 percentile% 的样本不超过这个值
+     * @param percentile 0 到 100 之间的百分位
+     */
+    synchronized long getPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(mCount * percentile / 100);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_LIMITS.length; bucket++) {
+            seen += mCounts[bucket];
+            if (seen >= rank) {
+                return Math.min(BUCKET_LIMITS[bucket], mMax);
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * 清空所有样本
+     */
+    synchronized void reset() {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] = 0;
+        }
+        mCount = 0;
+        mMax = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "n=" + mCount + ", p50<=" + getPercentile(50) + "ms, p95<=" + getPercentile(95)
+                + "ms, p99<=" + getPercentile(99) + "ms, max=" + mMax + "ms";
+    }
+}
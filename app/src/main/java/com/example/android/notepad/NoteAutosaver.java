@@ -0,0 +1,322 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 在后台线程把一条笔记的修改写入提供者（write-behind）。
+ *
+ * 调用者在主线程中提交要写入的值后立即返回。还没开始写入的值会与之后提交的值合并，
+ * 所以连续的修改只写入最后的结果。同一条笔记的写入按提交的顺序依次执行。笔记的内容可以用
+ * {@link TextMirror} 提交：写入线程在写入时才从中取得文字，主线程不必复制整个内容。
+ *
+ * 所有笔记共用一个写入线程。每条笔记最多只有一个等待执行的写入任务（之后提交的值合并到
+ * 其中），所以队列的长度不超过打开的笔记数，提交的值总会写入，不会丢失。
+ *
+ * 放弃修改（{@link #replace(ContentValues)}）和删除（{@link #delete()}）也在写入线程中、
+ * 排在正在进行的写入之后执行，所以调用者不必在主线程中等待一次很大的写入完成。
+ */
+final class NoteAutosaver {
+
+    private static final String TAG = "NoteAutosaver";
+
+    // flush() 和 awaitPendingWrites() 等待写入完成的最长时间
+    private static final long MAX_WAIT_MILLIS = 5000;
+
+    // 队列没有上限：每条笔记最多占一个位置，拒绝一次写入就会丢失修改
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            1, 1, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, TAG);
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                }
+            });
+
+    // 所有笔记的写入统计
+    private static final LatencyHistogram sSaveLatency = new LatencyHistogram();
+    private static final AtomicLong sSaves = new AtomicLong();
+    private static final AtomicLong sCoalesced = new AtomicLong();
+    private static final AtomicLong sBytesWritten = new AtomicLong();
+
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+
+    // 以下成员只在持有 mLock 时访问
+    private final Object mLock = new Object();
+    // 还没开始写入的值；没有时为 null
+    private ContentValues mPending;
+    // 写入时从中取得笔记内容；为 null 时内容（如果有）已在 mPending 中
+    private TextMirror mPendingText;
+    // 是否要在写入 mPending 之后删除笔记
+    private boolean mDeletePending;
+    // 笔记是否已经或即将被删除；之后提交的值不再写入
+    private boolean mDeleted;
+    // 是否已提交了写入任务，或者正在写入
+    private boolean mScheduled;
+
+    private final Runnable mWriteTask = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                ContentValues values;
+                TextMirror text;
+                boolean delete;
+                synchronized (mLock) {
+                    values = mPending;
+                    text = mPendingText;
+                    delete = mDeletePending;
+                    mPending = null;
+                    mPendingText = null;
+                    mDeletePending = false;
+                    if (values == null && !delete) {
+                        mScheduled = false;
+                        mLock.notifyAll();
+                        return;
+                    }
+                }
+                if (values != null) {
+                    if (text != null) {
+                        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text.snapshot());
+                    }
+                    write(values);
+                }
+                if (delete) {
+                    deleteNote();
+                }
+            }
+        }
+    };
+
+    /**
+     * @param uri 要写入的笔记
+     */
+    NoteAutosaver(ContentResolver resolver, Uri uri) {
+        mResolver = resolver;
+        mUri = uri;
+    }
+
+    /**
+     * 提交要写入的值，在后台线程写入。与还没开始写入的值合并，相同的列以这次的值为准。
+     */
+    void save(ContentValues values) {
+        synchronized (mLock) {
+            if (mDeleted) {
+                return;
+            }
+            if (mPending == null) {
+                mPending = new ContentValues(values);
+            } else {
+                mPending.putAll(values);
+                sCoalesced.incrementAndGet();
+            }
+            if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+                mPendingText = null;
+            }
+            schedule();
+        }
+    }
+
+    /**
+     * 与 {@link #save(ContentValues)} 相同，但笔记内容在写入时从 text 取得，所以写入的是
+     * 那时的内容
+     */
+    void save(ContentValues values, TextMirror text) {
+        synchronized (mLock) {
+            if (mDeleted) {
+                return;
+            }
+            save(values);
+            mPendingText = text;
+        }
+    }
+
+    /**
+     * 等待所有已提交的值写入完成。会阻塞，不要在主线程中调用。
+     */
+    void flush() {
+        synchronized (mLock) {
+            schedule();
+            awaitIdle();
+        }
+    }
+
+    /**
+     * 丢弃还没开始写入的值，改为写入 values（不与之前提交的值合并），例如放弃修改、恢复原来
+     * 的内容。在正在进行的写入之后执行，不等待写入完成。
+     */
+    void replace(ContentValues values) {
+        synchronized (mLock) {
+            if (mDeleted) {
+                return;
+            }
+            mPending = new ContentValues(values);
+            mPendingText = null;
+            schedule();
+        }
+    }
+
+    /**
+     * 丢弃还没开始写入的值并删除笔记，之后提交的值不再写入。在正在进行的写入之后执行，
+     * 不等待删除完成。
+     */
+    void delete() {
+        synchronized (mLock) {
+            mPending = null;
+            mPendingText = null;
+            mDeletePending = true;
+            mDeleted = true;
+            schedule();
+        }
+    }
+
+    /**
+     * 等待此前提交给所有笔记的写入完成，例如在读取一条刚保存的笔记之前。会阻塞，不要在主线程
+     * 中调用。
+     */
+    static void awaitPendingWrites() {
+        // 写入线程按顺序执行任务，所以空任务完成时，之前提交的写入都已完成
+        FutureTask<Void> marker = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, null);
+        EXECUTOR.execute(marker);
+        try {
+            marker.get(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            Log.w(TAG, "Timed out waiting for pending saves");
+        } catch (ExecutionException e) {
+            // 空任务不会失败
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // 需要持有 mLock。已有写入任务时不再提交：任务在结束前会写入之后提交的值
+    private void schedule() {
+        if (mScheduled || (mPending == null && !mDeletePending)) {
+            return;
+        }
+        EXECUTOR.execute(mWriteTask);
+        mScheduled = true;
+    }
+
+    // 需要持有 mLock
+    private void awaitIdle() {
+        long deadline = SystemClock.uptimeMillis() + MAX_WAIT_MILLIS;
+        while (mScheduled) {
+            long remaining = deadline - SystemClock.uptimeMillis();
+            if (remaining <= 0) {
+                Log.w(TAG, "Timed out waiting for the save of " + mUri);
+                return;
+            }
+            try {
+                mLock.wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void write(ContentValues values) {
+        long start = SystemClock.uptimeMillis();
+        try {
+            mResolver.update(mUri, values, null, null);
+        } catch (RuntimeException e) {
+            // 笔记可能已被删除；写入线程不能因此停止
+            Log.e(TAG, "Failed to save " + mUri, e);
+            return;
+        }
+        sSaveLatency.record(SystemClock.uptimeMillis() - start);
+        sSaves.incrementAndGet();
+        sBytesWritten.addAndGet(Utf8.length(values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE))
+                + Utf8.length(values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE)));
+    }
+
+    private void deleteNote() {
+        try {
+            mResolver.delete(mUri, null, null);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to delete " + mUri, e);
+        }
+    }
+
+    /**
+     * 笔记内容的副本，随每次编辑只更新改动的部分，供写入线程在写入时取得整个内容，这样主线程
+     * 不必每次保存都复制一遍很长的内容。编辑和取得内容互斥：写入线程复制内容时，主线程上的
+     * 编辑最多等待这一次复制。可以在多个线程中使用。
+     */
+    static final class TextMirror {
+
+        private final StringBuilder mText = new StringBuilder();
+
+        /**
+         * 把 [start, start + before) 替换为 s 中的 [start, start + count)，参数与
+         * {@link android.text.TextWatcher#onTextChanged} 相同
+         */
+        synchronized void onTextChanged(CharSequence s, int start, int before, int count) {
+            mText.delete(start, start + before);
+            mText.insert(start, s, start, start + count);
+        }
+
+        /**
+         * 返回当前的内容
+         */
+        synchronized String snapshot() {
+            return mText.toString();
+        }
+    }
+
+    /**
+     * 返回所有笔记写入的延迟（毫秒）
+     */
+    static LatencyHistogram getSaveLatency() {
+        return sSaveLatency;
+    }
+
+    /**
+     * 返回写入的次数
+     */
+    static long getSaveCount() {
+        return sSaves.get();
+    }
+
+    /**
+     * 返回合并到之后的写入中、没有单独写入的提交次数
+     */
+    static long getCoalescedCount() {
+        return sCoalesced.get();
+    }
+
+    /**
+     * 返回写入的标题和内容的字节数（UTF-8）
+     */
+    static long getBytesWritten() {
+        return sBytesWritten.get();
+    }
+
+    /**
+     * 返回写入统计的摘要
+     */
+    static String describeMetrics() {
+        return "saves=" + sSaves.get() + ", coalesced=" + sCoalesced.get() + ", bytes="
+                + sBytesWritten.get() + ", latency " + sSaveLatency;
+    }
+}
@@ -0,0 +1,801 @@
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 大笔记内容的存储：分段保存的基础文本，加上之后的一串编辑差量。
+ *
+ * SQLite 修改一行时会重写整条记录，包括保存长文本的所有溢出页，所以在几 MB 的笔记中改一个字
+ * 也要写入几 MB；一整条几 MB 的内容也放不进 CursorWindow。内容超过 {@link #getLargeBodyLength()}
+ * 的笔记，笔记表中的内容列为 NULL，内容按顺序分成不超过 {@link #CHUNK_LENGTH} 个字符的段，
+ * 保存在 {@link #CHUNKS_TABLE_NAME} 表中；之后的每次保存只在 {@link #DELTAS_TABLE_NAME} 表中
+ * 追加一条差量（位置、删除的长度、插入的文本）。
+ *
+ * 差量积累到 {@link #MAX_DELTAS} 条，或者第一条差量写入 {@link #COMPACT_DELAY_MILLIS} 之后，
+ * 在后台把差量合并到基础文本中：只重写包含改动的段，并更新全文搜索索引中的内容；在此之前，
+ * 搜索到的是上次合并时的内容。读取时由基础文本和差量还原出完整的内容，最近读写的一条笔记的
+ * 内容保存在内存中；也可以用 {@link #queryChunks(long)} 逐段读取，没有差量时不必一次取出整条内容。
+ *
+ * 写入方法由提供者在它的事务中调用；读取和合并各自在事务中进行，所以看到的基础文本和差量总是一致的。
+ * 为了避免死锁，总是先开始数据库事务，再获取这个对象的锁。
+ */
+final class NoteBodyStore {
+
+    private static final String TAG = "NoteBodyStore";
+
+    /**
+     * 保存基础文本各段的表，按 seq 的顺序连接即基础文本。seq 之间留有间隔，
+     * 重写中间的段时不必给之后的段重新编号
+     */
+    static final String CHUNKS_TABLE_NAME = "note_chunks";
+
+    /**
+     * 保存编辑差量的表，按 seq 的顺序应用到基础文本上
+     */
+    static final String DELTAS_TABLE_NAME = "note_deltas";
+
+    static final String COLUMN_NAME_NOTE_ID = "note_id";
+    static final String COLUMN_NAME_SEQ = "seq";
+    static final String COLUMN_NAME_LENGTH = "length";
+    static final String COLUMN_NAME_TEXT = "text";
+    static final String COLUMN_NAME_POSITION = "position";
+    static final String COLUMN_NAME_REMOVED = "removed";
+    static final String COLUMN_NAME_INSERTED = "inserted";
+
+    /**
+     * 默认的大笔记长度（字符）：内容不短于这个长度的笔记以差量方式保存
+     */
+    static final int DEFAULT_LARGE_BODY_LENGTH = 64 * 1024;
+
+    /**
+     * 写入时每段的最大长度（字符）。即使全是 4 字节的字符，一段也远小于 CursorWindow 的大小
+     */
+    static final int CHUNK_LENGTH = 64 * 1024;
+
+    /**
+     * 一次写入的相邻两段的 seq 之差
+     */
+    static final long SEQ_SPACING = 1 << 20;
+
+    /**
+     * 差量达到这个数量时立即在后台合并
+     */
+    static final int MAX_DELTAS = 32;
+
+    /**
+     * 第一条差量写入多久之后在后台合并（毫秒）
+     */
+    static final long COMPACT_DELAY_MILLIS = 30 * 1000;
+
+    /**
+     * 全文搜索索引中保存的内容的最大长度（字符）。每次合并都要重建这条笔记的索引，
+     * 所以很大的笔记只索引开头的部分
+     */
+    static final int SEARCH_INDEX_LENGTH = 1024 * 1024;
+
+    // 一条差量除插入的文本以外的大致字节数：记录头、note_id、seq、位置和删除的长度
+    private static final int DELTA_ROW_OVERHEAD = 16;
+
+    private static final ScheduledThreadPoolExecutor EXECUTOR = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, TAG);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+
+    private final SQLiteOpenHelper mOpenHelper;
+    private volatile int mLargeBodyLength = DEFAULT_LARGE_BODY_LENGTH;
+
+    // 写入统计：保存的内容的字节数（整条写入时要写的量），以及实际写入这里的字节数，包括合并
+    private final AtomicLong mLogicalBytes = new AtomicLong();
+    private final AtomicLong mStoredBytes = new AtomicLong();
+    private final AtomicLong mDeltaWrites = new AtomicLong();
+    private final AtomicLong mChunkWrites = new AtomicLong();
+    private final AtomicLong mCompactions = new AtomicLong();
+
+    // 以下成员只在持有这个对象的锁时访问
+    // 最近读写的一条笔记及其内容；没有时 mCached 为 null
+    private long mCachedId;
+    private Body mCached;
+    // 等待合并的笔记，以及已安排的合并任务
+    private final Set<Long> mPendingCompactions = new LinkedHashSet<Long>();
+    private ScheduledFuture<?> mCompaction;
+
+    // 合并一次只进行一个，在开始数据库事务之前获取
+    private final Object mCompactLock = new Object();
+
+    private final Runnable mCompactTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                compactPending();
+            } catch (RuntimeException e) {
+                // 数据库可能已关闭；下次写入时会重新安排
+                Log.e(TAG, "Failed to compact note bodies", e);
+            }
+        }
+    };
+
+    /**
+     * 一条笔记的完整内容、基础文本的分段，以及基础文本之后的差量数量
+     */
+    private static final class Body {
+        final String text;
+        final int deltaCount;
+
+        // 基础文本各段的 seq 和长度，按 seq 的顺序
+        final long[] seqs;
+        final int[] lengths;
+        final int baseLength;
+
+        // 当前内容与基础文本相同的开头和结尾的长度。由差量推算，可能比实际的短
+        final int unchangedPrefix;
+        final int unchangedSuffix;
+
+        Body(String text, int deltaCount, long[] seqs, int[] lengths, int baseLength,
+             int unchangedPrefix, int unchangedSuffix) {
+            this.text = text;
+            this.deltaCount = deltaCount;
+            this.seqs = seqs;
+            this.lengths = lengths;
+            this.baseLength = baseLength;
+            this.unchangedPrefix = unchangedPrefix;
+            this.unchangedSuffix = unchangedSuffix;
+        }
+
+        // 返回基础文本即 text、没有差量的内容
+        static Body compacted(String text, long[] seqs, int[] lengths) {
+            return new Body(text, 0, seqs, lengths, text.length(), text.length(), text.length());
+        }
+
+        // 返回把 position 处的 removed 个字符替换之后、内容为 text 的内容
+        Body edited(String text, int position, int removed) {
+            return new Body(text, deltaCount + 1, seqs, lengths, baseLength,
+                    Math.min(unchangedPrefix, position),
+                    Math.min(unchangedSuffix, this.text.length() - position - removed));
+        }
+    }
+
+    NoteBodyStore(SQLiteOpenHelper openHelper) {
+        mOpenHelper = openHelper;
+    }
+
+    /**
+     * 创建分段表和差量表。删除笔记时，它的分段和差量随之删除
+     */
+    static void createTables(SQLiteDatabase db) {
+        createChunksTable(db);
+        createDeltasTable(db, DELTAS_TABLE_NAME);
+    }
+
+    /**
+     * 创建分段表。长度列在文本之前，只读取各段的长度时不必读取保存文本的溢出页
+     */
+    static void createChunksTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + CHUNKS_TABLE_NAME + " ("
+                + COLUMN_NAME_NOTE_ID + " INTEGER NOT NULL REFERENCES "
+                + NotePad.Notes.TABLE_NAME + "(" + NotePad.Notes._ID + ") ON DELETE CASCADE,"
+                + COLUMN_NAME_SEQ + " INTEGER NOT NULL,"
+                + COLUMN_NAME_LENGTH + " INTEGER NOT NULL,"
+                + COLUMN_NAME_TEXT + " TEXT NOT NULL,"
+                + "PRIMARY KEY (" + COLUMN_NAME_NOTE_ID + ", " + COLUMN_NAME_SEQ + ")"
+                + ");");
+    }
+
+    /**
+     * 以 table 为名创建差量表
+     */
+    static void createDeltasTable(SQLiteDatabase db, String table) {
+        db.execSQL("CREATE TABLE " + table + " ("
+                + COLUMN_NAME_NOTE_ID + " INTEGER NOT NULL REFERENCES "
+                + NotePad.Notes.TABLE_NAME + "(" + NotePad.Notes._ID + ") ON DELETE CASCADE,"
+                + COLUMN_NAME_SEQ + " INTEGER NOT NULL,"
+                + COLUMN_NAME_POSITION + " INTEGER NOT NULL,"
+                + COLUMN_NAME_REMOVED + " INTEGER NOT NULL,"
+                + COLUMN_NAME_INSERTED + " TEXT NOT NULL,"
+                + "PRIMARY KEY (" + COLUMN_NAME_NOTE_ID + ", " + COLUMN_NAME_SEQ + ")"
+                + ");");
+    }
+
+    /**
+     * 写入一段基础文本。长度按 Java 字符计数
+     */
+    static void insertChunk(SQLiteDatabase db, long noteId, long seq, String text) {
+        db.execSQL("INSERT INTO " + CHUNKS_TABLE_NAME + " (" + COLUMN_NAME_NOTE_ID + ", "
+                + COLUMN_NAME_SEQ + ", " + COLUMN_NAME_LENGTH + ", " + COLUMN_NAME_TEXT
+                + ") VALUES (?, ?, ?, ?)", new Object[] { noteId, seq, text.length(), text });
+    }
+
+    /**
+     * 返回大笔记的长度（字符）
+     */
+    int getLargeBodyLength() {
+        return mLargeBodyLength;
+    }
+
+    /**
+     * 设置大笔记的长度（字符），供测试和性能测试使用。{@link Integer#MAX_VALUE} 表示不使用差量
+     */
+    void setLargeBodyLength(int length) {
+        mLargeBodyLength = length;
+    }
+
+    /**
+     * 返回内容是否应该保存在这里。已保存在这里的笔记缩短到大笔记长度的一半以下才移回笔记表，
+     * 以免长度在界线附近的笔记来回移动。需要在事务中调用
+     */
+    boolean shouldStore(SQLiteDatabase db, long noteId, String text) {
+        if (text == null) {
+            return false;
+        }
+        int largeBodyLength = mLargeBodyLength;
+        if (text.length() >= largeBodyLength) {
+            return true;
+        }
+        return text.length() >= largeBodyLength / 2 && isStored(db, noteId);
+    }
+
+    private boolean isStored(SQLiteDatabase db, long noteId) {
+        synchronized (this) {
+            if (mCached != null && mCachedId == noteId) {
+                return true;
+            }
+        }
+        return DatabaseUtils.longForQuery(db, "SELECT EXISTS (SELECT 1 FROM " + CHUNKS_TABLE_NAME
+                + " WHERE " + COLUMN_NAME_NOTE_ID + " = ?)",
+                new String[] { String.valueOf(noteId) }) != 0;
+    }
+
+    /**
+     * 返回笔记的内容是否保存在这里。不还原内容，也不开始事务
+     */
+    boolean contains(long noteId) {
+        return isStored(mOpenHelper.getReadableDatabase(), noteId);
+    }
+
+    /**
+     * 保存笔记的新内容。笔记表中的内容列应已设为 NULL。需要在提供者的事务中调用；
+     * 事务回滚时调用者应调用 {@link #discardCache()}。
+     *
+     * 新内容与当前内容只在一处不同时，只追加一条差量；改动的部分超过全文的四分之一时，
+     * 直接重写包含改动的段。
+     */
+    void write(SQLiteDatabase db, long noteId, String text) {
+        mLogicalBytes.addAndGet(Utf8.length(text));
+
+        synchronized (this) {
+            Body current = mCached != null && mCachedId == noteId ? mCached : load(db, noteId);
+            if (current == null) {
+                // 新转为差量方式保存的笔记
+                cache(noteId, writeAllChunks(db, noteId, text));
+                return;
+            }
+            if (current.text.equals(text)) {
+                return;
+            }
+
+            // 找出相同的开头和结尾，中间不同的部分即差量。不拆开代理对
+            String old = current.text;
+            int limit = Math.min(old.length(), text.length());
+            int prefix = 0;
+            while (prefix < limit && old.charAt(prefix) == text.charAt(prefix)) {
+                prefix++;
+            }
+            if (prefix > 0 && Character.isHighSurrogate(old.charAt(prefix - 1))) {
+                prefix--;
+            }
+            int suffix = 0;
+            while (suffix < limit - prefix && old.charAt(old.length() - 1 - suffix)
+                    == text.charAt(text.length() - 1 - suffix)) {
+                suffix++;
+            }
+            if (suffix > 0 && Character.isLowSurrogate(old.charAt(old.length() - suffix))) {
+                suffix--;
+            }
+            int removed = old.length() - prefix - suffix;
+            String inserted = text.substring(prefix, text.length() - suffix);
+            Body edited = current.edited(text, prefix, removed);
+
+            if (inserted.length() > text.length() / 4 || inserted.length() > CHUNK_LENGTH) {
+                cache(noteId, rewriteChunks(db, noteId, edited));
+                return;
+            }
+
+            db.execSQL("INSERT INTO " + DELTAS_TABLE_NAME + " (" + COLUMN_NAME_NOTE_ID + ", "
+                    + COLUMN_NAME_SEQ + ", " + COLUMN_NAME_POSITION + ", " + COLUMN_NAME_REMOVED
+                    + ", " + COLUMN_NAME_INSERTED + ") VALUES (?, ?, ?, ?, ?)",
+                    new Object[] { noteId, current.deltaCount, prefix, removed, inserted });
+            mDeltaWrites.incrementAndGet();
+            mStoredBytes.addAndGet(Utf8.length(inserted) + DELTA_ROW_OVERHEAD);
+            cache(noteId, edited);
+            scheduleCompaction(noteId, edited.deltaCount >= MAX_DELTAS);
+        }
+    }
+
+    /**
+     * 删除笔记保存在这里的内容，用于笔记缩短后移回笔记表。需要在提供者的事务中调用
+     */
+    void remove(SQLiteDatabase db, long noteId) {
+        synchronized (this) {
+            String[] args = { String.valueOf(noteId) };
+            db.delete(CHUNKS_TABLE_NAME, COLUMN_NAME_NOTE_ID + " = ?", args);
+            db.delete(DELTAS_TABLE_NAME, COLUMN_NAME_NOTE_ID + " = ?", args);
+            if (mCachedId == noteId) {
+                mCached = null;
+            }
+        }
+    }
+
+    /**
+     * 删除符合条件的笔记保存在这里的内容，用于同时修改多条笔记的内容。需要在提供者的事务中调用
+     * @param where 笔记表的筛选条件，null 表示所有笔记
+     */
+    void removeAll(SQLiteDatabase db, String where, String[] whereArgs) {
+        synchronized (this) {
+            String notes = COLUMN_NAME_NOTE_ID + " IN (SELECT " + NotePad.Notes._ID + " FROM "
+                    + NotePad.Notes.TABLE_NAME + (where != null ? " WHERE " + where : "") + ")";
+            db.delete(CHUNKS_TABLE_NAME, notes, whereArgs);
+            db.delete(DELTAS_TABLE_NAME, notes, whereArgs);
+            mCached = null;
+        }
+    }
+
+    /**
+     * 丢弃内存中的内容。写入所在的事务回滚后调用
+     */
+    synchronized void discardCache() {
+        mCached = null;
+    }
+
+    /**
+     * 返回笔记保存在这里的完整内容；内容保存在笔记表中时返回 null。
+     *
+     * 在事务中读取，以读到一致的基础文本和差量。这个版本的框架没有只读的延迟事务，
+     * beginTransactionNonExclusive() 是 BEGIN IMMEDIATE，会取得 SQLite 的写锁（RESERVED）：
+     * 在 WAL 模式下不阻塞其他的读取，但与写入互斥，直到读完。内存中有这条笔记时不开始事务。
+     */
+    String read(long noteId) {
+        synchronized (this) {
+            if (mCached != null && mCachedId == noteId) {
+                return mCached.text;
+            }
+        }
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            Body body;
+            synchronized (this) {
+                body = mCached != null && mCachedId == noteId ? mCached : load(db, noteId);
+                if (body != null) {
+                    cache(noteId, body);
+                }
+            }
+            db.setTransactionSuccessful();
+            return body != null ? body.text : null;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * 逐段读取笔记保存在这里的内容。结果有 {@link NotePad.Notes#_ID} 和
+     * {@link NotePad.Notes#COLUMN_NAME_CHUNK_TEXT} 两列，按顺序连接即完整的内容。
+     *
+     * 没有差量时直接返回分段表的查询结果，内容不会整条读入内存。有还没合并的差量时不在这里合并
+     * （合并要写入，留给后台），而是像 {@link #read(long)} 一样还原出完整的内容，再分段返回。
+     * 读取的同时又保存或合并了这条笔记时，之后读到的段可能来自新的内容，所以调用者应在两次保存
+     * 之间读完。
+     *
+     * @return 查询结果；内容保存在笔记表中时返回 null
+     */
+    Cursor queryChunks(long noteId) {
+        String text = null;
+        synchronized (this) {
+            if (mCached != null && mCachedId == noteId && mCached.deltaCount > 0) {
+                text = mCached.text;
+            }
+        }
+        if (text == null) {
+            SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+            String[] args = { String.valueOf(noteId) };
+            if (!hasDeltas(db, args)) {
+                Cursor cursor = db.query(CHUNKS_TABLE_NAME, new String[] {
+                        COLUMN_NAME_SEQ + " AS " + NotePad.Notes._ID,
+                        COLUMN_NAME_TEXT + " AS " + NotePad.Notes.COLUMN_NAME_CHUNK_TEXT
+                }, COLUMN_NAME_NOTE_ID + " = ?", args, null, null, COLUMN_NAME_SEQ);
+                int count = cursor.getCount();
+                // 查询的同时写入了差量时，读到的分段已不是完整的内容
+                if (!hasDeltas(db, args)) {
+                    if (count == 0) {
+                        cursor.close();
+                        return null;
+                    }
+                    return cursor;
+                }
+                cursor.close();
+            }
+            text = read(noteId);
+            if (text == null) {
+                return null;
+            }
+        }
+
+        // 按写入时的长度分段，不拆开代理对
+        MatrixCursor chunks = new MatrixCursor(new String[] {
+                NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_CHUNK_TEXT
+        }, countChunks(text.length()));
+        int start = 0;
+        for (int piece = 0; start < text.length(); piece++) {
+            int end = Math.min(start + CHUNK_LENGTH, text.length());
+            if (end < text.length() && Character.isHighSurrogate(text.charAt(end - 1))) {
+                end--;
+            }
+            chunks.addRow(new Object[] { piece, text.substring(start, end) });
+            start = end;
+        }
+        return chunks;
+    }
+
+    private static boolean hasDeltas(SQLiteDatabase db, String[] args) {
+        return DatabaseUtils.longForQuery(db, "SELECT EXISTS (SELECT 1 FROM " + DELTAS_TABLE_NAME
+                + " WHERE " + COLUMN_NAME_NOTE_ID + " = ?)", args) != 0;
+    }
+
+    /**
+     * 包装笔记查询的结果，使内容列返回完整的内容
+     * @param noteId 查询的笔记的 _id；查询多条笔记时为 -1，此时结果中需要有 _id 列
+     * @return 包装后的 Cursor；结果中没有内容列时返回原来的 Cursor
+     */
+    Cursor wrap(Cursor cursor, long noteId) {
+        int noteColumn = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
+        int idColumn = cursor.getColumnIndex(NotePad.Notes._ID);
+        if (noteColumn < 0 || (noteId < 0 && idColumn < 0)) {
+            return cursor;
+        }
+        return new BodyCursor(cursor, noteColumn, idColumn, noteId);
+    }
+
+    /**
+     * 立即合并所有等待合并的笔记；后台正在合并时，等待它完成。通常在后台线程中执行；
+     * 测试可以直接调用
+     */
+    void compactPending() {
+        synchronized (mCompactLock) {
+            List<Long> noteIds;
+            synchronized (this) {
+                noteIds = new ArrayList<Long>(mPendingCompactions);
+                mPendingCompactions.clear();
+                mCompaction = null;
+            }
+            for (long noteId : noteIds) {
+                compact(noteId);
+            }
+        }
+    }
+
+    /**
+     * 把笔记的差量合并到基础文本中，并更新全文搜索索引。需要持有 mCompactLock
+     */
+    private void compact(long noteId) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        boolean successful = false;
+        db.beginTransaction();
+        try {
+            synchronized (this) {
+                Body body = mCached != null && mCachedId == noteId ? mCached : load(db, noteId);
+                if (body != null && body.deltaCount > 0) {
+                    cache(noteId, rewriteChunks(db, noteId, body));
+                    mCompactions.incrementAndGet();
+                }
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            db.endTransaction();
+            if (!successful) {
+                discardCache();
+            }
+        }
+    }
+
+    // 需要持有这个对象的锁
+    private void scheduleCompaction(long noteId, boolean immediately) {
+        mPendingCompactions.add(noteId);
+        if (mCompaction != null) {
+            if (!immediately) {
+                return;
+            }
+            mCompaction.cancel(false);
+        }
+        mCompaction = EXECUTOR.schedule(mCompactTask, immediately ? 0 : COMPACT_DELAY_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    // 需要持有这个对象的锁
+    private void cache(long noteId, Body body) {
+        mCachedId = noteId;
+        mCached = body;
+    }
+
+    // 把 text 重新分段写入，替换笔记所有的分段和差量。需要在事务中调用
+    private Body writeAllChunks(SQLiteDatabase db, long noteId, String text) {
+        String[] args = { String.valueOf(noteId) };
+        db.delete(CHUNKS_TABLE_NAME, COLUMN_NAME_NOTE_ID + " = ?", args);
+        db.delete(DELTAS_TABLE_NAME, COLUMN_NAME_NOTE_ID + " = ?", args);
+
+        int count = countChunks(text.length());
+        long[] seqs = new long[count];
+        int[] lengths = new int[count];
+        insertChunks(db, noteId, text, 0, text.length(), 0, SEQ_SPACING, seqs, lengths, 0);
+        Body body = Body.compacted(text, seqs, lengths);
+        updateSearchIndex(db, noteId, body);
+        return body;
+    }
+
+    /**
+     * 把差量合并到基础文本中：只重写从第一处改动所在的段到最后一处改动所在的段，之前和之后的段不变。
+     * 需要在事务中调用
+     *
+     * @return 合并之后的内容
+     */
+    private Body rewriteChunks(SQLiteDatabase db, long noteId, Body body) {
+        String text = body.text;
+        int count = body.seqs.length;
+        if (count == 0) {
+            return writeAllChunks(db, noteId, text);
+        }
+        int common = Math.min(body.baseLength, text.length());
+        int prefix = Math.min(body.unchangedPrefix, common);
+        int suffix = Math.min(body.unchangedSuffix, common - prefix);
+
+        // 基础文本中改动的部分是 [prefix, baseLength - suffix)。找出包含它的开头的段 first
+        // 和包含它的结尾的段 last；添加在末尾的内容归入最后一段
+        int first = 0;
+        int firstStart = 0;
+        while (first < count - 1 && firstStart + body.lengths[first] <= prefix) {
+            firstStart += body.lengths[first];
+            first++;
+        }
+        int changeEnd = body.baseLength - suffix;
+        int last = first;
+        int lastEnd = firstStart + body.lengths[first];
+        while (last < count - 1 && lastEnd < changeEnd) {
+            last++;
+            lastEnd += body.lengths[last];
+        }
+        int middleEnd = text.length() - (body.baseLength - lastEnd);
+
+        // 新的段的 seq 均匀分布在 first 的前一段和 last 的后一段之间；没有空隙时全部重写
+        int pieces = countChunks(middleEnd - firstStart);
+        long lower = first > 0 ? body.seqs[first - 1] : body.seqs[first] - SEQ_SPACING * (pieces + 1);
+        long upper = last < count - 1
+                ? body.seqs[last + 1] : body.seqs[last] + SEQ_SPACING * (pieces + 1);
+        long step = (upper - lower) / (pieces + 1);
+        if (step == 0) {
+            return writeAllChunks(db, noteId, text);
+        }
+
+        String[] args = { String.valueOf(noteId) };
+        db.delete(DELTAS_TABLE_NAME, COLUMN_NAME_NOTE_ID + " = ?", args);
+        db.delete(CHUNKS_TABLE_NAME, COLUMN_NAME_NOTE_ID + " = ? AND " + COLUMN_NAME_SEQ
+                + " BETWEEN " + body.seqs[first] + " AND " + body.seqs[last], args);
+
+        int newCount = count - (last - first + 1) + pieces;
+        long[] seqs = new long[newCount];
+        int[] lengths = new int[newCount];
+        System.arraycopy(body.seqs, 0, seqs, 0, first);
+        System.arraycopy(body.lengths, 0, lengths, 0, first);
+        insertChunks(db, noteId, text, firstStart, middleEnd, lower + step, step, seqs, lengths,
+                first);
+        System.arraycopy(body.seqs, last + 1, seqs, first + pieces, count - last - 1);
+        System.arraycopy(body.lengths, last + 1, lengths, first + pieces, count - last - 1);
+
+        Body compacted = Body.compacted(text, seqs, lengths);
+        updateSearchIndex(db, noteId, compacted);
+        return compacted;
+    }
+
+    // 返回把 length 个字符分段时的段数。按每段少一个字符计算，为避免拆开代理对而移动的边界
+    // 不会使任何一段超过 CHUNK_LENGTH
+    private static int countChunks(int length) {
+        return (length + CHUNK_LENGTH - 2) / (CHUNK_LENGTH - 1);
+    }
+
+    /**
+     * 把 text 的 [start, end) 分成长度相近的若干段，从 firstSeq 开始每隔 step 取一个 seq 写入，
+     * 并把各段的 seq 和长度从 index 处起记入 seqs 和 lengths。段的边界不拆开代理对
+     */
+    private void insertChunks(SQLiteDatabase db, long noteId, String text, int start, int end,
+                              long firstSeq, long step, long[] seqs, int[] lengths, int index) {
+        int pieces = countChunks(end - start);
+        long seq = firstSeq;
+        for (int piece = 0; piece < pieces; piece++) {
+            int remaining = pieces - piece;
+            int pieceEnd = start + (end - start + remaining - 1) / remaining;
+            if (pieceEnd < end && Character.isHighSurrogate(text.charAt(pieceEnd - 1))) {
+                pieceEnd--;
+            }
+            String chunk = text.substring(start, pieceEnd);
+            insertChunk(db, noteId, seq, chunk);
+            mChunkWrites.incrementAndGet();
+            mStoredBytes.addAndGet(Utf8.length(chunk));
+            seqs[index + piece] = seq;
+            lengths[index + piece] = chunk.length();
+            seq += step;
+            start = pieceEnd;
+        }
+    }
+
+    /**
+     * 用分段表中开头 {@link #SEARCH_INDEX_LENGTH} 个字符所在的段更新全文搜索索引。
+     * 内容在数据库中连接，不经过 Java 堆
+     */
+    private static void updateSearchIndex(SQLiteDatabase db, long noteId, Body body) {
+        int chunks = 0;
+        for (int length = 0; chunks < body.lengths.length && length < SEARCH_INDEX_LENGTH;
+                chunks++) {
+            length += body.lengths[chunks];
+        }
+        db.execSQL("UPDATE " + NotePadProvider.FTS_TABLE_NAME + " SET "
+                + NotePad.Notes.COLUMN_NAME_NOTE + " = (SELECT substr(group_concat("
+                + COLUMN_NAME_TEXT + ", ''), 1, " + SEARCH_INDEX_LENGTH + ") FROM (SELECT "
+                + COLUMN_NAME_TEXT + " FROM " + CHUNKS_TABLE_NAME + " WHERE " + COLUMN_NAME_NOTE_ID
+                + " = ? ORDER BY " + COLUMN_NAME_SEQ + " LIMIT " + chunks + ")) WHERE docid = ?",
+                new Object[] { noteId, noteId });
+    }
+
+    /**
+     * 由基础文本和差量还原笔记的内容；内容不在这里时返回 null。需要在事务中调用
+     */
+    private static Body load(SQLiteDatabase db, long noteId) {
+        String[] args = { String.valueOf(noteId) };
+
+        // 先读各段的长度，以便一次分配好缓冲区
+        long[] seqs;
+        int[] lengths;
+        int baseLength = 0;
+        Cursor cursor = db.query(CHUNKS_TABLE_NAME, new String[] {
+                COLUMN_NAME_SEQ, COLUMN_NAME_LENGTH
+        }, COLUMN_NAME_NOTE_ID + " = ?", args, null, null, COLUMN_NAME_SEQ);
+        try {
+            if (cursor.getCount() == 0) {
+                return null;
+            }
+            seqs = new long[cursor.getCount()];
+            lengths = new int[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                seqs[i] = cursor.getLong(0);
+                lengths[i] = cursor.getInt(1);
+                baseLength += lengths[i];
+            }
+        } finally {
+            cursor.close();
+        }
+
+        StringBuilder text = new StringBuilder(baseLength);
+        cursor = db.query(CHUNKS_TABLE_NAME, new String[] { COLUMN_NAME_TEXT },
+                COLUMN_NAME_NOTE_ID + " = ?", args, null, null, COLUMN_NAME_SEQ);
+        try {
+            while (cursor.moveToNext()) {
+                text.append(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        int deltaCount = 0;
+        int unchangedPrefix = baseLength;
+        int unchangedSuffix = baseLength;
+        cursor = db.query(DELTAS_TABLE_NAME, new String[] {
+                COLUMN_NAME_POSITION, COLUMN_NAME_REMOVED, COLUMN_NAME_INSERTED
+        }, COLUMN_NAME_NOTE_ID + " = ?", args, null, null, COLUMN_NAME_SEQ);
+        try {
+            while (cursor.moveToNext()) {
+                int position = cursor.getInt(0);
+                int removed = cursor.getInt(1);
+                unchangedPrefix = Math.min(unchangedPrefix, position);
+                unchangedSuffix = Math.min(unchangedSuffix, text.length() - position - removed);
+                text.replace(position, position + removed, cursor.getString(2));
+                deltaCount++;
+            }
+        } finally {
+            cursor.close();
+        }
+        return new Body(text.toString(), deltaCount, seqs, lengths, baseLength, unchangedPrefix,
+                unchangedSuffix);
+    }
+
+    /**
+     * 返回保存的内容的字节数（UTF-8），即每次保存都整条写入时要写入的量
+     */
+    long getLogicalBytes() {
+        return mLogicalBytes.get();
+    }
+
+    /**
+     * 返回实际写入的字节数（UTF-8）：分段、差量以及合并
+     */
+    long getStoredBytes() {
+        return mStoredBytes.get();
+    }
+
+    /**
+     * 返回合并的次数
+     */
+    long getCompactionCount() {
+        return mCompactions.get();
+    }
+
+    /**
+     * 返回写入统计的摘要
+     */
+    String describeMetrics() {
+        long logical = mLogicalBytes.get();
+        long stored = mStoredBytes.get();
+        return "deltas=" + mDeltaWrites.get() + ", chunks=" + mChunkWrites.get() + ", compactions="
+                + mCompactions.get() + ", logical bytes=" + logical + ", stored bytes=" + stored
+                + (stored > 0 ? String.format(", saved %.1fx", logical / (double) stored) : "");
+    }
+
+    /**
+     * 内容列返回完整内容的 Cursor
+     */
+    private final class BodyCursor extends CursorWrapper {
+        private final int mNoteColumn;
+        private final int mIdColumn;
+        private final long mNoteId;
+
+        BodyCursor(Cursor cursor, int noteColumn, int idColumn, long noteId) {
+            super(cursor);
+            mNoteColumn = noteColumn;
+            mIdColumn = idColumn;
+            mNoteId = noteId;
+        }
+
+        // 返回这一列是否可能是保存在 NoteBodyStore 中的内容
+        private boolean mayBeStored(int column) {
+            return column == mNoteColumn && super.isNull(column);
+        }
+
+        private long currentNoteId() {
+            return mNoteId >= 0 ? mNoteId : super.getLong(mIdColumn);
+        }
+
+        @Override
+        public String getString(int column) {
+            String stored = mayBeStored(column) ? read(currentNoteId()) : null;
+            return stored != null ? stored : super.getString(column);
+        }
+
+        // isNull() 和 getType() 只检查内容是否保存在这里，不还原内容
+        @Override
+        public boolean isNull(int column) {
+            return mayBeStored(column) ? !contains(currentNoteId()) : super.isNull(column);
+        }
+
+        @Override
+        public int getType(int column) {
+            return mayBeStored(column) && contains(currentNoteId())
+                    ? Cursor.FIELD_TYPE_STRING : super.getType(column);
+        }
+    }
+}
@@ -19,20 +19,28 @@ package com.example.android.notepad;
 import static com.example.android.notepad.R.*;
 
 import android.app.Activity;
+import android.app.LoaderManager;
 import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.ComponentName;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.CursorLoader;
 import android.content.Intent;
+import android.content.Loader;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.CursorWrapper;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.text.Editable;
+import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.Menu;
@@ -41,33 +49,48 @@ import android.view.MenuItem;
 import android.widget.EditText;
 import android.widget.Toast;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * This Activity handles "editing" a note, where editing is responding to
  * {@link Intent#ACTION_VIEW} (request to view data), edit a note
  * {@link Intent#ACTION_EDIT}, create a note {@link Intent#ACTION_INSERT}, or
  * create a new note from the current contents of the clipboard {@link Intent#ACTION_PASTE}.
  *
- * NOTE: Notice that the provider operations in this Activity are taking place on the UI thread.
- * This is not a good practice. It is only done here to make the code more readable. A real
- * application should use the {@link android.content.AsyncQueryHandler}
- * or {@link android.os.AsyncTask} object to perform operations asynchronously on a separate thread.
+ * The note is read through a {@link CursorLoader}, so the query runs on a background thread.
+ * NOTE: Notice that the writes in this Activity are still taking place on the UI thread.
  */
-public class NoteEditor extends Activity {
+public class NoteEditor extends Activity implements LoaderManager.LoaderCallbacks<Cursor> {
     // For logging and debugging purposes
     private static final String TAG = "NoteEditor";
 
     /*
-     * Creates a projection that returns the note ID and the note contents.
+     * Creates a projection that returns the note ID and title. The note contents, which can be
+     * too large for one row, are read a chunk at a time by readNoteText().
      */
     private static final String[] PROJECTION =
         new String[] {
             NotePad.Notes._ID,
-            NotePad.Notes.COLUMN_NAME_TITLE,
-            NotePad.Notes.COLUMN_NAME_NOTE
+            NotePad.Notes.COLUMN_NAME_TITLE
     };
 
-    // A label for the saved state of the activity
+    // The ID of the loader that reads the note
+    private static final int NOTE_LOADER = 0;
+
+    // Labels for the saved state of the activity
     private static final String ORIGINAL_CONTENT = "origContent";
+    private static final String ORIGINAL_CONTENT_DROPPED = "origContentDropped";
+
+    /*
+     * The longest original text kept in the saved state, in characters. The saved state goes
+     * through a binder transaction, which fails above about 1 MB, so the original text of a
+     * longer note is dropped instead and can no longer be reverted to.
+     */
+    private static final int MAX_SAVED_CONTENT_LENGTH = 64 * 1024;
+
+    // How long after an edit the note is saved in the background, while the user keeps editing
+    private static final long AUTOSAVE_DELAY_MILLIS = 2000;
 
     // This Activity can be started by more than one action. Each action is represented
     // as a "state" constant
@@ -79,7 +102,41 @@ public class NoteEditor extends Activity {
     private Uri mUri;
     private Cursor mCursor;
     private EditText mText;
-    private String mOriginalContent;
+    // The text the note had when it was opened, for reverting; read from the note's chunks
+    private CharSequence mOriginalContent;
+    // Whether the original text was too long to keep in the saved state and was dropped
+    private boolean mOriginalContentDropped;
+
+    /*
+     * Whether the note text is in the TextView. Until it is, the loader reads the text along
+     * with the title; later loads only refresh the title, so they don't read the text again.
+     * A recreated activity reads the text again, since its TextView starts out empty.
+     */
+    private boolean mTextLoaded;
+
+    /*
+     * Change tracking, so that onPause() only writes a note that was edited. The text's revision
+     * counts the edits made to the text box; comparing revisions avoids copying and comparing
+     * the whole text, which can be long, on every pause.
+     */
+    private int mTextRevision;
+    private int mSavedTextRevision;
+    private long mSavedCategoryId;
+
+    // Writes the note on a background thread
+    private NoteAutosaver mAutosaver;
+    // A copy of the text box, kept up to date edit by edit, that the writer thread saves from
+    private final NoteAutosaver.TextMirror mTextMirror = new NoteAutosaver.TextMirror();
+
+    private final Handler mHandler = new Handler();
+    private boolean mAutosaveScheduled;
+    private final Runnable mAutosaveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mAutosaveScheduled = false;
+            autosave();
+        }
+    };
 
     /**
      * Defines a custom EditText View that draws lines between each line of text that is displayed.
@@ -202,26 +259,11 @@ public class NoteEditor extends Activity {
             return;
         }
 
-        /*
-         * Using the URI passed in with the triggering Intent, gets the note or notes in
-         * the provider.
-         * Note: This is being done on the UI thread. It will block the thread until the query
-         * completes. In a sample app, going against a simple provider based on a local database,
-         * the block will be momentary, but in a real app you should use
-         * android.content.AsyncQueryHandler or android.os.AsyncTask.
-         */
-        mCursor = managedQuery(
-            mUri,         // The URI that gets multiple notes from the provider.
-            PROJECTION,   // A projection that returns the note ID and note content for each note.
-            null,         // No "where" clause selection criteria.
-            null,         // No "where" clause selection values.
-            null          // Use the default sort order (modification date, descending)
-        );
+        mAutosaver = new NoteAutosaver(getContentResolver(), mUri);
 
         // For a paste, initializes the data from clipboard.
-        // (Must be done after mCursor is initialized.)
         if (Intent.ACTION_PASTE.equals(action)) {
-            // Does the paste
+            // Does the paste. The loader reads the note after the paste is written.
             performPaste();
             // Switches the state to EDIT so the title can be modified.
             mState = STATE_EDIT;
@@ -233,54 +275,178 @@ public class NoteEditor extends Activity {
         // Gets a handle to the EditText in the the layout.
         mText = (EditText) findViewById(R.id.note);
 
+        // Counts the edits to the text, so that onPause() can tell whether there is anything to
+        // save, and copies each edit into the mirror that the text is saved from
+        mText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+                mTextMirror.onTextChanged(s, start, before, count);
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                mTextRevision++;
+
+                // Saves the edits a little later, together with any made meanwhile
+                if (mCursor != null && !mAutosaveScheduled) {
+                    mAutosaveScheduled = true;
+                    mHandler.postDelayed(mAutosaveRunnable, AUTOSAVE_DELAY_MILLIS);
+                }
+            }
+        });
+
         /*
          * If this Activity had stopped previously, its state was written the ORIGINAL_CONTENT
          * location in the saved Instance state. This gets the state.
          */
         if (savedInstanceState != null) {
             mOriginalContent = savedInstanceState.getString(ORIGINAL_CONTENT);
+            mOriginalContentDropped = savedInstanceState.getBoolean(ORIGINAL_CONTENT_DROPPED);
+        }
+
+        /*
+         * Using the URI passed in with the triggering Intent, gets the note from the provider.
+         * The query runs on a background thread; the Cursor is delivered to onLoadFinished().
+         * Until then mCursor is null, and onPause() doesn't save anything.
+         */
+        getLoaderManager().initLoader(NOTE_LOADER, null, this);
+    }
+
+    /**
+     * Creates the loader that reads the note. The loader watches the note for changes and
+     * reloads it, for example after the title is edited.
+     */
+    @Override
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        return new NoteLoader(this, mUri, !mTextLoaded);
+    }
+
+    /**
+     * Reads the note's ID and title and, while the editor still needs it, the note's text. The
+     * loader is kept by the LoaderManager across configuration changes, so it is a static class
+     * that doesn't refer to the activity; the text is handed over in the loaded NoteCursor.
+     */
+    static class NoteLoader extends CursorLoader {
+
+        private volatile boolean mTextNeeded;
+
+        NoteLoader(Context context, Uri uri, boolean textNeeded) {
+            super(
+                context,
+                uri,          // The URI of the note.
+                PROJECTION,   // A projection that returns the note ID and title.
+                null,         // No "where" clause selection criteria.
+                null,         // No "where" clause selection values.
+                null          // Use the default sort order (modification date, descending)
+            );
+            mTextNeeded = textNeeded;
+        }
+
+        /**
+         * Makes the next load read the note text too.
+         */
+        void setTextNeeded(boolean textNeeded) {
+            mTextNeeded = textNeeded;
         }
-        if (mState == STATE_EDIT && mCursor != null && mCursor.moveToFirst()) {
-            int colCategoryIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CATEGORY_ID);
-            if (colCategoryIndex != -1) {
-                currentCategoryId = mCursor.getLong(colCategoryIndex);
+
+        @Override
+        public Cursor loadInBackground() {
+            Cursor cursor = super.loadInBackground();
+            // Until the text has been read once, reads it too, off the UI thread.
+            if (cursor == null || !mTextNeeded) {
+                return cursor;
             }
+            // Reads the text after the saves made before it was asked for, such as a paste
+            // or the edits saved by an editor that was recreated.
+            NoteAutosaver.awaitPendingWrites();
+            CharSequence text = readNoteText(getContext().getContentResolver(), getUri());
+            mTextNeeded = false;
+            return new NoteCursor(cursor, text);
+        }
+    }
+
+    /**
+     * The note's ID and title, together with the note text read by the same load.
+     */
+    static final class NoteCursor extends CursorWrapper {
+
+        private boolean mHasText = true;
+        private CharSequence mText;
+
+        NoteCursor(Cursor cursor, CharSequence text) {
+            super(cursor);
+            mText = text;
+        }
+
+        /**
+         * Returns whether this cursor still holds the note text.
+         */
+        boolean hasText() {
+            return mHasText;
+        }
+
+        /**
+         * Returns the note text, or null if the note has none, and lets go of it, so that a
+         * long text isn't kept alive by the cursor once it is in the TextView.
+         */
+        CharSequence takeText() {
+            CharSequence text = mText;
+            mText = null;
+            mHasText = false;
+            return text;
         }
     }
 
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+        mCursor = null;
+    }
+
     /**
-     * This method is called when the Activity is about to come to the foreground. This happens
-     * when the Activity comes to the top of the task stack, OR when it is first starting.
+     * This method is called when the loader delivers the note, the first time and again whenever
+     * the note changes (such as the title).
      *
      * Moves to the first note in the list, sets an appropriate title for the action chosen by
-     * the user, puts the note contents into the TextView, and saves the original text as a
-     * backup.
+     * the user, and the first time puts the note contents into the TextView and saves the
+     * original text as a backup.
      */
     @Override
-    protected void onResume() {
-        super.onResume();
-
+    public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
         /*
-         * mCursor is initialized, since onCreate() always precedes onResume for any running
-         * process. This tests that it's not null, since it should always contain data.
+         * A loader kept across a configuration change delivers its last result again, and that
+         * may not hold the text. Until the text is in the TextView, loads it again with the text.
          */
-        if (mCursor != null) {
-            // Requery in case something changed while paused (such as the title)
-            mCursor.requery();
+        if (!mTextLoaded && cursor != null
+                && !(cursor instanceof NoteCursor && ((NoteCursor) cursor).hasText())) {
+            NoteLoader noteLoader = (NoteLoader) loader;
+            noteLoader.setTextNeeded(true);
+            noteLoader.forceLoad();
+            return;
+        }
 
-            /* Moves to the first record. Always call moveToFirst() before accessing data in
-             * a Cursor for the first time. The semantics of using a Cursor are that when it is
-             * created, its internal index is pointing to a "place" immediately before the first
-             * record.
-             */
-            mCursor.moveToFirst();
-            if (mState == STATE_INSERT) {
-                // 对于新建笔记，使用默认分类或从Intent获取的分类
-                currentCategoryId = 1; // 默认值
-            } else if (mState == STATE_EDIT && mCursor != null && mCursor.moveToFirst()) {
-                int colCategoryIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CATEGORY_ID);
-                if (colCategoryIndex != -1) {
-                    currentCategoryId = mCursor.getLong(colCategoryIndex);
+        boolean firstLoad = mCursor == null;
+        mCursor = cursor;
+
+        /* Moves to the first record. Always call moveToFirst() before accessing data in
+         * a Cursor for the first time. The semantics of using a Cursor are that when it is
+         * created, its internal index is pointing to a "place" immediately before the first
+         * record.
+         */
+        if (mCursor != null && mCursor.moveToFirst()) {
+            // 只在首次加载时读取分类，之后的重新加载不覆盖用户选择但还未保存的分类
+            if (firstLoad) {
+                if (mState == STATE_INSERT) {
+                    // 对于新建笔记，使用默认分类或从Intent获取的分类
+                    currentCategoryId = 1; // 默认值
+                } else if (mState == STATE_EDIT) {
+                    int colCategoryIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CATEGORY_ID);
+                    if (colCategoryIndex != -1) {
+                        currentCategoryId = mCursor.getLong(colCategoryIndex);
+                    }
                 }
             }
 
@@ -298,21 +464,25 @@ public class NoteEditor extends Activity {
             }
 
             /*
-             * onResume() may have been called after the Activity lost focus (was paused).
-             * The user was either editing or creating a note when the Activity paused.
-             * The Activity should re-display the text that had been retrieved previously, but
-             * it should not move the cursor. This helps the user to continue editing or entering.
+             * The note is reloaded each time it is saved while the user keeps editing. Only the
+             * first load puts the text into the TextView, so that a reload never moves the
+             * cursor or overwrites what the user typed meanwhile.
              */
+            if (firstLoad) {
+                // Puts the note text read by the loader in the TextView, but doesn't change the
+                // text cursor's position.
+                CharSequence note = ((NoteCursor) cursor).takeText();
+                mTextLoaded = true;
+                mText.setTextKeepState(note);
+
+                // Stores the original note text, to allow the user to revert changes. If it was
+                // dropped from the saved state, the text read now may already hold edits.
+                if (mOriginalContent == null && !mOriginalContentDropped) {
+                    mOriginalContent = note;
+                }
 
-            // Gets the note text from the Cursor and puts it in the TextView, but doesn't change
-            // the text cursor's position.
-            int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-            String note = mCursor.getString(colNoteIndex);
-            mText.setTextKeepState(note);
-
-            // Stores the original note text, to allow the user to revert changes.
-            if (mOriginalContent == null) {
-                mOriginalContent = note;
+                // What the editor shows now is what the provider holds.
+                markSaved();
             }
 
         /*
@@ -337,7 +507,13 @@ public class NoteEditor extends Activity {
     protected void onSaveInstanceState(Bundle outState) {
         // Save away the original text, so we still have it if the activity
         // needs to be killed while paused.
-        outState.putString(ORIGINAL_CONTENT, mOriginalContent);
+        if (mOriginalContent != null && mOriginalContent.length() > MAX_SAVED_CONTENT_LENGTH) {
+            outState.putBoolean(ORIGINAL_CONTENT_DROPPED, true);
+        } else {
+            outState.putString(ORIGINAL_CONTENT,
+                    mOriginalContent != null ? mOriginalContent.toString() : null);
+            outState.putBoolean(ORIGINAL_CONTENT_DROPPED, mOriginalContentDropped);
+        }
     }
 
     /**
@@ -350,12 +526,18 @@ public class NoteEditor extends Activity {
      * Activity in a state where Android can destroy it if necessary.
      *
      * If the user hasn't done anything, then this deletes or clears out the note, otherwise it
-     * writes the user's work to the provider.
+     * writes the user's work to the provider. A note that wasn't changed since it was loaded or
+     * last saved isn't written, so it keeps its modification date and its place in the notes
+     * list, and observers of the notes aren't disturbed.
      */
     @Override
     protected void onPause() {
         super.onPause();
 
+        // The edits are saved below, so the pending autosave isn't needed
+        mHandler.removeCallbacks(mAutosaveRunnable);
+        mAutosaveScheduled = false;
+
         /*
          * Tests to see that the query operation didn't fail (see onCreate()). The Cursor object
          * will exist, even if no records were returned, unless the query failed because of some
@@ -364,9 +546,8 @@ public class NoteEditor extends Activity {
          */
         if (mCursor != null) {
 
-            // Get the current note text.
-            String text = mText.getText().toString();
-            int length = text.length();
+            // Get the length of the current note text.
+            int length = mText.length();
 
             /*
              * If the Activity is in the midst of finishing and there is no text in the current
@@ -384,13 +565,18 @@ public class NoteEditor extends Activity {
                  * onCreate() inserted a new empty note into the provider, and it is this new note
                  * that is being edited.
                  */
-            } else if (mState == STATE_EDIT) {
-                // Creates a map to contain the new values for the columns
-                updateNote(text, null);
-            } else if (mState == STATE_INSERT) {
-                updateNote(text, text);
-                mState = STATE_EDIT;
-          }
+            } else if (isChanged()) {
+                saveEdits(true);
+            }
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mHandler.removeCallbacks(mAutosaveRunnable);
+        if (NoteAutosaver.getSaveCount() > 0) {
+            Log.i(TAG, "Autosave: " + NoteAutosaver.describeMetrics());
         }
     }
 
@@ -431,11 +617,10 @@ public class NoteEditor extends Activity {
 
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
-        // Check if note has changed and enable/disable the revert option
-        int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-        String savedNote = mCursor.getString(colNoteIndex);
-        String currentNote = mText.getText().toString();
-        if (savedNote.equals(currentNote)) {
+        // Check if note has changed since it was opened and enable/disable the revert option.
+        // Until the note has loaded there is nothing to revert.
+        if (mCursor == null || mOriginalContent == null
+                || TextUtils.equals(mOriginalContent, mText.getText())) {
             menu.findItem(R.id.menu_revert).setVisible(false);
         } else {
             menu.findItem(R.id.menu_revert).setVisible(true);
@@ -457,8 +642,9 @@ public class NoteEditor extends Activity {
         // Handle all of the possible menu actions.
         int id = item.getItemId();
         if(id== R.id.menu_save) {
-            String text = mText.getText().toString();
-            updateNote(text, null);
+            if (mCursor != null && isChanged()) {
+                saveEdits(true);
+            }
             finish();
         } else if (id == R.id.menu_delete) {
             deleteNote();
@@ -530,9 +716,9 @@ public class NoteEditor extends Activity {
                 // (moveToFirst() returns true), then this gets the note data from it.
                 if (orig != null) {
                     if (orig.moveToFirst()) {
-                        int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-                        int colTitleIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
-                        text = orig.getString(colNoteIndex);
+                        int colTitleIndex = orig.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
+                        CharSequence note = readNoteText(cr, uri);
+                        text = note != null ? note.toString() : null;
                         title = orig.getString(colTitleIndex);
                     }
 
@@ -553,6 +739,42 @@ public class NoteEditor extends Activity {
     }
 //END_INCLUDE(paste)
 
+    /**
+     * Reads a note's text a chunk at a time, so that a note too large for one row of a Cursor
+     * can still be read. The chunks are joined into a buffer of exactly the note's length, which
+     * is returned as is rather than copied once more into a String.
+     *
+     * @param uri The URI of the note.
+     * @return The note text, or null if the note doesn't exist or has no text.
+     */
+    static CharSequence readNoteText(ContentResolver resolver, Uri uri) {
+        Cursor chunks = resolver.query(
+                Uri.withAppendedPath(uri, NotePad.Notes.CHUNKS_PATH_SEGMENT),
+                new String[] { NotePad.Notes.COLUMN_NAME_CHUNK_TEXT }, null, null, null);
+        if (chunks == null) {
+            return null;
+        }
+        try {
+            if (chunks.getCount() == 0) {
+                return null;
+            }
+            List<String> parts = new ArrayList<String>(chunks.getCount());
+            int length = 0;
+            while (chunks.moveToNext()) {
+                String part = chunks.getString(0);
+                parts.add(part);
+                length += part.length();
+            }
+            StringBuilder text = new StringBuilder(length);
+            for (String part : parts) {
+                text.append(part);
+            }
+            return text;
+        } finally {
+            chunks.close();
+        }
+    }
+
     /**
      * Replaces the current note contents with the text and title provided as arguments.
      * @param text The new note contents to use.
@@ -570,22 +792,7 @@ public class NoteEditor extends Activity {
 
             // If no title was provided as an argument, create one from the note text.
             if (title == null) {
-  
-                // Get the note's length
-                int length = text.length();
-
-                // Sets the title by getting a substring of the text that is 31 characters long
-                // or the number of characters in the note plus one, whichever is smaller.
-                title = text.substring(0, Math.min(30, length));
-  
-                // If the resulting length is more than 30 characters, chops off any
-                // trailing spaces
-                if (length > 30) {
-                    int lastSpace = title.lastIndexOf(' ');
-                    if (lastSpace > 0) {
-                        title = title.substring(0, lastSpace);
-                    }
-                }
+                title = makeTitle(text);
             }
             // In the values map, sets the value of the title
             values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
@@ -603,19 +810,86 @@ public class NoteEditor extends Activity {
          * query Cursor objects to the incoming URI. The content resolver is thus
          * automatically notified when the Cursor for the URI changes, and the UI is
          * updated.
-         * Note: This is being done on the UI thread. It will block the thread until the
-         * update completes. In a sample app, going against a simple provider based on a
-         * local database, the block will be momentary, but in a real app you should use
-         * android.content.AsyncQueryHandler or android.os.AsyncTask.
+         * The update runs on a background thread, so that saving a long note doesn't block
+         * the UI thread. Updates are applied in order, and one that hasn't started yet is
+         * merged with the next.
          */
-        getContentResolver().update(
-                mUri,    // The URI for the record to update.
-                values,  // The map of column names and new values to apply to them.
-                null,    // No selection criteria are used, so no where columns are necessary.
-                null     // No where columns are used, so no where arguments are necessary.
-            );
+        mAutosaver.save(values);
 
+        markSaved();
+    }
+
+    /**
+     * Creates a title for a new note from the start of its text.
+     */
+    private static String makeTitle(CharSequence text) {
+        // Get the note's length
+        int length = text.length();
+
+        // Sets the title by getting a substring of the text that is 31 characters long
+        // or the number of characters in the note plus one, whichever is smaller.
+        String title = text.subSequence(0, Math.min(30, length)).toString();
+
+        // If the resulting length is more than 30 characters, chops off any
+        // trailing spaces
+        if (length > 30) {
+            int lastSpace = title.lastIndexOf(' ');
+            if (lastSpace > 0) {
+                title = title.substring(0, lastSpace);
+            }
+        }
+        return title;
+    }
+
+    /**
+     * Saves the edits made so far while the user keeps editing, so that they aren't lost if
+     * the process dies.
+     */
+    private void autosave() {
+        if (mCursor == null || !isChanged()) {
+            return;
+        }
+        saveEdits(false);
+    }
+
+    /**
+     * Saves the text and the category. The text isn't copied here: the writer thread takes it
+     * from the mirror when it writes, so a long note isn't copied on the UI thread at each save.
+     * A new note gets its title from its text when the user leaves the editor, so until then
+     * only the text and category are saved, and the note still counts as changed.
+     *
+     * @param leaving Whether the user is leaving the editor.
+     */
+    private void saveEdits(boolean leaving) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, currentCategoryId);
+        if (mState == STATE_INSERT && !leaving) {
+            mAutosaver.save(values, mTextMirror);
+            return;
+        }
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
+        if (mState == STATE_INSERT) {
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, makeTitle(mText.getText()));
+            mState = STATE_EDIT;
+        }
+        mAutosaver.save(values, mTextMirror);
+        markSaved();
+    }
+
+    /**
+     * Returns whether the text or the category was changed since the note was loaded or last
+     * saved.
+     */
+    private boolean isChanged() {
+        return mTextRevision != mSavedTextRevision || currentCategoryId != mSavedCategoryId;
+    }
 
+    /**
+     * Records that the provider holds what the editor shows now.
+     */
+    private void markSaved() {
+        mSavedTextRevision = mTextRevision;
+        mSavedCategoryId = currentCategoryId;
     }
 
     /**
@@ -625,12 +899,19 @@ public class NoteEditor extends Activity {
     private final void cancelNote() {
         if (mCursor != null) {
             if (mState == STATE_EDIT) {
-                // Put the original note text back into the database
-                mCursor.close();
+                // Put the original note text back into the database. Stops the loader first,
+                // so that the reload doesn't bring the cursor back and onPause() doesn't save
+                // the edited text again.
+                getLoaderManager().destroyLoader(NOTE_LOADER);
                 mCursor = null;
+
+                // Drops the saves that haven't been written and writes the original text after
+                // the one being written, so that none of them lands after it. The UI thread
+                // doesn't wait for the writes.
                 ContentValues values = new ContentValues();
-                values.put(NotePad.Notes.COLUMN_NAME_NOTE, mOriginalContent);
-                getContentResolver().update(mUri, values, null, null);
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE,
+                        mOriginalContent != null ? mOriginalContent.toString() : null);
+                mAutosaver.replace(values);
             } else if (mState == STATE_INSERT) {
                 // We inserted an empty note, make sure to delete it
                 deleteNote();
@@ -645,9 +926,10 @@ public class NoteEditor extends Activity {
      */
     private final void deleteNote() {
         if (mCursor != null) {
-            mCursor.close();
+            getLoaderManager().destroyLoader(NOTE_LOADER);
             mCursor = null;
-            getContentResolver().delete(mUri, null, null);
+            // Deletes the note after the save being written, without waiting for it
+            mAutosaver.delete();
             mText.setText("");
         }
     }
@@ -11,7 +11,26 @@ public final class NotePad {
     private static final String PATH_NOTE_ID = "/notes/";
     private static final String PATH_LIVE_FOLDER = "/live_folders/notes";
     private static final String PATH_CATEGORIES = "/categories";
-
+    private static final String PATH_SEARCH = "/notes/search";
+
+    // 提供者的性能统计，通过 ContentResolver.call() 读取：METHOD_GET_METRICS 返回的 Bundle 中
+    // KEY_METRICS_REPORT 是文本报告；METHOD_SET_METRICS_ENABLED 以参数 "true"/"false" 开关统计
+    // （默认关闭）；METHOD_RESET_METRICS 清空统计。三者都返回统计是否开启（KEY_METRICS_ENABLED）
+    public static final String METHOD_GET_METRICS = "get_metrics";
+    public static final String METHOD_SET_METRICS_ENABLED = "set_metrics_enabled";
+    public static final String METHOD_RESET_METRICS = "reset_metrics";
+    public static final String KEY_METRICS_REPORT = "report";
+    public static final String KEY_METRICS_ENABLED = "enabled";
+
+    // 提供者的慢查询日志，同样通过 ContentResolver.call() 读取：METHOD_GET_SLOW_QUERIES 返回的
+    // Bundle 中 KEY_SLOW_QUERIES 是文本报告，包括每条慢查询的 SQL、参数形式、耗时、行数和查询计划；
+    // METHOD_SET_SLOW_QUERY_THRESHOLD 以参数设置阈值（毫秒，-1 为关闭）；METHOD_CLEAR_SLOW_QUERIES
+    // 清空日志。所有方法都返回当前的阈值（KEY_SLOW_QUERY_THRESHOLD）
+    public static final String METHOD_GET_SLOW_QUERIES = "get_slow_queries";
+    public static final String METHOD_SET_SLOW_QUERY_THRESHOLD = "set_slow_query_threshold";
+    public static final String METHOD_CLEAR_SLOW_QUERIES = "clear_slow_queries";
+    public static final String KEY_SLOW_QUERIES = "slow_queries";
+    public static final String KEY_SLOW_QUERY_THRESHOLD = "slow_query_threshold";
 
     private NotePad() {
     }
@@ -29,12 +48,32 @@ public final class NotePad {
         public static final Uri CONTENT_ID_URI_PATTERN = Uri.parse(SCHEME + AUTHORITY + PATH_NOTE_ID + "/#");
         public static final Uri LIVE_FOLDER_URI = Uri.parse(SCHEME + AUTHORITY + PATH_LIVE_FOLDER);
 
+        // 全文搜索URI，搜索词通过查询参数 SEARCH_QUERY_PARAMETER 传入
+        public static final Uri CONTENT_SEARCH_URI = Uri.parse(SCHEME + AUTHORITY + PATH_SEARCH);
+        public static final String SEARCH_QUERY_PARAMETER = "q";
+
+        // 分页查询参数（用于 CONTENT_URI）：每页行数，以及上一页最后一行的修改时间和ID（键集分页）。
+        // 不知道上一页末行时可改用偏移量。分页结果总是按 PAGED_SORT_ORDER 排序。
+        public static final String PAGE_SIZE_PARAMETER = "limit";
+        public static final String PAGE_AFTER_MODIFIED_PARAMETER = "after_modified";
+        public static final String PAGE_AFTER_ID_PARAMETER = "after_id";
+        public static final String PAGE_OFFSET_PARAMETER = "offset";
+        public static final String PAGED_SORT_ORDER = "modified DESC, _id DESC";
+
+        // 逐段读取一条笔记的内容：笔记URI后加上这个路径。结果按 _ID 排序，各行的 COLUMN_NAME_CHUNK_TEXT
+        // 依次连接即完整的内容，用于很大、不便一次读入的笔记（只读）
+        public static final String CHUNKS_PATH_SEGMENT = "chunks";
+        public static final String COLUMN_NAME_CHUNK_TEXT = "chunk";
+
         public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.google.note";
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.google.note";
+        public static final String CONTENT_CHUNK_TYPE = "vnd.android.cursor.dir/vnd.google.note.chunk";
         public static final String DEFAULT_SORT_ORDER = "modified DESC";
 
         public static final String COLUMN_NAME_TITLE = "title";
         public static final String COLUMN_NAME_NOTE = "note";
+        // 笔记内容的开头部分，供列表显示；由提供者在写入内容时生成（只读）
+        public static final String COLUMN_NAME_PREVIEW = "preview";
         public static final String COLUMN_NAME_CREATE_DATE = "created";
         public static final String COLUMN_NAME_MODIFICATION_DATE = "modified";
         public static final String COLUMN_NAME_CATEGORY_ID = "category_id";
@@ -44,6 +83,10 @@ public final class NotePad {
         public static final String COLUMN_NAME_DUE_DATE = "due_date";
         public static final String COLUMN_NAME_PRIORITY = "priority";
 
+        // 所属分类的名称和颜色，查询时从分类表关联得到（只读）
+        public static final String COLUMN_NAME_CATEGORY_NAME = "category_name";
+        public static final String COLUMN_NAME_CATEGORY_COLOR = "category_color";
+
         // 优先级常量
         public static final int PRIORITY_LOW = 0;
         public static final int PRIORITY_MEDIUM = 1;
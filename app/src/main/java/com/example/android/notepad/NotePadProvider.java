@@ -20,32 +20,52 @@ import com.example.android.notepad.NotePad;
 
 import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.ContentProvider.PipeDataWriter;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.provider.LiveFolders;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Provides access to a database of notes. Each note has a title, the note
@@ -55,6 +75,25 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     // Used for debugging and logging
     private static final String TAG = "NotePadProvider";
 
+    // The most slow-query plans waiting to be captured; further slow queries are logged without
+    private static final int MAX_QUEUED_PLANS = 8;
+
+    /*
+     * Captures the plans of slow queries, so that running EXPLAIN QUERY PLAN doesn't add to the
+     * time of a query that was already slow.
+     */
+    private static final ThreadPoolExecutor PLAN_EXECUTOR = new ThreadPoolExecutor(
+            1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(MAX_QUEUED_PLANS),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, TAG);
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                }
+            });
+
     /**
      * The database that the provider uses as its underlying data store
      */
@@ -63,7 +102,23 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     /**
      * The database version
      */
-    private static final int DATABASE_VERSION = 4;
+    private static final int DATABASE_VERSION = 11;
+
+    /**
+     * The number of characters of a note's text that are kept in its preview
+     */
+    static final int PREVIEW_LENGTH = 40;
+
+    /**
+     * Appended to a preview when the note's text is longer than the preview
+     */
+    private static final String PREVIEW_ELLIPSIS = "...";
+
+    /**
+     * The FTS virtual table that indexes note titles and bodies for full-text search. Its docid
+     * is the _id of the corresponding row in the notes table; it is kept in sync by triggers.
+     */
+    static final String FTS_TABLE_NAME = "notes_fts";
 
     /**
      * A projection map used to select columns from the database
@@ -80,6 +135,26 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     private static HashMap<String, String> sCategoriesProjectionMap;
 
+    /**
+     * A projection map whose columns are qualified with the notes table name, for queries that
+     * join the notes table with another table
+     */
+    private static HashMap<String, String> sQualifiedNotesProjectionMap;
+
+    /**
+     * A projection map for notes joined with their categories. It adds the category name and
+     * color to the qualified notes columns.
+     */
+    private static HashMap<String, String> sJoinedNotesProjectionMap;
+
+    /**
+     * The join clause appended to a notes query when the projection asks for category columns.
+     * It is an outer join so that notes whose category was deleted are still returned.
+     */
+    private static final String CATEGORY_JOIN = " LEFT OUTER JOIN " + NotePad.Categories.TABLE_NAME
+            + " ON (" + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_CATEGORY_ID
+            + " = " + NotePad.Categories.TABLE_NAME + "." + NotePad.Categories._ID + ")";
+
     /**
      * Standard projection for the interesting columns of a normal note.
      */
@@ -88,6 +163,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             NotePad.Notes.COLUMN_NAME_NOTE,  // Projection position 1, the note's content
             NotePad.Notes.COLUMN_NAME_TITLE, // Projection position 2, the note's title
     };
+    private static final int READ_NOTE_ID_INDEX = 0;
     private static final int READ_NOTE_NOTE_INDEX = 1;
     private static final int READ_NOTE_TITLE_INDEX = 2;
 
@@ -110,6 +186,18 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     // The incoming URI matches the Category ID URI pattern
     private static final int CATEGORY_ID = 5;
 
+    // The incoming URI matches the full-text search URI pattern
+    private static final int NOTES_SEARCH = 6;
+
+    // The incoming URI matches the pattern for the body of a note, read a chunk at a time
+    private static final int NOTE_CHUNKS = 7;
+
+    // The names of the URI patterns in the metrics report, indexed by match code
+    private static final String[] MATCH_NAMES = {
+            "unknown", "notes", "note_id", "live_folder", "categories", "category_id", "search",
+            "chunks"
+    };
+
     /**
      * A UriMatcher instance
      */
@@ -118,6 +206,34 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     // Handle to a new DatabaseHelper.
     private DatabaseHelper mOpenHelper;
 
+    // Holds the bodies of large notes as a base text and a chain of edits
+    private NoteBodyStore mBodyStore;
+
+    /**
+     * The notifications held back by the batch running on each thread, or null on a thread
+     * that isn't running a batch.
+     */
+    private final ThreadLocal<Set<Uri>> mBatchNotifications = new ThreadLocal<Set<Uri>>();
+
+    // The change notifications sent to observers, and those merged into another notification
+    private final RateCounter mNotificationsSent = new RateCounter();
+    private final RateCounter mNotificationsCoalesced = new RateCounter();
+
+    // The latency, rows, bytes and notifications of each entry point; off until enabled by call()
+    private final ProviderMetrics mMetrics = new ProviderMetrics(MATCH_NAMES);
+
+    // The queries that took longer than a threshold, with their SQL and query plan
+    private final SlowQueryLog mSlowQueries = new SlowQueryLog(SlowQueryLog.DEFAULT_CAPACITY,
+            SlowQueryLog.DEFAULT_THRESHOLD_MILLIS);
+
+    // The results of recent notes and categories queries, dropped when the tables they read change
+    private final QueryResultCache mQueryCache = new QueryResultCache(
+            new String[] { NotePad.Notes.TABLE_NAME, NotePad.Categories.TABLE_NAME },
+            QueryResultCache.DEFAULT_MAX_ENTRIES, QueryResultCache.DEFAULT_MAX_BYTES);
+
+    // Whether the FTS table segments CJK text. Looked up once, on the first search.
+    private volatile Boolean mCjkTokenizerAvailable;
+
 
     /**
      * A block that instantiates and sets static objects
@@ -137,6 +253,14 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // to a note ID operation
         sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#", NOTE_ID);
 
+        // Add a pattern that routes URIs terminated with "notes/search" to a full-text search
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/search", NOTES_SEARCH);
+
+        // Add a pattern that routes URIs terminated with "notes", an integer and "chunks" to a
+        // chunked read of that note's body
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/" + NotePad.Notes.CHUNKS_PATH_SEGMENT,
+                NOTE_CHUNKS);
+
         // Add a pattern that routes URIs terminated with live_folders/notes to a
         // live folder operation
         sUriMatcher.addURI(NotePad.AUTHORITY, "live_folders/notes", LIVE_FOLDER_NOTES);
@@ -162,6 +286,9 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Maps "note" to "note"
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_NOTE);
 
+        // Maps "preview" to "preview"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_PREVIEW, NotePad.Notes.COLUMN_NAME_PREVIEW);
+
         // Maps "created" to "created"
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE,
                 NotePad.Notes.COLUMN_NAME_CREATE_DATE);
@@ -179,6 +306,31 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_DUE_DATE, NotePad.Notes.COLUMN_NAME_DUE_DATE);
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_PRIORITY, NotePad.Notes.COLUMN_NAME_PRIORITY);
 
+        /*
+         * Creates the qualified projection map. Each column maps to "notes.<column> AS <column>"
+         * so that it stays unambiguous when the notes table is joined with another table.
+         */
+        sQualifiedNotesProjectionMap = new HashMap<String, String>();
+        for (String column : sNotesProjectionMap.keySet()) {
+            sQualifiedNotesProjectionMap.put(column,
+                    NotePad.Notes.TABLE_NAME + "." + column + " AS " + column);
+        }
+
+        /*
+         * Creates the projection map for notes joined with categories
+         */
+        sJoinedNotesProjectionMap = new HashMap<String, String>(sQualifiedNotesProjectionMap);
+
+        // Maps "category_name" to "categories.name AS category_name"
+        sJoinedNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CATEGORY_NAME,
+                NotePad.Categories.TABLE_NAME + "." + NotePad.Categories.COLUMN_NAME_CATEGORY_NAME
+                        + " AS " + NotePad.Notes.COLUMN_NAME_CATEGORY_NAME);
+
+        // Maps "category_color" to "categories.color AS category_color"
+        sJoinedNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR,
+                NotePad.Categories.TABLE_NAME + "." + NotePad.Categories.COLUMN_NAME_CATEGORY_COLOR
+                        + " AS " + NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR);
+
         /*
          * Creates an initializes a projection map for handling Live Folders
          */
@@ -221,10 +373,52 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     static class DatabaseHelper extends SQLiteOpenHelper {
 
+        /**
+         * The size of each connection's page cache, in KiB. Larger caches keep more of the notes
+         * and index pages in memory across queries, at the cost of memory per connection.
+         */
+        static final int CACHE_SIZE_KIB = 2048;
+
         DatabaseHelper(Context context) {
 
             // calls the super constructor, requesting the default cursor factory.
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
+
+            // Write-ahead logging lets the list and the live folder read while an editor writes
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                setWriteAheadLoggingEnabled(true);
+            }
+        }
+
+        /**
+         * Configures the connection before it is created or upgraded. Only called on Jelly Bean
+         * and later; onOpen() configures the connection on older platforms.
+         */
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            db.setForeignKeyConstraintsEnabled(true);
+            configureConnection(db);
+        }
+
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+                if (!db.isReadOnly()) {
+                    db.enableWriteAheadLogging();
+                    db.execSQL("PRAGMA foreign_keys = ON");
+                }
+                configureConnection(db);
+            }
+        }
+
+        /**
+         * Applies the settings that aren't kept in the database file, and so must be set on each
+         * connection. With write-ahead logging, NORMAL synchronization can't corrupt the database;
+         * a power loss can only lose the last transactions, and it spares an fsync per commit.
+         */
+        static void configureConnection(SQLiteDatabase db) {
+            db.execSQL("PRAGMA synchronous = NORMAL");
+            db.execSQL("PRAGMA cache_size = -" + CACHE_SIZE_KIB);
         }
 
         /**
@@ -235,18 +429,14 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         @Override
         public void onCreate(SQLiteDatabase db) {
             // 创建分类表
-            db.execSQL("CREATE TABLE " + NotePad.Categories.TABLE_NAME + " ("
-                    + NotePad.Categories._ID + " INTEGER PRIMARY KEY,"
-                    + NotePad.Categories.COLUMN_NAME_CATEGORY_NAME + " TEXT UNIQUE,"
-                    + NotePad.Categories.COLUMN_NAME_CATEGORY_COLOR + " INTEGER,"
-                    + NotePad.Categories.COLUMN_NAME_CREATE_DATE + " INTEGER"
-                    + ");");
+            createCategoriesTable(db);
 
             // 创建笔记表（添加分类字段）
             db.execSQL("CREATE TABLE " + NotePad.Notes.TABLE_NAME + " ("
                     + NotePad.Notes._ID + " INTEGER PRIMARY KEY,"
                     + NotePad.Notes.COLUMN_NAME_TITLE + " TEXT,"
                     + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT,"
+                    + NotePad.Notes.COLUMN_NAME_PREVIEW + " TEXT," // 内容预览
                     + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER,"
                     + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER,"
                     + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " INTEGER DEFAULT 1,"
@@ -260,6 +450,35 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                     + ");");
 
             // 插入默认分类
+            insertDefaultCategory(db);
+
+            // 创建大笔记内容的存储
+            NoteBodyStore.createTables(db);
+
+            // 创建全文搜索索引
+            createFtsTable(db);
+
+            // 创建分页查询和列表筛选所用的索引
+            createModifiedIndex(db);
+            createFilterIndexes(db);
+        }
+
+        /**
+         * Creates the categories table.
+         */
+        static void createCategoriesTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + NotePad.Categories.TABLE_NAME + " ("
+                    + NotePad.Categories._ID + " INTEGER PRIMARY KEY,"
+                    + NotePad.Categories.COLUMN_NAME_CATEGORY_NAME + " TEXT UNIQUE,"
+                    + NotePad.Categories.COLUMN_NAME_CATEGORY_COLOR + " INTEGER,"
+                    + NotePad.Categories.COLUMN_NAME_CREATE_DATE + " INTEGER"
+                    + ");");
+        }
+
+        /**
+         * Inserts the default category, which has the _id 1 that new notes default to.
+         */
+        static void insertDefaultCategory(SQLiteDatabase db) {
             ContentValues defaultCategory = new ContentValues();
             defaultCategory.put(NotePad.Categories._ID, 1);
             defaultCategory.put(NotePad.Categories.COLUMN_NAME_CATEGORY_NAME,
@@ -271,26 +490,347 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             db.insert(NotePad.Categories.TABLE_NAME, null, defaultCategory);
         }
 
+        /**
+         * Creates the index that serves paged queries. Paged queries are sorted by modification
+         * date and then _id; since every index entry also holds the rowid, which is _id, an index
+         * on the modification date alone covers that order and lets a page start with a seek.
+         */
+        static void createModifiedIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + NotePad.Notes.TABLE_NAME + "_modified_index ON "
+                    + NotePad.Notes.TABLE_NAME + " (" + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+                    + ");");
+        }
+
+        /**
+         * Creates the indexes that serve the list's filters. Each filter column leads its index,
+         * followed by the modification date, so a filtered list is read in display order straight
+         * from the index instead of being sorted in a temporary B-tree. The due date index serves
+         * todo views that look up notes by deadline.
+         */
+        static void createFilterIndexes(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + NotePad.Notes.TABLE_NAME
+                    + "_category_modified_index ON " + NotePad.Notes.TABLE_NAME + " ("
+                    + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ", "
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + NotePad.Notes.TABLE_NAME
+                    + "_todo_modified_index ON " + NotePad.Notes.TABLE_NAME + " ("
+                    + NotePad.Notes.COLUMN_NAME_IS_TODO + ", "
+                    + NotePad.Notes.COLUMN_NAME_IS_COMPLETED + ", "
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + NotePad.Notes.TABLE_NAME
+                    + "_due_date_index ON " + NotePad.Notes.TABLE_NAME + " ("
+                    + NotePad.Notes.COLUMN_NAME_DUE_DATE + ");");
+        }
+
+        /**
+         * Creates the full-text search table for notes and the triggers that keep it in sync
+         * with the notes table. The ICU tokenizer is preferred because it segments Chinese text
+         * into words; the default tokenizer treats a whole run of CJK characters as one token.
+         * Not every SQLite build includes ICU, so this falls back to the default tokenizer.
+         */
+        static void createFtsTable(SQLiteDatabase db) {
+            try {
+                db.execSQL("CREATE VIRTUAL TABLE " + FTS_TABLE_NAME + " USING fts4("
+                        + NotePad.Notes.COLUMN_NAME_TITLE + ","
+                        + NotePad.Notes.COLUMN_NAME_NOTE + ","
+                        + "tokenize=icu zh_CN"
+                        + ");");
+            } catch (SQLiteException e) {
+                Log.w(TAG, "ICU tokenizer unavailable, CJK search will fall back to LIKE", e);
+                db.execSQL("CREATE VIRTUAL TABLE " + FTS_TABLE_NAME + " USING fts4("
+                        + NotePad.Notes.COLUMN_NAME_TITLE + ","
+                        + NotePad.Notes.COLUMN_NAME_NOTE
+                        + ");");
+            }
+
+            db.execSQL("CREATE TRIGGER " + FTS_TABLE_NAME + "_insert AFTER INSERT ON "
+                    + NotePad.Notes.TABLE_NAME + " BEGIN "
+                    + "INSERT INTO " + FTS_TABLE_NAME + " (docid, "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE + ") "
+                    + "VALUES (new." + NotePad.Notes._ID + ", new." + NotePad.Notes.COLUMN_NAME_TITLE
+                    + ", new." + NotePad.Notes.COLUMN_NAME_NOTE + "); END;");
+
+            createFtsUpdateTriggers(db);
+
+            db.execSQL("CREATE TRIGGER " + FTS_TABLE_NAME + "_delete AFTER DELETE ON "
+                    + NotePad.Notes.TABLE_NAME + " BEGIN "
+                    + "DELETE FROM " + FTS_TABLE_NAME + " WHERE docid = old." + NotePad.Notes._ID
+                    + "; END;");
+        }
+
+        /**
+         * Creates the triggers that copy updated titles and bodies into the full-text search
+         * table. The body of a large note is kept by {@link NoteBodyStore} and its column is
+         * NULL, so an update that leaves the column NULL only copies the title; the store
+         * indexes the body itself when it rewrites it.
+         */
+        static void createFtsUpdateTriggers(SQLiteDatabase db) {
+            db.execSQL("CREATE TRIGGER " + FTS_TABLE_NAME + "_update AFTER UPDATE OF "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                    + " ON " + NotePad.Notes.TABLE_NAME
+                    + " WHEN new." + NotePad.Notes.COLUMN_NAME_NOTE + " IS NOT NULL BEGIN "
+                    + "UPDATE " + FTS_TABLE_NAME + " SET "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + " = new." + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                    + NotePad.Notes.COLUMN_NAME_NOTE + " = new." + NotePad.Notes.COLUMN_NAME_NOTE
+                    + " WHERE docid = old." + NotePad.Notes._ID + "; END;");
+
+            db.execSQL("CREATE TRIGGER " + FTS_TABLE_NAME + "_update_title AFTER UPDATE OF "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                    + " ON " + NotePad.Notes.TABLE_NAME
+                    + " WHEN new." + NotePad.Notes.COLUMN_NAME_NOTE + " IS NULL BEGIN "
+                    + "UPDATE " + FTS_TABLE_NAME + " SET "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + " = new." + NotePad.Notes.COLUMN_NAME_TITLE
+                    + " WHERE docid = old." + NotePad.Notes._ID + "; END;");
+        }
+
+        /**
+         * Returns true if the full-text search table was created with a tokenizer that segments
+         * CJK text.
+         */
+        static boolean isCjkTokenizerAvailable(SQLiteDatabase db) {
+            Cursor c = db.rawQuery("SELECT sql FROM sqlite_master WHERE name = ?",
+                    new String[] { FTS_TABLE_NAME });
+            try {
+                return c.moveToFirst() && c.getString(0) != null
+                        && c.getString(0).contains("tokenize=icu");
+            } finally {
+                c.close();
+            }
+        }
+
         /**
          *
          * Demonstrates that the provider must consider what happens when the
-         * underlying datastore is changed. In this sample, the database is upgraded the database
-         * by destroying the existing data.
-         * A real application should upgrade the database in place.
+         * underlying datastore is changed. The database is upgraded in place, one version at a
+         * time, by the steps in {@link #MIGRATIONS}. Only databases older than the first
+         * version of this sample, whose schema is unknown, are recreated.
          */
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
 
             // Logs that the database is being upgraded
             Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-                    + newVersion + ", which will destroy all old data");
+                    + newVersion);
 
-            if (oldVersion < 4) {
-                // 升级到版本3：添加分类功能
-                db.execSQL("DROP TABLE IF EXISTS categories");
-                db.execSQL("DROP TABLE IF EXISTS notes");
+            if (oldVersion < FIRST_MIGRATABLE_VERSION) {
+                Log.w(TAG, "Version " + oldVersion + " can't be upgraded; destroying all old data");
+                db.execSQL("DROP TABLE IF EXISTS " + NotePad.Categories.TABLE_NAME);
+                db.execSQL("DROP TABLE IF EXISTS " + NotePad.Notes.TABLE_NAME);
                 onCreate(db);
+                return;
+            }
+
+            migrate(db, oldVersion, newVersion);
+        }
+
+        /**
+         * A step of the schema migration, which upgrades the database from the version before
+         * {@link #version} to {@link #version}.
+         */
+        abstract static class Migration {
+            final int version;
+
+            Migration(int version) {
+                this.version = version;
+            }
+
+            abstract void migrate(SQLiteDatabase db);
+        }
+
+        /**
+         * The oldest version that can be upgraded in place: the schema of the original NotePad
+         * sample, with only the notes table.
+         */
+        static final int FIRST_MIGRATABLE_VERSION = 2;
+
+        /**
+         * The migration steps, one for each version after FIRST_MIGRATABLE_VERSION, in order.
+         * A new schema version adds its step here and the same change to onCreate().
+         */
+        static final Migration[] MIGRATIONS = new Migration[] {
+            new Migration(3) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // 版本3：添加分类表和笔记的分类字段。
+                    // 分类字段带外键约束，ALTER TABLE 无法添加，因此重建笔记表
+                    createCategoriesTable(db);
+                    insertDefaultCategory(db);
+                    db.execSQL("CREATE TABLE notes_v3 ("
+                            + NotePad.Notes._ID + " INTEGER PRIMARY KEY,"
+                            + NotePad.Notes.COLUMN_NAME_TITLE + " TEXT,"
+                            + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT,"
+                            + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER,"
+                            + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER,"
+                            + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " INTEGER DEFAULT 1,"
+                            + "FOREIGN KEY(" + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ") REFERENCES "
+                            + NotePad.Categories.TABLE_NAME + "(" + NotePad.Categories._ID + ")"
+                            + ");");
+                    String columns = NotePad.Notes._ID + ", " + NotePad.Notes.COLUMN_NAME_TITLE
+                            + ", " + NotePad.Notes.COLUMN_NAME_NOTE + ", "
+                            + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ", "
+                            + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE;
+                    db.execSQL("INSERT INTO notes_v3 (" + columns + ") SELECT " + columns
+                            + " FROM " + NotePad.Notes.TABLE_NAME);
+                    db.execSQL("DROP TABLE " + NotePad.Notes.TABLE_NAME);
+                    db.execSQL("ALTER TABLE notes_v3 RENAME TO " + NotePad.Notes.TABLE_NAME);
+                }
+            },
+            new Migration(4) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // 版本4：添加待办字段
+                    db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                            + NotePad.Notes.COLUMN_NAME_IS_TODO + " INTEGER DEFAULT 0");
+                    db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                            + NotePad.Notes.COLUMN_NAME_IS_COMPLETED + " INTEGER DEFAULT 0");
+                    db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                            + NotePad.Notes.COLUMN_NAME_DUE_DATE + " INTEGER");
+                    db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                            + NotePad.Notes.COLUMN_NAME_PRIORITY + " INTEGER DEFAULT 0");
+                }
+            },
+            new Migration(5) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // 版本5：添加全文搜索索引，并为已有笔记建立索引
+                    createFtsTable(db);
+                    db.execSQL("INSERT INTO " + FTS_TABLE_NAME + " (docid, "
+                            + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                            + ") SELECT " + NotePad.Notes._ID + ", " + NotePad.Notes.COLUMN_NAME_TITLE
+                            + ", " + NotePad.Notes.COLUMN_NAME_NOTE + " FROM " + NotePad.Notes.TABLE_NAME);
+                }
+            },
+            new Migration(6) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // 版本6：添加分页查询所用的索引
+                    createModifiedIndex(db);
+                }
+            },
+            new Migration(7) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // 版本7：添加内容预览字段，并为已有笔记生成预览。
+                    // SQLite 的 length() 和 substr() 按字符计数，与 makePreview() 的结果一致
+                    db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                            + NotePad.Notes.COLUMN_NAME_PREVIEW + " TEXT");
+                    db.execSQL("UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+                            + NotePad.Notes.COLUMN_NAME_PREVIEW + " = CASE WHEN length("
+                            + NotePad.Notes.COLUMN_NAME_NOTE + ") > " + PREVIEW_LENGTH
+                            + " THEN substr(" + NotePad.Notes.COLUMN_NAME_NOTE + ", 1, " + PREVIEW_LENGTH
+                            + ") || '" + PREVIEW_ELLIPSIS + "' ELSE " + NotePad.Notes.COLUMN_NAME_NOTE
+                            + " END");
+                }
+            },
+            new Migration(8) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // 版本8：添加列表筛选所用的索引
+                    createFilterIndexes(db);
+                }
+            },
+            new Migration(9) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // 版本9：开始强制外键约束。之前删除分类时可能留下引用已删除分类的笔记，
+                    // 将它们移到默认分类
+                    db.execSQL("UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+                            + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = 1 WHERE "
+                            + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " NOT IN (SELECT "
+                            + NotePad.Categories._ID + " FROM " + NotePad.Categories.TABLE_NAME
+                            + ")");
+                }
+            },
+            new Migration(10) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // 版本10：添加大笔记内容的存储。内容列为 NULL 的笔记只更新搜索索引中的标题，
+                    // 因此重建更新触发器。已有的笔记在下次保存时才转为差量方式保存
+                    db.execSQL("CREATE TABLE note_bodies ("
+                            + "note_id INTEGER PRIMARY KEY REFERENCES "
+                            + NotePad.Notes.TABLE_NAME + "(" + NotePad.Notes._ID + ") ON DELETE CASCADE,"
+                            + "base TEXT NOT NULL"
+                            + ");");
+                    db.execSQL("CREATE TABLE note_deltas ("
+                            + "note_id INTEGER NOT NULL REFERENCES note_bodies(note_id) ON DELETE CASCADE,"
+                            + "seq INTEGER NOT NULL,"
+                            + "position INTEGER NOT NULL,"
+                            + "removed INTEGER NOT NULL,"
+                            + "inserted TEXT NOT NULL,"
+                            + "PRIMARY KEY (note_id, seq)"
+                            + ");");
+                    db.execSQL("DROP TRIGGER IF EXISTS " + FTS_TABLE_NAME + "_update");
+                    db.execSQL("DROP TRIGGER IF EXISTS " + FTS_TABLE_NAME + "_update_title");
+                    createFtsUpdateTriggers(db);
+                }
+            },
+            new Migration(11) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // 版本11：大笔记的基础文本改为分段保存，差量改为直接引用笔记表。
+                    // 用 substr() 分片读出基础文本，不必整条读入内存
+                    NoteBodyStore.createChunksTable(db);
+                    Cursor bodies = db.rawQuery("SELECT note_id, length(base) FROM note_bodies",
+                            null);
+                    try {
+                        while (bodies.moveToNext()) {
+                            long noteId = bodies.getLong(0);
+                            long length = bodies.getLong(1);
+                            for (long start = 0; start < length;
+                                    start += NoteBodyStore.CHUNK_LENGTH) {
+                                String chunk = DatabaseUtils.stringForQuery(db, "SELECT substr("
+                                        + "base, " + (start + 1) + ", " + NoteBodyStore.CHUNK_LENGTH
+                                        + ") FROM note_bodies WHERE note_id = " + noteId, null);
+                                NoteBodyStore.insertChunk(db, noteId,
+                                        start / NoteBodyStore.CHUNK_LENGTH * NoteBodyStore.SEQ_SPACING,
+                                        chunk);
+                            }
+                        }
+                    } finally {
+                        bodies.close();
+                    }
+                    NoteBodyStore.createDeltasTable(db, "note_deltas_v11");
+                    db.execSQL("INSERT INTO note_deltas_v11 SELECT * FROM note_deltas");
+                    db.execSQL("DROP TABLE note_deltas");
+                    db.execSQL("ALTER TABLE note_deltas_v11 RENAME TO "
+                            + NoteBodyStore.DELTAS_TABLE_NAME);
+                    db.execSQL("DROP TABLE note_bodies");
+                }
             }
+        };
+
+        /**
+         * Upgrades the database from oldVersion to newVersion by running each migration step in
+         * between, all in one transaction: if a step fails, the database is left at oldVersion.
+         * Each step is timed and logged.
+         *
+         * @return the time taken by each step in milliseconds, keyed by the version it migrated to
+         */
+        static Map<Integer, Long> migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+            Map<Integer, Long> timings = new LinkedHashMap<Integer, Long>();
+            long upgradeStart = SystemClock.elapsedRealtime();
+
+            db.beginTransaction();
+            try {
+                for (Migration migration : MIGRATIONS) {
+                    if (migration.version <= oldVersion || migration.version > newVersion) {
+                        continue;
+                    }
+                    long stepStart = SystemClock.elapsedRealtime();
+                    migration.migrate(db);
+                    long elapsed = SystemClock.elapsedRealtime() - stepStart;
+                    timings.put(migration.version, elapsed);
+                    Log.i(TAG, "Migrated database to version " + migration.version + " in "
+                            + elapsed + " ms");
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            Log.i(TAG, "Upgraded database from version " + oldVersion + " to " + newVersion
+                    + " in " + (SystemClock.elapsedRealtime() - upgradeStart) + " ms");
+            return timings;
         }
     }
 
@@ -306,6 +846,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Creates a new helper object. Note that the database itself isn't opened until
         // something tries to access it, and it's only created if it doesn't already exist.
         mOpenHelper = new DatabaseHelper(getContext());
+        mBodyStore = new NoteBodyStore(mOpenHelper);
 
         // Assumes that any failures will be reported by a thrown exception.
         return true;
@@ -324,17 +865,45 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
 
+        int match = sUriMatcher.match(uri);
+
+        // Queries are timed only if the metrics or the slow-query log need it
+        long start = mMetrics.isEnabled() || mSlowQueries.isEnabled() ? System.nanoTime() : 0;
+
+        // The body of a note read a chunk at a time doesn't come from the notes table
+        if (match == NOTE_CHUNKS) {
+            Cursor chunks = queryChunks(uri);
+            recordQuery(match, start, chunks);
+            return chunks;
+        }
+
         // Constructs a new query builder and sets its table name
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
 
+        // Opens the database object in "read" mode, since no writes need to be done.
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+
+        // The sort order used if the caller doesn't specify one
+        String defaultOrderBy = NotePad.Notes.DEFAULT_SORT_ORDER;
+
+        // The URI that the returned cursor watches for changes
+        Uri notificationUri = uri;
+
+        // Whether the query reads the notes table, and so may be joined with categories
+        boolean queriesNotes = false;
+
+        // The LIMIT clause, used by paged queries
+        String limit = null;
+
         /**
          * Choose the projection and adjust the "where" clause based on URI pattern-matching.
          */
-        switch (sUriMatcher.match(uri)) {
+        switch (match) {
             // If the incoming URI is for notes, chooses the Notes projection
             case NOTES:
                 qb.setTables(NotePad.Notes.TABLE_NAME);
                 qb.setProjectionMap(sNotesProjectionMap);
+                queriesNotes = true;
                 break;
 
             /* If the incoming URI is for a single note identified by its ID, chooses the
@@ -345,10 +914,12 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 qb.setTables(NotePad.Notes.TABLE_NAME);
                 qb.setProjectionMap(sNotesProjectionMap);
                 qb.appendWhere(
-                        NotePad.Notes._ID +    // the name of the ID column
+                        NotePad.Notes.TABLE_NAME + "." +
+                                NotePad.Notes._ID +    // the name of the ID column
                                 "=" +
                                 // the position of the note ID itself in the incoming URI
                                 uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+                queriesNotes = true;
                 break;
 
             case LIVE_FOLDER_NOTES:
@@ -357,10 +928,21 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 qb.setProjectionMap(sLiveFolderProjectionMap);
                 break;
 
+            // If the incoming URI is a full-text search, matches against the FTS table
+            case NOTES_SEARCH:
+                String searchQuery = uri.getQueryParameter(NotePad.Notes.SEARCH_QUERY_PARAMETER);
+                defaultOrderBy = appendSearch(qb, db, searchQuery);
+                queriesNotes = true;
+
+                // Any change to any note may change the search results
+                notificationUri = NotePad.Notes.CONTENT_URI;
+                break;
+
             // If the incoming URI is for categories
             case CATEGORIES:
                 qb.setTables(NotePad.Categories.TABLE_NAME);
                 qb.setProjectionMap(sCategoriesProjectionMap);
+                defaultOrderBy = NotePad.Categories.COLUMN_NAME_CREATE_DATE + " ASC";
                 break;
 
             // If the incoming URI is for a single category
@@ -371,6 +953,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                         NotePad.Categories._ID +
                                 "=" +
                                 uri.getPathSegments().get(1));
+                defaultOrderBy = NotePad.Categories.COLUMN_NAME_CREATE_DATE + " ASC";
                 break;
 
             default:
@@ -378,43 +961,485 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
+        /*
+         * If the caller asked for the category name or color, joins the categories table so that
+         * they come back as columns of the notes cursor instead of needing a query per row.
+         */
+        if (queriesNotes && requestsCategoryColumns(projection)) {
+            qb.setTables(qb.getTables() + CATEGORY_JOIN);
+            qb.setProjectionMap(sJoinedNotesProjectionMap);
+
+            // Both tables have _id and created, so the caller's names for them now mean the notes'
+            selection = qualifyNotesColumns(selection);
+            sortOrder = qualifyNotesColumns(sortOrder);
+        }
+
+        /*
+         * If the caller asked for a page of notes, restricts the query to that page. Paged
+         * queries have a fixed sort order, since the page boundaries depend on it.
+         */
+        if (match == NOTES && uri.getQueryParameter(NotePad.Notes.PAGE_SIZE_PARAMETER) != null) {
+            if (!TextUtils.isEmpty(sortOrder)) {
+                throw new IllegalArgumentException("Paged queries are always sorted by "
+                        + NotePad.Notes.PAGED_SORT_ORDER + "; no sort order can be given");
+            }
+            limit = appendPage(qb, uri);
+            defaultOrderBy = NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+                    + " DESC, " + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + " DESC";
+        }
 
         String orderBy;
         // If no sort order is specified, uses the default
         if (TextUtils.isEmpty(sortOrder)) {
-            if (sUriMatcher.match(uri) == CATEGORIES || sUriMatcher.match(uri) == CATEGORY_ID) {
-                orderBy = NotePad.Categories.COLUMN_NAME_CREATE_DATE + " ASC";
-            } else {
-                orderBy = NotePad.Notes.DEFAULT_SORT_ORDER;
-            }
+            orderBy = defaultOrderBy;
         } else {
             // otherwise, uses the incoming sort order
             orderBy = sortOrder;
         }
 
-        // Opens the database object in "read" mode, since no writes need to be done.
-        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-
         /*
          * Performs the query. If no problems occur trying to read the database, then a Cursor
          * object is returned; otherwise, the cursor variable contains null. If no records were
          * selected, then the Cursor object is empty, and Cursor.getCount() returns 0.
+         *
+         * The list and the categories re-run the same queries whenever they come back into view,
+         * so the results of notes and categories queries are cached under the SQL the builder
+         * makes of them, which covers the projection, selection, sort order and page.
          */
-        Cursor c = qb.query(
-                db,            // The database to query
-                projection,    // The columns to return from the query
-                selection,     // The columns for the where clause
-                selectionArgs, // The values for the where clause
-                null,          // don't group the rows
-                null,          // don't filter by row groups
-                orderBy        // The sort order
-        );
+        String cacheKey = null;
+        long cacheGeneration = 0;
+        Cursor c = null;
+        boolean cached = false;
+        if (match == NOTES || match == CATEGORIES) {
+            cacheGeneration = mQueryCache.getGeneration();
+            cacheKey = QueryResultCache.key(
+                    qb.buildQuery(projection, selection, null, null, orderBy, limit),
+                    selectionArgs);
+            c = mQueryCache.get(cacheKey);
+            cached = c != null;
+        }
+        if (c == null) {
+            c = qb.query(
+                    db,            // The database to query
+                    projection,    // The columns to return from the query
+                    selection,     // The columns for the where clause
+                    selectionArgs, // The values for the where clause
+                    null,          // don't group the rows
+                    null,          // don't filter by row groups
+                    orderBy,       // The sort order
+                    limit          // The page to return, or null for all rows
+            );
+            if (cacheKey != null) {
+                c = mQueryCache.put(cacheKey, c, cacheGeneration);
+            }
+        }
 
         // Tells the Cursor what URI to watch, so it knows when its source data changes
-        c.setNotificationUri(getContext().getContentResolver(), uri);
+        c.setNotificationUri(getContext().getContentResolver(), notificationUri);
+
+        // The bodies of large notes aren't in the notes table; reads them from the body store
+        if (queriesNotes) {
+            c = mBodyStore.wrap(c, match == NOTE_ID ? ContentUris.parseId(uri) : -1);
+        }
+        recordQuery(match, start, c);
+        // A result served from the cache didn't run any SQL, so there is no plan to look at
+        if (start != 0 && !cached) {
+            long nanos = System.nanoTime() - start;
+            if (mSlowQueries.isSlow(nanos)) {
+                logSlowQuery(db, qb, match, projection, selection, selectionArgs, orderBy, limit,
+                        nanos, c.getCount());
+            }
+        }
         return c;
     }
 
+    /**
+     * Adds a query that took too long to the slow-query log, with the SQL the builder made of it.
+     * The plan SQLite chose for that SQL is captured afterwards on a background thread, and the
+     * query is written to the system log once it is.
+     */
+    private void logSlowQuery(final SQLiteDatabase db, SQLiteQueryBuilder qb, int match,
+            String[] projection, String selection, final String[] selectionArgs, String orderBy,
+            String limit, long nanos, int rows) {
+        final String sql = qb.buildQuery(projection, selection, null, null, orderBy, limit);
+        final SlowQueryLog.Entry entry = new SlowQueryLog.Entry(System.currentTimeMillis(),
+                MATCH_NAMES[match], sql, selectionArgs, nanos / 1000, rows);
+        mSlowQueries.add(entry);
+        try {
+            PLAN_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    entry.setPlan(explainQueryPlan(db, sql, selectionArgs));
+                    Log.w(TAG, "Slow query: " + entry);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Too many slow queries at once; the plans of those already queued will do
+            entry.setPlan("unavailable: too many slow queries");
+            Log.w(TAG, "Slow query: " + entry);
+        }
+    }
+
+    /**
+     * Returns the steps of the plan SQLite chooses for a query, separated by "; ".
+     */
+    private static String explainQueryPlan(SQLiteDatabase db, String sql, String[] selectionArgs) {
+        StringBuilder plan = new StringBuilder();
+        try {
+            Cursor steps = db.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+            try {
+                int detailIndex = steps.getColumnIndexOrThrow("detail");
+                while (steps.moveToNext()) {
+                    if (plan.length() > 0) {
+                        plan.append("; ");
+                    }
+                    plan.append(steps.getString(detailIndex));
+                }
+            } finally {
+                steps.close();
+            }
+        } catch (RuntimeException e) {
+            // SQLiteException, or IllegalStateException if the database was closed meanwhile
+            plan.append("unavailable: ").append(e.getMessage());
+        }
+        return plan.toString();
+    }
+
+    /**
+     * Records a query in the metrics, if they're enabled. Counting the rows runs the query, so
+     * the latency recorded covers reading the first window of rows, not only preparing the
+     * statement. The rows aren't counted when only the slow-query log is on: a query that isn't
+     * logged then costs no more than with both off, and the log's timing covers preparing the
+     * statement only.
+     */
+    private void recordQuery(int match, long start, Cursor c) {
+        if (start != 0 && mMetrics.isEnabled()) {
+            mMetrics.record(ProviderMetrics.QUERY, match, start, c.getCount());
+        }
+    }
+
+    /**
+     * Returns the body of the note that the URI names, as rows of {@link NotePad.Notes#_ID} and
+     * {@link NotePad.Notes#COLUMN_NAME_CHUNK_TEXT} whose chunks, joined in order, make up the
+     * body. A large note's chunks come straight from the body store, so the body is never held
+     * whole; a small note's body is a single chunk. The cursor is empty if the note doesn't
+     * exist, and watches the note's URI.
+     */
+    private Cursor queryChunks(Uri uri) {
+        long noteId = Long.parseLong(uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+        Cursor c = mBodyStore.queryChunks(noteId);
+        if (c == null) {
+            MatrixCursor chunks = new MatrixCursor(new String[] {
+                    NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_CHUNK_TEXT
+            });
+            Cursor note = mOpenHelper.getReadableDatabase().query(NotePad.Notes.TABLE_NAME,
+                    new String[] { NotePad.Notes.COLUMN_NAME_NOTE },
+                    NotePad.Notes._ID + " = " + noteId, null, null, null, null);
+            try {
+                if (note.moveToFirst() && !note.isNull(0)) {
+                    chunks.addRow(new Object[] { 0, note.getString(0) });
+                }
+            } finally {
+                note.close();
+            }
+            c = chunks;
+        }
+        c.setNotificationUri(getContext().getContentResolver(),
+                ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId));
+        return c;
+    }
+
+    /**
+     * Restricts a notes query to the page described by the URI's paging parameters.
+     *
+     * If the URI gives the modification date and _id of the last row of the previous page, the
+     * page starts right after that row (keyset paging), which costs an index seek however deep
+     * the page is. Otherwise the page starts at the given offset, or at the first row.
+     *
+     * @return the LIMIT clause for the page
+     * @throws IllegalArgumentException if a paging parameter is missing or not a number
+     */
+    private static String appendPage(SQLiteQueryBuilder qb, Uri uri) {
+        String afterModified = uri.getQueryParameter(NotePad.Notes.PAGE_AFTER_MODIFIED_PARAMETER);
+        String afterId = uri.getQueryParameter(NotePad.Notes.PAGE_AFTER_ID_PARAMETER);
+        String offset = uri.getQueryParameter(NotePad.Notes.PAGE_OFFSET_PARAMETER);
+
+        try {
+            long pageSize = Long.parseLong(uri.getQueryParameter(NotePad.Notes.PAGE_SIZE_PARAMETER));
+            if (pageSize <= 0) {
+                throw new IllegalArgumentException("Invalid page size in " + uri);
+            }
+
+            if (afterModified != null || afterId != null) {
+                if (afterModified == null || afterId == null) {
+                    throw new IllegalArgumentException("Keyset paging needs both "
+                            + NotePad.Notes.PAGE_AFTER_MODIFIED_PARAMETER + " and "
+                            + NotePad.Notes.PAGE_AFTER_ID_PARAMETER + ": " + uri);
+                }
+
+                // The values are parsed as numbers, so they can be written into the clause
+                long modified = Long.parseLong(afterModified);
+                long id = Long.parseLong(afterId);
+                String modifiedColumn = NotePad.Notes.TABLE_NAME + "."
+                        + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE;
+                // The leading "<=" bound lets SQLite seek the index; the OR alone would not
+                qb.appendWhere(modifiedColumn + " <= " + modified + " AND (" + modifiedColumn
+                        + " < " + modified + " OR " + NotePad.Notes.TABLE_NAME + "."
+                        + NotePad.Notes._ID + " < " + id + ")");
+                return String.valueOf(pageSize);
+            }
+
+            if (offset != null) {
+                return Long.parseLong(offset) + "," + pageSize;
+            }
+            return String.valueOf(pageSize);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid paging parameter in " + uri, e);
+        }
+    }
+
+    /**
+     * Sets the preview column from the note text in the given values. The preview is always
+     * derived from the text, so a preview supplied by the caller is discarded; if the values
+     * don't change the text, the stored preview is left as it is.
+     */
+    private static void putPreview(ContentValues values) {
+        values.remove(NotePad.Notes.COLUMN_NAME_PREVIEW);
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            values.put(NotePad.Notes.COLUMN_NAME_PREVIEW,
+                    makePreview(values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE)));
+        }
+    }
+
+    /**
+     * Returns the preview of a note's text: its first PREVIEW_LENGTH characters, followed by an
+     * ellipsis if the text is longer. Characters are counted as code points, as SQLite counts
+     * them, so a surrogate pair is never split.
+     */
+    static String makePreview(String note) {
+        if (note == null) {
+            return null;
+        }
+        int end = 0;
+        for (int i = 0; i < PREVIEW_LENGTH && end < note.length(); i++) {
+            end += Character.charCount(note.codePointAt(end));
+        }
+        return end < note.length() ? note.substring(0, end) + PREVIEW_ELLIPSIS : note;
+    }
+
+    /**
+     * Returns true if the projection includes a column that comes from the categories table.
+     */
+    private static boolean requestsCategoryColumns(String[] projection) {
+        if (projection == null) {
+            return false;
+        }
+        for (String column : projection) {
+            if (NotePad.Notes.COLUMN_NAME_CATEGORY_NAME.equals(column)
+                    || NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR.equals(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Qualifies the columns that the notes table shares with the categories table with the notes
+     * table's name, so that a selection or sort order written for the notes table alone means the
+     * same once the categories are joined, instead of being rejected as ambiguous. String
+     * literals, quoted names and names that are already qualified are left alone.
+     *
+     * @param clause A selection or sort order, or null.
+     * @return The clause with "_id" and "created" qualified, or null if clause was null.
+     */
+    static String qualifyNotesColumns(String clause) {
+        if (clause == null) {
+            return null;
+        }
+        StringBuilder qualified = new StringBuilder(clause.length() + 16);
+        int length = clause.length();
+        int i = 0;
+        while (i < length) {
+            char c = clause.charAt(i);
+            if (c == '\'' || c == '"' || c == '`') {
+                // Copies a literal or quoted name; a doubled quote stands for the quote itself
+                int end = i + 1;
+                while (end < length) {
+                    if (clause.charAt(end) == c) {
+                        if (end + 1 < length && clause.charAt(end + 1) == c) {
+                            end += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    end++;
+                }
+                end = Math.min(end + 1, length);
+                qualified.append(clause, i, end);
+                i = end;
+            } else if (Character.isLetter(c) || c == '_') {
+                int end = i + 1;
+                while (end < length && (Character.isLetterOrDigit(clause.charAt(end))
+                        || clause.charAt(end) == '_')) {
+                    end++;
+                }
+                String name = clause.substring(i, end);
+                if ((name.equalsIgnoreCase(NotePad.Notes._ID)
+                        || name.equalsIgnoreCase(NotePad.Notes.COLUMN_NAME_CREATE_DATE))
+                        && !isPartOfQualifiedName(clause, i, end)) {
+                    qualified.append(NotePad.Notes.TABLE_NAME).append('.');
+                }
+                qualified.append(name);
+                i = end;
+            } else if (Character.isDigit(c)) {
+                // Copies a number whole, so that a suffix such as 1e5 isn't read as a name
+                int end = i + 1;
+                while (end < length && (Character.isLetterOrDigit(clause.charAt(end))
+                        || clause.charAt(end) == '.')) {
+                    end++;
+                }
+                qualified.append(clause, i, end);
+                i = end;
+            } else {
+                qualified.append(c);
+                i++;
+            }
+        }
+        return qualified.toString();
+    }
+
+    // Returns whether the name at [start, end) of clause is already qualified or is itself the
+    // qualifier of a name
+    private static boolean isPartOfQualifiedName(String clause, int start, int end) {
+        int before = start - 1;
+        while (before >= 0 && Character.isWhitespace(clause.charAt(before))) {
+            before--;
+        }
+        int after = end;
+        while (after < clause.length() && Character.isWhitespace(clause.charAt(after))) {
+            after++;
+        }
+        return (before >= 0 && clause.charAt(before) == '.')
+                || (after < clause.length() && clause.charAt(after) == '.');
+    }
+
+    /**
+     * Sets up a query builder for a full-text search of note titles and bodies.
+     *
+     * The search terms are matched as prefixes against the FTS table and the results are ranked
+     * by the number of hits. If the FTS table can't segment CJK text and the search contains CJK
+     * characters, the search falls back to a LIKE scan of the notes table so that it still
+     * finds substrings. The bodies of large notes are scanned in the FTS table, which holds
+     * the searchable part of them.
+     *
+     * @return the default sort order for the search results
+     */
+    private String appendSearch(SQLiteQueryBuilder qb, SQLiteDatabase db, String searchQuery) {
+        String matchExpression = buildMatchExpression(searchQuery);
+
+        // An empty search matches every note
+        if (matchExpression == null) {
+            qb.setTables(NotePad.Notes.TABLE_NAME);
+            qb.setProjectionMap(sNotesProjectionMap);
+            return NotePad.Notes.DEFAULT_SORT_ORDER;
+        }
+
+        if (mCjkTokenizerAvailable == null) {
+            mCjkTokenizerAvailable = DatabaseHelper.isCjkTokenizerAvailable(db);
+        }
+
+        if (!mCjkTokenizerAvailable && containsCjk(searchQuery)) {
+            String pattern = "%" + escapeLikePattern(searchQuery.trim()) + "%";
+            qb.setTables(NotePad.Notes.TABLE_NAME);
+            qb.setProjectionMap(sNotesProjectionMap);
+            qb.appendWhere("(" + NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ");
+            qb.appendWhereEscapeString(pattern);
+            qb.appendWhere(" ESCAPE '\\' OR " + NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ");
+            qb.appendWhereEscapeString(pattern);
+            // The body of a large note is kept by NoteBodyStore and its column is NULL; the
+            // store copies the body into the FTS table, so it is matched there instead. The
+            // FTS row is looked up by docid for those notes only, rather than scanning the
+            // indexed text of every note.
+            qb.appendWhere(" ESCAPE '\\' OR (" + NotePad.Notes.COLUMN_NAME_NOTE + " IS NULL AND "
+                    + "EXISTS (SELECT 1 FROM " + FTS_TABLE_NAME + " WHERE " + FTS_TABLE_NAME
+                    + ".docid = " + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + " AND "
+                    + FTS_TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ");
+            qb.appendWhereEscapeString(pattern);
+            qb.appendWhere(" ESCAPE '\\')))");
+            return NotePad.Notes.DEFAULT_SORT_ORDER;
+        }
+
+        qb.setTables(NotePad.Notes.TABLE_NAME + " JOIN " + FTS_TABLE_NAME + " ON ("
+                + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + " = "
+                + FTS_TABLE_NAME + ".docid)");
+        qb.setProjectionMap(sQualifiedNotesProjectionMap);
+        qb.appendWhere(FTS_TABLE_NAME + " MATCH ");
+        qb.appendWhereEscapeString(matchExpression);
+
+        // offsets() returns four integers per hit, so the number of spaces grows with the hits
+        String offsets = "offsets(" + FTS_TABLE_NAME + ")";
+        return "(length(" + offsets + ") - length(replace(" + offsets + ", ' ', ''))) DESC, "
+                + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.DEFAULT_SORT_ORDER;
+    }
+
+    /**
+     * Escapes the LIKE wildcards '%' and '_', and the backslash used as the escape character,
+     * so that what the user typed is matched literally by a LIKE pattern with ESCAPE '\\'.
+     */
+    static String escapeLikePattern(String text) {
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '%' || c == '_' || c == '\\') {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Converts what the user typed into an FTS MATCH expression. Each whitespace-separated
+     * term becomes a quoted prefix phrase, so FTS operators in the input are taken literally.
+     *
+     * @return the MATCH expression, or null if the query contains no terms
+     */
+    static String buildMatchExpression(String searchQuery) {
+        if (searchQuery == null) {
+            return null;
+        }
+        StringBuilder expression = new StringBuilder();
+        for (String term : searchQuery.trim().split("\\s+")) {
+            term = term.replace("\"", "");
+            if (term.length() == 0) {
+                continue;
+            }
+            if (expression.length() > 0) {
+                expression.append(' ');
+            }
+            expression.append('"').append(term).append("*\"");
+        }
+        return expression.length() == 0 ? null : expression.toString();
+    }
+
+    /**
+     * Returns true if the text contains Chinese, Japanese or Korean characters.
+     */
+    static boolean containsCjk(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            Character.UnicodeBlock block = Character.UnicodeBlock.of(text.charAt(i));
+            if (block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS
+                    || block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_A
+                    || block == Character.UnicodeBlock.CJK_COMPATIBILITY_IDEOGRAPHS
+                    || block == Character.UnicodeBlock.HIRAGANA
+                    || block == Character.UnicodeBlock.KATAKANA
+                    || block == Character.UnicodeBlock.HANGUL_SYLLABLES) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * This is called when a client calls {@link android.content.ContentResolver#getType(Uri)}.
      * Returns the MIME data type of the URI given as a parameter.
@@ -431,15 +1456,21 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
          */
         switch (sUriMatcher.match(uri)) {
 
-            // If the pattern is for notes or live folders, returns the general content type.
+            // If the pattern is for notes, live folders or a search, returns the general
+            // content type.
             case NOTES:
             case LIVE_FOLDER_NOTES:
+            case NOTES_SEARCH:
                 return NotePad.Notes.CONTENT_TYPE;
 
             // If the pattern is for note IDs, returns the note ID content type.
             case NOTE_ID:
                 return NotePad.Notes.CONTENT_ITEM_TYPE;
 
+            // If the pattern is for the chunks of a note's body
+            case NOTE_CHUNKS:
+                return NotePad.Notes.CONTENT_CHUNK_TYPE;
+
             // If the pattern is for categories
             case CATEGORIES:
                 return NotePad.Categories.CONTENT_TYPE;
@@ -455,15 +1486,18 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
 //BEGIN_INCLUDE(stream)
     /**
-     * This describes the MIME types that are supported for opening a note
-     * URI as a stream.
+     * This describes the MIME types that are supported for opening a note, all the notes or the
+     * notes of a category as a stream.
      */
     static ClipDescription NOTE_STREAM_TYPES = new ClipDescription(null,
             new String[] { ClipDescription.MIMETYPE_TEXT_PLAIN });
 
+    // The size of the buffer that a note is encoded into before it's written to the pipe
+    private static final int PIPE_BUFFER_SIZE = 16 * 1024;
+
     /**
-     * Returns the types of available data streams.  URIs to specific notes are supported.
-     * The application can convert such a note to a plain text stream.
+     * Returns the types of available data streams. URIs to a single note, to all the notes and to
+     * a category are supported. The application can convert them to a plain text stream.
      *
      * @param uri the URI to analyze
      * @param mimeTypeFilter The MIME type to check for. This method only returns a data stream
@@ -478,17 +1512,19 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
          */
         switch (sUriMatcher.match(uri)) {
 
-            // If the pattern is for notes or live folders, return null. Data streams are not
-            // supported for this type of URI.
-            case NOTES:
+            // If the pattern is for live folders, a search, chunks or the category list, return
+            // null. Data streams are not supported for this type of URI.
             case LIVE_FOLDER_NOTES:
+            case NOTES_SEARCH:
+            case NOTE_CHUNKS:
             case CATEGORIES:
-            case CATEGORY_ID:
                 return null;
 
-            // If the pattern is for note IDs and the MIME filter is text/plain, then return
-            // text/plain
+            // If the pattern is for a note ID, all the notes or a category and the MIME filter is
+            // text/plain, then return text/plain
             case NOTE_ID:
+            case NOTES:
+            case CATEGORY_ID:
                 return NOTE_STREAM_TYPES.filterMimeTypes(mimeTypeFilter);
 
             // If the URI pattern doesn't match any permitted patterns, throws an exception.
@@ -522,28 +1558,14 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // If the MIME type is supported
         if (mimeTypes != null) {
 
-            // Retrieves the note for this URI. Uses the query method defined for this provider,
-            // rather than using the database query method.
-            Cursor c = query(
-                    uri,                    // The URI of a note
-                    READ_NOTE_PROJECTION,   // Gets a projection containing the note's ID, title,
-                    // and contents
-                    null,                   // No WHERE clause, get all matching records
-                    null,                   // Since there is no WHERE clause, no selection criteria
-                    null                    // Use the default sort order (modification date,
-                    // descending
-            );
-
-
-            // If the query fails or the cursor is empty, stop
-            if (c == null || !c.moveToFirst()) {
-
-                // If the cursor is empty, simply close the cursor and return
-                if (c != null) {
-                    c.close();
-                }
+            // Retrieves the notes for this URI. Reads the notes table directly rather than
+            // through query(), whose cursor would read the whole body of each large note; the
+            // pipe writer streams those from the body store instead.
+            Cursor c = queryExport(uri);
 
-                // If the cursor is null, throw an exception
+            // A single note must exist; a list of notes may be empty
+            if (sUriMatcher.match(uri) == NOTE_ID && c.getCount() == 0) {
+                c.close();
                 throw new FileNotFoundException("Unable to query " + uri);
             }
 
@@ -557,36 +1579,101 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
     }
 
+    /**
+     * Queries the notes table for the notes that a stream URI names, in READ_NOTE_PROJECTION:
+     * one note, all the notes, or the notes of a category, newest first. The body column of a
+     * large note is NULL.
+     *
+     * @throws FileNotFoundException if the URI names a category that doesn't exist.
+     */
+    private Cursor queryExport(Uri uri) throws FileNotFoundException {
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        String selection = null;
+        String[] selectionArgs = null;
+        switch (sUriMatcher.match(uri)) {
+            case NOTE_ID:
+                selection = NotePad.Notes._ID + " = ?";
+                selectionArgs = new String[] { uri.getPathSegments().get(
+                        NotePad.Notes.NOTE_ID_PATH_POSITION) };
+                break;
+
+            case CATEGORY_ID:
+                selectionArgs = new String[] { uri.getPathSegments().get(1) };
+                if (DatabaseUtils.queryNumEntries(db, NotePad.Categories.TABLE_NAME,
+                        NotePad.Categories._ID + " = ?", selectionArgs) == 0) {
+                    throw new FileNotFoundException("Unable to query " + uri);
+                }
+                selection = NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?";
+                break;
+        }
+        return db.query(NotePad.Notes.TABLE_NAME, READ_NOTE_PROJECTION, selection, selectionArgs,
+                null, null, NotePad.Notes.DEFAULT_SORT_ORDER + ", " + NotePad.Notes._ID + " DESC");
+    }
+
     /**
      * Implementation of {@link android.content.ContentProvider.PipeDataWriter}
      * to perform the actual work of converting the data in one of cursors to a
      * stream of data for the client to read.
+     *
+     * Each note is written as its title, an empty line and its body, and the notes are separated
+     * by an empty line. The text is encoded as UTF-8 straight into a reused buffer, and the body
+     * of a large note is read from the body store a chunk at a time, so no note is ever copied
+     * whole.
      */
     @Override
     public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
                                 Bundle opts, Cursor c) {
-        // We currently only support conversion-to-text from a single note entry,
-        // so no need for cursor data type checking here.
+        long start = mMetrics.start();
         FileOutputStream fout = new FileOutputStream(output.getFileDescriptor());
-        PrintWriter pw = null;
+        Utf8.Encoder out = new Utf8.Encoder(fout, PIPE_BUFFER_SIZE);
         try {
-            pw = new PrintWriter(new OutputStreamWriter(fout, "UTF-8"));
-            pw.println(c.getString(READ_NOTE_TITLE_INDEX));
-            pw.println("");
-            pw.println(c.getString(READ_NOTE_NOTE_INDEX));
-        } catch (UnsupportedEncodingException e) {
-            Log.w(TAG, "Ooops", e);
+            while (c.moveToNext()) {
+                if (c.getPosition() > 0) {
+                    out.write('\n');
+                }
+                out.write(c.getString(READ_NOTE_TITLE_INDEX));
+                out.write('\n');
+                out.write('\n');
+                if (!c.isNull(READ_NOTE_NOTE_INDEX)) {
+                    out.write(c.getString(READ_NOTE_NOTE_INDEX));
+                } else {
+                    writeStoredBody(out, c.getLong(READ_NOTE_ID_INDEX));
+                }
+                out.write('\n');
+            }
+            out.flush();
+        } catch (IOException e) {
+            // The reader closed the pipe
+            Log.w(TAG, "Failed to write " + uri, e);
         } finally {
-            c.close();
-            if (pw != null) {
-                pw.flush();
+            if (start != 0) {
+                mMetrics.record(ProviderMetrics.STREAM, sUriMatcher.match(uri), start,
+                        c.getCount());
+                mMetrics.recordBytesStreamed(out.getBytesWritten());
             }
+            c.close();
             try {
                 fout.close();
             } catch (IOException e) {
             }
         }
     }
+
+    // Writes the body of a large note a chunk at a time.
+    private void writeStoredBody(Utf8.Encoder out, long noteId) throws IOException {
+        Cursor chunks = mBodyStore.queryChunks(noteId);
+        if (chunks == null) {
+            return;
+        }
+        try {
+            int chunkColumn = chunks.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_CHUNK_TEXT);
+            while (chunks.moveToNext()) {
+                out.write(chunks.getString(chunkColumn));
+            }
+        } finally {
+            chunks.close();
+        }
+    }
 //END_INCLUDE(stream)
 
     /**
@@ -601,6 +1688,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     @Override
     public Uri insert(Uri uri, ContentValues initialValues) {
 
+        long start = mMetrics.start();
         ContentValues values;
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         long rowId;
@@ -649,19 +1737,16 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                     values.put(NotePad.Notes.COLUMN_NAME_NOTE, "");
                 }
 
+                // Derives the list preview from the note text
+                putPreview(values);
+
                 // If the values map doesn't contain category ID, sets to default category (1)
                 if (values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY_ID) == false) {
                     values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, 1);
                 }
 
                 // Performs the insert and returns the ID of the new note.
-                rowId = db.insert(
-                        NotePad.Notes.TABLE_NAME,        // The table to insert into.
-                        NotePad.Notes.COLUMN_NAME_NOTE,  // A hack, SQLite sets this column value to null
-                        // if values is empty.
-                        values                           // A map of column names, and the values to insert
-                        // into the columns.
-                );
+                rowId = insertNote(db, values);
 
                 // If the insert succeeded, the row ID exists.
                 if (rowId > 0) {
@@ -669,7 +1754,9 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                     resultUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, rowId);
 
                     // Notifies observers registered against this provider that the data changed.
-                    getContext().getContentResolver().notifyChange(resultUri, null);
+                    invalidateQueryCache(resultUri);
+                    notifyChange(resultUri);
+                    mMetrics.record(ProviderMetrics.INSERT, NOTES, start, 1);
                     return resultUri;
                 }
 
@@ -704,7 +1791,9 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
                 if (rowId > 0) {
                     resultUri = ContentUris.withAppendedId(NotePad.Categories.CONTENT_URI, rowId);
-                    getContext().getContentResolver().notifyChange(resultUri, null);
+                    invalidateQueryCache(resultUri);
+                    notifyChange(resultUri);
+                    mMetrics.record(ProviderMetrics.INSERT, CATEGORIES, start, 1);
                     return resultUri;
                 }
 
@@ -730,6 +1819,8 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     @Override
     public int delete(Uri uri, String where, String[] whereArgs) {
+        long start = mMetrics.start();
+        int match = sUriMatcher.match(uri);
 
         // Opens the database object in "write" mode.
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
@@ -737,7 +1828,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         int count;
 
         // Does the delete based on the incoming URI pattern.
-        switch (sUriMatcher.match(uri)) {
+        switch (match) {
 
             // If the incoming pattern matches the general pattern for notes, does a delete
             // based on the incoming "where" columns and arguments.
@@ -820,9 +1911,15 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
         /*Gets a handle to the content resolver object for the current context, and notifies it
          * that the incoming URI changed. The object passes this along to the resolver framework,
-         * and observers that have registered themselves for the provider are notified.
+         * and observers that have registered themselves for the provider are notified. Nothing
+         * changed if no rows were deleted, so observers aren't disturbed then.
          */
-        getContext().getContentResolver().notifyChange(uri, null);
+        if (count > 0) {
+            invalidateQueryCache(uri);
+            notifyChange(uri);
+            notifyNotesIfCategoryChanged(uri, null);
+        }
+        mMetrics.record(ProviderMetrics.DELETE, match, start, count);
 
         // Returns the number of rows deleted.
         return count;
@@ -850,6 +1947,8 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     @Override
     public int update(Uri uri, ContentValues values, String where, String[] whereArgs) {
+        long start = mMetrics.start();
+        int match = sUriMatcher.match(uri);
 
         // Opens the database object in "write" mode.
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
@@ -857,15 +1956,23 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         String finalWhere;
 
         // Does the update based on the incoming URI pattern
-        switch (sUriMatcher.match(uri)) {
+        switch (match) {
 
             // If the incoming URI matches the general notes pattern, does the update based on
             // the incoming data.
             case NOTES:
 
-                // Always update modification date for notes
+                // Always update modification date for notes, and keep the preview in step with the text
                 if (values != null) {
                     values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
+                    putPreview(values);
+                }
+
+                // A body given for many notes at once is kept in the notes table, so the bodies
+                // those notes had in the body store are dropped along with the update.
+                if (values != null && values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+                    count = updateNotesBodies(db, values, where, whereArgs);
+                    break;
                 }
 
                 // Does the update and returns the number of rows updated.
@@ -900,9 +2007,16 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                     finalWhere = finalWhere + " AND " + where;
                 }
 
-                // Always update modification date for notes
+                // Always update modification date for notes, and keep the preview in step with the text
                 if (values != null) {
                     values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
+                    putPreview(values);
+                }
+
+                // A new body is kept in the notes table or in the body store, by its length
+                if (values != null && values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+                    count = updateNoteBody(db, Long.parseLong(noteId), values, finalWhere, whereArgs);
+                    break;
                 }
 
                 // Does the update and returns the number of rows updated.
@@ -957,14 +2071,414 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
         /*Gets a handle to the content resolver object for the current context, and notifies it
          * that the incoming URI changed. The object passes this along to the resolver framework,
-         * and observers that have registered themselves for the provider are notified.
+         * and observers that have registered themselves for the provider are notified. Nothing
+         * changed if no rows were updated, so observers aren't disturbed then.
          */
-        getContext().getContentResolver().notifyChange(uri, null);
+        if (count > 0) {
+            invalidateQueryCache(uri);
+            notifyChange(uri);
+            notifyNotesIfCategoryChanged(uri, values);
+        }
+        mMetrics.record(ProviderMetrics.UPDATE, match, start, count);
 
         // Returns the number of rows updated.
         return count;
     }
 
+    /**
+     * Inserts a note. The body of a large note is kept in the body store instead of the notes
+     * table, in the same transaction as the insert.
+     *
+     * @return the row ID of the new note, or -1 if the insert failed
+     */
+    private long insertNote(SQLiteDatabase db, ContentValues values) {
+        String note = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+        if (note == null || note.length() < mBodyStore.getLargeBodyLength()) {
+            return db.insert(
+                    NotePad.Notes.TABLE_NAME,        // The table to insert into.
+                    NotePad.Notes.COLUMN_NAME_NOTE,  // A hack, SQLite sets this column value to null
+                    // if values is empty.
+                    values                           // A map of column names, and the values to insert
+                    // into the columns.
+            );
+        }
+
+        values.putNull(NotePad.Notes.COLUMN_NAME_NOTE);
+        boolean successful = false;
+        db.beginTransaction();
+        try {
+            long rowId = db.insert(NotePad.Notes.TABLE_NAME, null, values);
+            if (rowId > 0) {
+                mBodyStore.write(db, rowId, note);
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+            return rowId;
+        } finally {
+            db.endTransaction();
+            if (!successful) {
+                mBodyStore.discardCache();
+            }
+        }
+    }
+
+    /**
+     * Updates a single note whose values include its body. A large body is kept in the body
+     * store, where a small edit only appends a delta instead of rewriting the whole body; the
+     * notes table then holds NULL. A body that shrinks well below the large size moves back to
+     * the notes table. The note and its body are updated in one transaction.
+     *
+     * @return the number of rows updated
+     */
+    private int updateNoteBody(SQLiteDatabase db, long noteId, ContentValues values, String where,
+                               String[] whereArgs) {
+        String note = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+        boolean successful = false;
+        db.beginTransaction();
+        try {
+            boolean large = mBodyStore.shouldStore(db, noteId, note);
+            if (large) {
+                values.putNull(NotePad.Notes.COLUMN_NAME_NOTE);
+            }
+            int count = db.update(NotePad.Notes.TABLE_NAME, values, where, whereArgs);
+            if (count > 0) {
+                if (large) {
+                    mBodyStore.write(db, noteId, note);
+                } else {
+                    mBodyStore.remove(db, noteId);
+                }
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+            return count;
+        } finally {
+            db.endTransaction();
+            if (!successful) {
+                mBodyStore.discardCache();
+            }
+            // The caller's values keep the body it asked for
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, note);
+        }
+    }
+
+    /**
+     * Updates the notes selected by the given where clause, whose values include a body. The
+     * body is written to the notes table, and the bodies the notes had in the body store are
+     * removed in the same transaction.
+     *
+     * @return the number of rows updated
+     */
+    private int updateNotesBodies(SQLiteDatabase db, ContentValues values, String where,
+                                  String[] whereArgs) {
+        boolean successful = false;
+        db.beginTransaction();
+        try {
+            mBodyStore.removeAll(db, where, whereArgs);
+            int count = db.update(NotePad.Notes.TABLE_NAME, values, where, whereArgs);
+            db.setTransactionSuccessful();
+            successful = true;
+            return count;
+        } finally {
+            db.endTransaction();
+            if (!successful) {
+                mBodyStore.discardCache();
+            }
+        }
+    }
+
+    /**
+     * Notes queries can include the name and color of each note's category, so a change to the
+     * categories also changes the results of those queries. Notifies observers of the notes URI
+     * if the given URI is a categories URI and the change can show in notes queries: a
+     * deletion, or an update of a category's name or color. A new category has no notes yet.
+     *
+     * @param values The updated values, or null for a deletion.
+     */
+    private void notifyNotesIfCategoryChanged(Uri uri, ContentValues values) {
+        int match = sUriMatcher.match(uri);
+        if (match != CATEGORIES && match != CATEGORY_ID) {
+            return;
+        }
+        if (values == null
+                || values.containsKey(NotePad.Categories.COLUMN_NAME_CATEGORY_NAME)
+                || values.containsKey(NotePad.Categories.COLUMN_NAME_CATEGORY_COLOR)) {
+            notifyChange(NotePad.Notes.CONTENT_URI);
+        }
+    }
+
+    /**
+     * Notifies observers that the data at the given URI changed. While a batch is running on the
+     * calling thread, the notification is held until the batch commits instead, so that
+     * observers hear of the whole batch once; see {@link #endBatch(boolean)}.
+     */
+    private void notifyChange(Uri uri) {
+        Set<Uri> pending = mBatchNotifications.get();
+        if (pending == null) {
+            sendNotification(uri);
+        } else if (!pending.add(uri)) {
+            mNotificationsCoalesced.record(1);
+        }
+    }
+
+    /**
+     * Drops the cached query results that read the table the given URI changed. Called for every
+     * write that changed rows, as it's made; a batch also calls it again for the URIs it notifies
+     * once it has committed or rolled back. A change to a category only drops the notes queries
+     * that joined the categories table.
+     */
+    private void invalidateQueryCache(Uri uri) {
+        switch (sUriMatcher.match(uri)) {
+            case NOTES:
+            case NOTE_ID:
+                mQueryCache.invalidate(NotePad.Notes.TABLE_NAME);
+                break;
+            case CATEGORIES:
+            case CATEGORY_ID:
+                mQueryCache.invalidate(NotePad.Categories.TABLE_NAME);
+                break;
+            default:
+                mQueryCache.clear();
+                break;
+        }
+    }
+
+    /**
+     * Sends a change notification to the observers of the given URI and counts it.
+     */
+    private void sendNotification(Uri uri) {
+        getContext().getContentResolver().notifyChange(uri, null);
+        mNotificationsSent.record(1);
+        if (mMetrics.isEnabled()) {
+            mMetrics.recordNotification(sUriMatcher.match(uri));
+        }
+    }
+
+    /**
+     * Returns the counter of change notifications sent to observers.
+     */
+    RateCounter getNotificationsSent() {
+        return mNotificationsSent;
+    }
+
+    /**
+     * Returns the counter of change notifications that were merged into another notification,
+     * or dropped because the batch that made them rolled back.
+     */
+    RateCounter getNotificationsCoalesced() {
+        return mNotificationsCoalesced;
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#call(Uri, String, String, Bundle)}. Reads, resets
+     * and turns on or off the provider's metrics, and reads, clears and sets the threshold of the
+     * slow-query log; see {@link NotePad#METHOD_GET_METRICS} and
+     * {@link NotePad#METHOD_GET_SLOW_QUERIES}.
+     *
+     * @return a Bundle that holds whether the metrics are enabled, the slow-query threshold and,
+     * for the methods that read them, the text report.
+     * @throws IllegalArgumentException if the method isn't known, or a threshold isn't a number.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        Bundle result = new Bundle();
+        if (NotePad.METHOD_GET_METRICS.equals(method)) {
+            result.putString(NotePad.KEY_METRICS_REPORT, describeMetrics());
+        } else if (NotePad.METHOD_SET_METRICS_ENABLED.equals(method)) {
+            mMetrics.setEnabled(Boolean.parseBoolean(arg));
+        } else if (NotePad.METHOD_RESET_METRICS.equals(method)) {
+            mMetrics.reset();
+        } else if (NotePad.METHOD_GET_SLOW_QUERIES.equals(method)) {
+            result.putString(NotePad.KEY_SLOW_QUERIES, mSlowQueries.describe());
+        } else if (NotePad.METHOD_SET_SLOW_QUERY_THRESHOLD.equals(method)) {
+            mSlowQueries.setThresholdMillis(Long.parseLong(arg));
+        } else if (NotePad.METHOD_CLEAR_SLOW_QUERIES.equals(method)) {
+            mSlowQueries.clear();
+        } else {
+            throw new IllegalArgumentException("Unknown method " + method);
+        }
+        result.putBoolean(NotePad.KEY_METRICS_ENABLED, mMetrics.isEnabled());
+        result.putLong(NotePad.KEY_SLOW_QUERY_THRESHOLD, mSlowQueries.getThresholdMillis());
+        return result;
+    }
+
+    /**
+     * Writes the metrics report and the slow-query log for dumpsys, as in
+     * "adb shell dumpsys activity provider com.example.android.notepad/.NotePadProvider".
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.print(describeMetrics());
+        writer.print(mSlowQueries.describe());
+    }
+
+    // Returns the metrics of each entry point, followed by those of notifications, the body
+    // store and the query cache, which are always counted.
+    private String describeMetrics() {
+        return mMetrics.describe() + "  notifications sent: " + mNotificationsSent
+                + "\n  notifications coalesced: " + mNotificationsCoalesced
+                + "\n  body store: " + mBodyStore.describeMetrics()
+                + "\n  query cache: " + mQueryCache.describe() + "\n";
+    }
+
+    /**
+     * Returns the metrics of the provider's entry points.
+     */
+    ProviderMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Returns the log of queries that took longer than its threshold.
+     */
+    SlowQueryLog getSlowQueries() {
+        return mSlowQueries;
+    }
+
+    /**
+     * Waits until the plans of the slow queries logged so far have been captured, so that tests
+     * can read them.
+     */
+    void awaitSlowQueryPlansForTest() {
+        // The plan thread runs its tasks in order, so once an empty task is done, so are they
+        FutureTask<Void> marker = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, null);
+        try {
+            PLAN_EXECUTOR.execute(marker);
+            marker.get(5, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Plan queue is full, not waiting for slow-query plans");
+        } catch (TimeoutException e) {
+            Log.w(TAG, "Timed out waiting for slow-query plans");
+        } catch (ExecutionException e) {
+            // An empty task doesn't fail
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the cache of query results, so that tests that write to the database directly can
+     * clear it, and benchmarks can read its hits and misses.
+     */
+    QueryResultCache getQueryCache() {
+        return mQueryCache;
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#bulkInsert(Uri, ContentValues[])}.
+     * Inserts all the rows in one transaction, so that either all of them are inserted or none
+     * are, and notifies observers once after the transaction commits.
+     * @return The number of rows inserted.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        boolean successful = false;
+
+        mBatchNotifications.set(new LinkedHashSet<Uri>());
+        db.beginTransaction();
+        try {
+            int count = super.bulkInsert(uri, values);
+            db.setTransactionSuccessful();
+            successful = true;
+            return count;
+        } finally {
+            db.endTransaction();
+            endBatch(successful);
+        }
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#applyBatch(String, ArrayList)}.
+     * Applies all the operations in one transaction, so that either all of them take effect or
+     * none do, and notifies observers once after the transaction commits.
+     * @return The results of the operations.
+     * @throws OperationApplicationException if an operation's expectations aren't met; no
+     * operation takes effect in that case.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        boolean successful = false;
+
+        mBatchNotifications.set(new LinkedHashSet<Uri>());
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            successful = true;
+            return results;
+        } finally {
+            db.endTransaction();
+            endBatch(successful);
+        }
+    }
+
+    /**
+     * Ends the batch running on the calling thread. If its transaction committed, sends the
+     * notifications it held back. A batch that changed a single row of a table notifies that
+     * row's URI, so that only the observers of that row and of the whole table hear of it. A
+     * batch that changed several rows of a table notifies the table's URI once instead, which
+     * also reaches the observers of each row.
+     */
+    private void endBatch(boolean successful) {
+        Set<Uri> pending = mBatchNotifications.get();
+        mBatchNotifications.remove();
+
+        // Queries on other threads may have cached what they read while the batch ran
+        for (Uri uri : pending) {
+            invalidateQueryCache(uri);
+        }
+        if (!successful) {
+            mNotificationsCoalesced.record(pending.size());
+            // The body store may hold bodies written by the batch
+            mBodyStore.discardCache();
+            return;
+        }
+
+        int noteRows = 0;
+        int categoryRows = 0;
+        for (Uri uri : pending) {
+            switch (sUriMatcher.match(uri)) {
+                case NOTE_ID:
+                    noteRows++;
+                    break;
+                case CATEGORY_ID:
+                    categoryRows++;
+                    break;
+            }
+        }
+        boolean widenNotes = noteRows > 1;
+        boolean widenCategories = categoryRows > 1;
+
+        // Row notifications are redundant when their table's URI is notified
+        boolean notesCovered = widenNotes || pending.contains(NotePad.Notes.CONTENT_URI);
+        boolean categoriesCovered =
+                widenCategories || pending.contains(NotePad.Categories.CONTENT_URI);
+
+        for (Uri uri : pending) {
+            int match = sUriMatcher.match(uri);
+            if ((match == NOTE_ID && notesCovered) || (match == CATEGORY_ID && categoriesCovered)) {
+                mNotificationsCoalesced.record(1);
+            } else {
+                sendNotification(uri);
+            }
+        }
+        if (widenNotes && !pending.contains(NotePad.Notes.CONTENT_URI)) {
+            sendNotification(NotePad.Notes.CONTENT_URI);
+        }
+        if (widenCategories && !pending.contains(NotePad.Categories.CONTENT_URI)) {
+            sendNotification(NotePad.Categories.CONTENT_URI);
+        }
+    }
+
     /**
      * A test package can call this to get a handle to the database underlying NotePadProvider,
      * so it can insert test data into the database. The test case class is responsible for
@@ -976,4 +2490,12 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     DatabaseHelper getOpenHelperForTest() {
         return mOpenHelper;
     }
+
+    /**
+     * Returns the store that keeps the bodies of large notes, so that tests and benchmarks can
+     * change its threshold, compact it and read its metrics.
+     */
+    NoteBodyStore getBodyStoreForTest() {
+        return mBodyStore;
+    }
 }
\ No newline at end of file
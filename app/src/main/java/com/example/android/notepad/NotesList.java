@@ -19,17 +19,24 @@ package com.example.android.notepad;
 import com.example.android.notepad.NotePad;
 
 import android.app.ListActivity;
+import android.app.LoaderManager;
 import android.content.ClipboardManager;
 import android.content.ClipData;
 import android.content.ComponentName;
 import android.content.ContentUris;
 import android.content.Context;
+import android.content.CursorLoader;
 import android.content.Intent;
+import android.content.Loader;
+import android.database.ContentObserver;
 import android.database.Cursor;
-import android.graphics.Paint;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.text.Editable;
 import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.LayoutInflater;
@@ -45,16 +52,12 @@ import android.widget.Button;
 import android.widget.EditText;
 import android.widget.LinearLayout;
 import android.widget.ListView;
-import android.widget.SimpleCursorAdapter;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
-import java.util.Locale;
 import android.content.ContentValues;
 
 /**
@@ -62,12 +65,12 @@ import android.content.ContentValues;
  * provided in the incoming Intent if there is one, otherwise it defaults to displaying the
  * contents of the {@link NotePadProvider}.
  *
- * NOTE: Notice that the provider operations in this Activity are taking place on the UI thread.
- * This is not a good practice. It is only done here to make the code more readable. A real
- * application should use the {@link android.content.AsyncQueryHandler} or
- * {@link android.os.AsyncTask} object to perform operations asynchronously on a separate thread.
+ * The list is queried through a {@link CursorLoader}, so queries run on a background thread and
+ * the Cursor is swapped into the adapter when it is ready. The unfiltered notes list is read a
+ * page at a time through a {@link PagedNotesLoader}, so only the visible rows are kept in memory.
+ * NOTE: Notice that the writes in this Activity are still taking place on the UI thread.
  */
-public class NotesList extends ListActivity {
+public class NotesList extends ListActivity implements LoaderManager.LoaderCallbacks<Cursor> {
 
     // For logging and debugging
     private static final String TAG = "NotesList";
@@ -75,23 +78,24 @@ public class NotesList extends ListActivity {
     /**
      * The columns needed by the cursor adapter
      */
-    private static final String[] PROJECTION = new String[] {
+    static final String[] PROJECTION = new String[] {
             NotePad.Notes._ID, // 0
             NotePad.Notes.COLUMN_NAME_TITLE, // 1
-            NotePad.Notes.COLUMN_NAME_NOTE, // 2 - 新增内容列用于搜索
+            NotePad.Notes.COLUMN_NAME_PREVIEW, // 2 - 内容预览（由提供者生成，不读取完整内容）
             NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, // 3
             NotePad.Notes.COLUMN_NAME_CATEGORY_ID, // 4 - 新增分类ID
             NotePad.Notes.COLUMN_NAME_IS_TODO, // 5 - 新增：是否为待办
             NotePad.Notes.COLUMN_NAME_IS_COMPLETED, // 6 - 新增：是否完成
             NotePad.Notes.COLUMN_NAME_DUE_DATE, // 7 - 新增：截止日期
-            NotePad.Notes.COLUMN_NAME_PRIORITY // 8 - 新增：优先级
+            NotePad.Notes.COLUMN_NAME_PRIORITY, // 8 - 新增：优先级
+            NotePad.Notes.COLUMN_NAME_CATEGORY_NAME // 9 - 分类名称（由提供者关联分类表得到）
     };
 
     /** The index of the title column */
     private static final int COLUMN_INDEX_TITLE = 1;
 
-    /** The index of the note content column */
-    private static final int COLUMN_INDEX_NOTE = 2;
+    /** The index of the note preview column */
+    private static final int COLUMN_INDEX_PREVIEW = 2;
 
     /** The index of the modification date column */
     private static final int COLUMN_INDEX_MODIFICATION_DATE = 3;
@@ -111,12 +115,74 @@ public class NotesList extends ListActivity {
     /** The index of the priority column */
     private static final int COLUMN_INDEX_PRIORITY = 8;
 
-    private SimpleCursorAdapter mAdapter;
+    /** The index of the category name column */
+    private static final int COLUMN_INDEX_CATEGORY_NAME = 9;
+
+    /** The ID of the loader that queries the list */
+    private static final int NOTES_LOADER = 0;
+
+    // Keys of the query arguments passed to the loader
+    private static final String ARG_URI = "uri";
+    private static final String ARG_SELECTION = "selection";
+    private static final String ARG_SELECTION_ARGS = "selectionArgs";
+    private static final String ARG_SORT_ORDER = "sortOrder";
+    private static final String ARG_PAGED = "paged";
+
+    // 输入停止这么久（毫秒）后才开始搜索，连续输入时不会每个字都查询一次
+    private static final long SEARCH_DEBOUNCE_MILLIS = 150;
+
+    // 相对时间（“5 分钟前”）的最小单位，列表显示时按这个间隔刷新
+    private static final long RELATIVE_TIME_TICK_MILLIS = 60 * 1000;
+
+    private final Handler mHandler = new Handler();
+
+    // 输入停止后执行的搜索
+    private final Runnable mSearchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            performSearch();
+        }
+    };
+
+    // 列表显示时每到整分钟重新绑定可见的行，使“5 分钟前”这样的相对时间保持最新
+    private final Runnable mRelativeTimeTick = new Runnable() {
+        @Override
+        public void run() {
+            if (mAdapter != null && mAdapter.getCount() > 0) {
+                mAdapter.notifyDataSetChanged();
+            }
+            scheduleRelativeTimeTick();
+        }
+    };
+
+    // 笔记变化后上次的搜索结果可能不完整，不能再用来限定新的搜索
+    private final ContentObserver mNotesObserver = new ContentObserver(mHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mIncrementalSearch.reset();
+            if (mSearchRefined) {
+                performQuery(mCurrentSearchQuery);
+            }
+        }
+    };
+
+    private final IncrementalSearch mIncrementalSearch = new IncrementalSearch();
+
+    // 高亮列表中的搜索词，与正在显示的结果的搜索词一致
+    private final SearchHighlighter mHighlighter = new SearchHighlighter();
+
+    // 从发出搜索到结果显示的延迟
+    private final LatencyHistogram mSearchLatency = new LatencyHistogram();
+
+    private NotesListAdapter mAdapter;
     private LinearLayout mSearchLayout;
     private EditText mSearchEditText;
     private Button mSearchButton;
     private Button mClearButton;
     private String mCurrentSearchQuery = "";
+    private String mLoadingQuery = ""; // 正在加载的查询的搜索词
+    private boolean mSearchRefined; // 正在显示的搜索是否限定在上次的结果中
+    private long mSearchIssuedAt; // 发出搜索的时间，结果显示后清零；不是搜索时为 0
     private long currentFilterCategoryId = -1; // -1 表示显示所有分类
     private String currentFilterCategoryName = "";
     private int currentTodoFilter = -1; // -1:全部, 0:仅笔记, 1:仅待办, 2:未完成待办
@@ -154,8 +220,46 @@ public class NotesList extends ListActivity {
         // 初始化搜索界面
         initSearchView();
 
+        // 创建适配器，查询结果由 Loader 异步交给它
+        setupAdapter();
+
         // 执行初始查询（显示所有笔记）
-        performQuery("");
+        getLoaderManager().initLoader(NOTES_LOADER, buildQueryArgs(""), this);
+
+        getContentResolver().registerContentObserver(
+                NotePad.Notes.CONTENT_URI, true, mNotesObserver);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // 离开期间相对时间可能已经过时
+        mRelativeTimeTick.run();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mHandler.removeCallbacks(mRelativeTimeTick);
+    }
+
+    // 安排在下一个整分钟刷新相对时间
+    private void scheduleRelativeTimeTick() {
+        mHandler.removeCallbacks(mRelativeTimeTick);
+        long now = System.currentTimeMillis();
+        mHandler.postDelayed(mRelativeTimeTick, RELATIVE_TIME_TICK_MILLIS
+                - now % RELATIVE_TIME_TICK_MILLIS);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mHandler.removeCallbacks(mSearchRunnable);
+        mHandler.removeCallbacks(mRelativeTimeTick);
+        getContentResolver().unregisterContentObserver(mNotesObserver);
+        if (mSearchLatency.getCount() > 0) {
+            Log.i(TAG, "Search latency: " + mSearchLatency);
+        }
     }
 
     /**
@@ -186,6 +290,23 @@ public class NotesList extends ListActivity {
             }
         });
 
+        // 输入时自动搜索，输入停止 SEARCH_DEBOUNCE_MILLIS 后才执行
+        mSearchEditText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                mHandler.removeCallbacks(mSearchRunnable);
+                mHandler.postDelayed(mSearchRunnable, SEARCH_DEBOUNCE_MILLIS);
+            }
+        });
+
         // 设置键盘搜索按钮事件
         mSearchEditText.setOnEditorActionListener(new TextView.OnEditorActionListener() {
             @Override
@@ -209,7 +330,12 @@ public class NotesList extends ListActivity {
      * 执行搜索
      */
     private void performSearch() {
+        mHandler.removeCallbacks(mSearchRunnable);
         String query = mSearchEditText.getText().toString().trim();
+        if (query.equals(mCurrentSearchQuery)) {
+            // 例如只输入了空格，结果不变
+            return;
+        }
         mCurrentSearchQuery = query;
         performQuery(query);
     }
@@ -219,28 +345,55 @@ public class NotesList extends ListActivity {
      */
     private void clearSearch() {
         mSearchEditText.setText("");
+        mHandler.removeCallbacks(mSearchRunnable);
         mCurrentSearchQuery = "";
         performQuery("");
     }
 
     /**
-     * 执行查询
+     * 执行查询。查询在后台线程运行；新的查询会取代尚未完成的旧查询，结果就绪后交给适配器。
      * @param query 搜索查询字符串
      */
     private void performQuery(String query) {
+        // 只统计搜索词变化引起的加载；筛选条件、分类或数据变化引起的重新加载不计入搜索延迟，
+        // 它们取代的、尚未完成的搜索也不再计入
+        mSearchIssuedAt = query.equals(mLoadingQuery) ? 0 : SystemClock.uptimeMillis();
+        mLoadingQuery = query;
+        getLoaderManager().restartLoader(NOTES_LOADER, buildQueryArgs(query), this);
+    }
+
+    /**
+     * 返回除搜索词外的筛选条件，筛选条件相同的搜索结果才能互相复用
+     */
+    private String getFilterKey() {
+        return currentFilterCategoryId + "/" + currentTodoFilter;
+    }
+
+    /**
+     * 根据搜索词和当前筛选条件构造查询参数
+     * @param query 搜索查询字符串
+     */
+    private Bundle buildQueryArgs(String query) {
         String selection = null;
         String[] selectionArgs = null;
 
         List<String> selectionParts = new ArrayList<>();
         List<String> argsList = new ArrayList<>();
 
-        // 搜索条件
+        // 搜索条件：通过全文搜索URI查询，结果按相关度排序
+        Uri queryUri = getIntent().getData();
+        String sortOrder = NotePad.Notes.DEFAULT_SORT_ORDER;
         if (!TextUtils.isEmpty(query)) {
-            selectionParts.add("(" + NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ? OR " +
-                    NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ?)");
-            String searchPattern = "%" + query + "%";
-            argsList.add(searchPattern);
-            argsList.add(searchPattern);
+            queryUri = NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.SEARCH_QUERY_PARAMETER, query)
+                    .build();
+            sortOrder = null;
+        }
+
+        // 笔记列表（非搜索）分页读取，排序固定为修改时间倒序
+        boolean paged = NotePad.Notes.CONTENT_URI.equals(queryUri);
+        if (paged) {
+            sortOrder = null;
         }
 
         // 分类筛选条件
@@ -265,151 +418,84 @@ public class NotesList extends ListActivity {
             }
         }
 
+        // 在上次的搜索词后继续输入时，只在上次的结果中搜索
+        mSearchRefined = false;
+        if (!TextUtils.isEmpty(query)) {
+            String refinement = mIncrementalSearch.refineSelection(query, getFilterKey());
+            if (refinement != null) {
+                selectionParts.add(refinement);
+                mSearchRefined = true;
+            }
+        }
+
         if (!selectionParts.isEmpty()) {
             selection = TextUtils.join(" AND ", selectionParts);
             selectionArgs = argsList.toArray(new String[0]);
         }
 
-        Cursor cursor = managedQuery(
-                getIntent().getData(),
-                PROJECTION,
-                selection,
-                selectionArgs,
-                NotePad.Notes.DEFAULT_SORT_ORDER
-        );
-
-        setupAdapter(cursor);
+        Bundle args = new Bundle();
+        args.putString(ARG_URI, queryUri.toString());
+        args.putString(ARG_SELECTION, selection);
+        args.putStringArray(ARG_SELECTION_ARGS, selectionArgs);
+        args.putString(ARG_SORT_ORDER, sortOrder);
+        args.putBoolean(ARG_PAGED, paged);
+        return args;
     }
 
-    /**
-     * 设置适配器
-     */
-    private void setupAdapter(Cursor cursor) {
-        String[] dataColumns = {
-                NotePad.Notes.COLUMN_NAME_TITLE,
-                NotePad.Notes.COLUMN_NAME_NOTE,
-                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
-        };
-
-        int[] viewIDs = {
-                android.R.id.text1,    // 标题
-                android.R.id.text2,    // 内容预览
-                R.id.timestamp         // 时间戳
-        };
-
-        mAdapter = new SimpleCursorAdapter(
+    @Override
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        if (args.getBoolean(ARG_PAGED)) {
+            return new PagedNotesLoader(
+                    this,
+                    Uri.parse(args.getString(ARG_URI)),
+                    PROJECTION,
+                    args.getString(ARG_SELECTION),
+                    args.getStringArray(ARG_SELECTION_ARGS)
+            );
+        }
+        return new CursorLoader(
                 this,
-                R.layout.noteslist_item,
-                cursor,
-                dataColumns,
-                viewIDs
+                Uri.parse(args.getString(ARG_URI)),
+                PROJECTION,
+                args.getString(ARG_SELECTION),
+                args.getStringArray(ARG_SELECTION_ARGS),
+                args.getString(ARG_SORT_ORDER)
         );
+    }
 
-        mAdapter.setViewBinder(new SimpleCursorAdapter.ViewBinder() {
-            @Override
-            public boolean setViewValue(View view, Cursor cursor, int columnIndex) {
-                if (view.getId() == R.id.timestamp) {
-                    // 处理时间戳显示
-                    TextView textView = (TextView) view;
-                    long timestamp = cursor.getLong(columnIndex);
-                    String formattedDate = formatDate(timestamp);
-                    textView.setText(formattedDate);
-                    return true;
-                } else if (view.getId() == android.R.id.text2) {
-                    // 处理内容预览显示
-                    TextView textView = (TextView) view;
-                    String noteContent = cursor.getString(columnIndex);
-                    // 获取分类信息并显示
-                    long categoryId = cursor.getLong(COLUMN_INDEX_CATEGORY_ID);
-                    String categoryInfo = getCategoryInfo(categoryId);
-
-                    // 获取待办状态
-                    boolean isTodo = cursor.getInt(COLUMN_INDEX_IS_TODO) == 1;
-                    boolean isCompleted = cursor.getInt(COLUMN_INDEX_IS_COMPLETED) == 1;
-
-                    String preview = "";
-                    if (!TextUtils.isEmpty(noteContent)) {
-                        preview = noteContent.length() > 40 ?
-                                noteContent.substring(0, 40) + "..." : noteContent;
-                    }
-
-                    String displayText = categoryInfo;
-                    if (isTodo) {
-                        displayText += " | 待办" + (isCompleted ? "✓" : "");
-                    }
-                    displayText += " | " + preview;
-
-                    textView.setText(displayText);
-                    return true;
-                } else if (view.getId() == android.R.id.text1) {
-                    // 处理标题显示
-                    TextView textView = (TextView) view;
-                    String title = cursor.getString(columnIndex);
-
-                    // 获取待办状态
-                    boolean isTodo = cursor.getInt(COLUMN_INDEX_IS_TODO) == 1;
-                    boolean isCompleted = cursor.getInt(COLUMN_INDEX_IS_COMPLETED) == 1;
-
-                    // 如果是已完成的待办，添加删除线
-                    if (isTodo && isCompleted) {
-                        textView.setPaintFlags(textView.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
-                        textView.setAlpha(0.6f);
-                    } else {
-                        textView.setPaintFlags(textView.getPaintFlags() & (~Paint.STRIKE_THRU_TEXT_FLAG));
-                        textView.setAlpha(1.0f);
-                    }
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+        // 保存搜索结果，供继续输入时的搜索复用
+        if (!TextUtils.isEmpty(mLoadingQuery)) {
+            mIncrementalSearch.setResults(mLoadingQuery, getFilterKey(), cursor, 0);
+        }
 
-                    textView.setText(highlightText(title, mCurrentSearchQuery));
-                    return true;
-                }
-                return false;
-            }
-        });
+        // 高亮与结果对应的搜索词
+        mHighlighter.setQuery(mLoadingQuery);
 
-        setListAdapter(mAdapter);
+        // Loader 负责关闭旧的 Cursor
+        mAdapter.swapCursor(cursor);
         updateTitle();
-    }
 
-    /**
-     * 高亮显示搜索文本
-     */
-    private CharSequence highlightText(String text, String query) {
-        if (TextUtils.isEmpty(query) || TextUtils.isEmpty(text)) {
-            return text;
+        if (mSearchIssuedAt != 0) {
+            mSearchLatency.record(SystemClock.uptimeMillis() - mSearchIssuedAt);
+            mSearchIssuedAt = 0;
         }
-
-        // 这里可以添加文本高亮逻辑
-        // 简单实现：直接返回原文本
-        return text;
     }
 
-    /**
-     * 格式化时间戳
-     */
-    private String formatDate(long timestamp) {
-        Date date = new Date(timestamp);
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm", Locale.getDefault());
-        return sdf.format(date);
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+        mAdapter.swapCursor(null);
     }
 
     /**
-     * 获取分类信息
+     * 设置适配器
      */
-    private String getCategoryInfo(long categoryId) {
-        Cursor cursor = getContentResolver().query(
-                NotePad.Categories.CONTENT_URI,
-                new String[]{NotePad.Categories.COLUMN_NAME_CATEGORY_NAME},
-                NotePad.Categories._ID + "=?",
-                new String[]{String.valueOf(categoryId)},
-                null
-        );
+    private void setupAdapter() {
+        // 标题和预览中的搜索词会被高亮
+        mAdapter = new NotesListAdapter(this, mHighlighter);
 
-        String categoryName = "未知分类";
-        if (cursor != null && cursor.moveToFirst()) {
-            categoryName = cursor.getString(0);
-            cursor.close();
-        }
-        return categoryName;
+        setListAdapter(mAdapter);
     }
 
     /**
@@ -512,33 +598,21 @@ public class NotesList extends ListActivity {
                     }
                 });
 
-        // 从数据库加载分类
-        Cursor cursor = getContentResolver().query(
-                NotePad.Categories.CONTENT_URI,
-                new String[]{
-                        NotePad.Categories._ID,
-                        NotePad.Categories.COLUMN_NAME_CATEGORY_NAME
-                },
-                null, null, NotePad.Categories.COLUMN_NAME_CREATE_DATE + " ASC"
-        );
-
-        if (cursor != null) {
-            while (cursor.moveToNext()) {
-                final long categoryId = cursor.getLong(0);
-                final String categoryName = cursor.getString(1);
-
-                subMenu.add(Menu.NONE, (int)categoryId, (int)categoryId, categoryName)
-                        .setOnMenuItemClickListener(new MenuItem.OnMenuItemClickListener() {
-                            @Override
-                            public boolean onMenuItemClick(MenuItem item) {
-                                currentFilterCategoryId = categoryId;
-                                currentFilterCategoryName = categoryName;
-                                performQuery(mCurrentSearchQuery);
-                                return true;
-                            }
-                        });
-            }
-            cursor.close();
+        // 从共享缓存加载分类
+        for (CategoryCache.Category category : CategoryCache.getInstance(this).getCategories()) {
+            final long categoryId = category.id;
+            final String categoryName = category.name;
+
+            subMenu.add(Menu.NONE, (int)categoryId, (int)categoryId, categoryName)
+                    .setOnMenuItemClickListener(new MenuItem.OnMenuItemClickListener() {
+                        @Override
+                        public boolean onMenuItemClick(MenuItem item) {
+                            currentFilterCategoryId = categoryId;
+                            currentFilterCategoryName = categoryName;
+                            performQuery(mCurrentSearchQuery);
+                            return true;
+                        }
+                    });
         }
     }
 
@@ -978,10 +1052,8 @@ public class NotesList extends ListActivity {
                 null
         );
 
+        // 列表由 Loader 在数据变化后自动刷新，无需重新查询
         Toast.makeText(this, complete ? "标记为完成" : "标记为未完成", Toast.LENGTH_SHORT).show();
-
-        // 刷新列表
-        performQuery(mCurrentSearchQuery);
     }
 
     /**
@@ -0,0 +1,162 @@
+package com.example.android.notepad;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Paint;
+import android.text.SpannableStringBuilder;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ResourceCursorAdapter;
+import android.widget.TextView;
+
+/**
+ * 笔记列表的适配器：一次绑定一整行的标题、预览行（分类、待办状态和内容预览）和时间戳。
+ *
+ * 这是列表滚动时最频繁执行的代码，所以：列的下标在更换 Cursor 时查找一次；每行的视图
+ * 在创建时查找一次并保存在 {@link ViewHolder} 中；每行的数据只读取一次；显示的文字写入
+ * 复用的缓冲区，不拼接字符串；删除线和透明度只在状态变化时才设置。
+ *
+ * 正在搜索时，标题和内容预览中的搜索词会被高亮。只能在主线程中使用。
+ */
+final class NotesListAdapter extends ResourceCursorAdapter {
+
+    // 已完成的待办的透明度
+    private static final float COMPLETED_ALPHA = 0.6f;
+
+    private final SearchHighlighter mHighlighter;
+    private final TimestampFormatter mTimestampFormatter = TimestampFormatter.getDateTimeInstance();
+
+    // 绑定时复用的文本缓冲区；TextView.setText() 会复制其中的内容。
+    // 没有需要高亮的词时使用 mText，TextView 复制时只需生成一个 String；需要高亮时使用 mSpannedText
+    private final StringBuilder mText = new StringBuilder();
+    private final SpannableStringBuilder mSpannedText = new SpannableStringBuilder();
+
+    // 当前 Cursor 中各列的下标
+    private int mTitleColumn;
+    private int mPreviewColumn;
+    private int mModifiedColumn;
+    private int mIsTodoColumn;
+    private int mIsCompletedColumn;
+    private int mCategoryNameColumn;
+
+    /**
+     * 一行中的视图，以及这一行当前的显示状态
+     */
+    static final class ViewHolder {
+        final TextView title;
+        final TextView preview;
+        final TextView timestamp;
+
+        // 标题当前是否显示为已完成（删除线和半透明）
+        boolean completed;
+
+        ViewHolder(View view) {
+            title = (TextView) view.findViewById(android.R.id.text1);
+            preview = (TextView) view.findViewById(android.R.id.text2);
+            timestamp = (TextView) view.findViewById(R.id.timestamp);
+        }
+    }
+
+    /**
+     * 创建没有数据的适配器；之后通过 {@link #swapCursor(Cursor)} 设置的 Cursor 必须包含
+     * {@link NotesList#PROJECTION} 中的列。
+     * @param highlighter 要高亮的搜索词
+     */
+    NotesListAdapter(Context context, SearchHighlighter highlighter) {
+        // 数据变化由 Loader 监听并重新查询，适配器自身不注册观察者
+        super(context, R.layout.noteslist_item, null, 0);
+        mHighlighter = highlighter;
+    }
+
+    @Override
+    public Cursor swapCursor(Cursor cursor) {
+        if (cursor != null) {
+            mTitleColumn = cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_TITLE);
+            mPreviewColumn = cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_PREVIEW);
+            mModifiedColumn = cursor.getColumnIndexOrThrow(
+                    NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+            mIsTodoColumn = cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_IS_TODO);
+            mIsCompletedColumn = cursor.getColumnIndexOrThrow(
+                    NotePad.Notes.COLUMN_NAME_IS_COMPLETED);
+            mCategoryNameColumn = cursor.getColumnIndexOrThrow(
+                    NotePad.Notes.COLUMN_NAME_CATEGORY_NAME);
+        }
+        return super.swapCursor(cursor);
+    }
+
+    @Override
+    public View newView(Context context, Cursor cursor, ViewGroup parent) {
+        View view = super.newView(context, cursor, parent);
+        view.setTag(new ViewHolder(view));
+        return view;
+    }
+
+    @Override
+    public void bindView(View view, Context context, Cursor cursor) {
+        ViewHolder holder = (ViewHolder) view.getTag();
+
+        boolean isTodo = cursor.getInt(mIsTodoColumn) == 1;
+        boolean isCompleted = isTodo && cursor.getInt(mIsCompletedColumn) == 1;
+
+        // 标题：已完成的待办显示删除线
+        if (holder.completed != isCompleted) {
+            holder.completed = isCompleted;
+            TextView title = holder.title;
+            if (isCompleted) {
+                title.setPaintFlags(title.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
+                title.setAlpha(COMPLETED_ALPHA);
+            } else {
+                title.setPaintFlags(title.getPaintFlags() & (~Paint.STRIKE_THRU_TEXT_FLAG));
+                title.setAlpha(1.0f);
+            }
+        }
+        bindTitle(holder.title, cursor.getString(mTitleColumn));
+
+        // 预览行：分类 | 待办状态 | 内容预览
+        mText.setLength(0);
+        String categoryName = cursor.getString(mCategoryNameColumn);
+        mText.append(categoryName != null ? categoryName : "未知分类");
+        if (isTodo) {
+            mText.append(" | 待办");
+            if (isCompleted) {
+                mText.append('✓');
+            }
+        }
+        mText.append(" | ");
+        int previewStart = mText.length();
+        String preview = cursor.getString(mPreviewColumn);
+        if (preview != null) {
+            mText.append(preview);
+        }
+        setText(holder.preview, previewStart);
+
+        // 时间戳：一天之内的修改时间显示为相对时间
+        holder.timestamp.setText(mTimestampFormatter.formatRelative(
+                cursor.getLong(mModifiedColumn), System.currentTimeMillis()));
+    }
+
+    private void bindTitle(TextView view, String title) {
+        if (!mHighlighter.isActive() || title == null) {
+            view.setText(title);
+            return;
+        }
+        mText.setLength(0);
+        mText.append(title);
+        setText(view, 0);
+    }
+
+    /**
+     * 把 mText 显示在视图中，并高亮从 highlightStart 开始的部分
+     */
+    private void setText(TextView view, int highlightStart) {
+        if (!mHighlighter.isActive()) {
+            view.setText(mText);
+            return;
+        }
+        mSpannedText.clearSpans();
+        mSpannedText.clear();
+        mSpannedText.append(mText);
+        mHighlighter.highlight(mSpannedText, highlightStart, mSpannedText.length());
+        view.setText(mSpannedText);
+    }
+}
@@ -0,0 +1,389 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按页读取笔记列表的只读 Cursor。
+ *
+ * 只有总行数在创建时查询；行数据按需分页查询，内存中最多保留 MAX_CACHED_PAGES 页，
+ * 因此内存占用取决于可见窗口而不是笔记数量。顺序滚动时每页从上一页最后一行之后开始
+ * （键集分页）；跳转到未读过的位置时退回到偏移量分页。
+ *
+ * 移动到一页时，在后台线程预取前后两页，所以顺序滚动（例如在主线程中由列表滑动）时
+ * 需要的页通常已经读好，不在移动 Cursor 的线程中查询提供者。只有跳转到未预取的位置时
+ * 才在当前线程中读取，正在预取的页则等待预取完成。
+ *
+ * 投影必须包含 _id 和修改时间两列，它们是分页的键。
+ */
+final class PagedNotesCursor extends AbstractCursor {
+
+    // 每页的默认行数
+    static final int DEFAULT_PAGE_SIZE = 50;
+
+    // 内存中最多保留的页数
+    private static final int MAX_CACHED_PAGES = 6;
+
+    private static final String TAG = "PagedNotesCursor";
+
+    // 等待执行的预取任务的最大数量；队列已满时不再预取，需要时在当前线程中读取
+    private static final int MAX_QUEUED_PREFETCHES = 8;
+
+    // 所有分页 Cursor 共用的预取线程
+    private static final ThreadPoolExecutor PREFETCH_EXECUTOR = new ThreadPoolExecutor(
+            1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(MAX_QUEUED_PREFETCHES),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, TAG);
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                }
+            });
+
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+    private final String[] mProjection;
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+    private final int mPageSize;
+    private final int mCount;
+
+    // 分页键在投影中的位置
+    private final int mIdIndex;
+    private final int mModifiedIndex;
+
+    // 已加载的页，按最近使用排序；超出上限时关闭最久未用的页
+    private final LinkedHashMap<Integer, Cursor> mPages =
+            new LinkedHashMap<Integer, Cursor>(MAX_CACHED_PAGES + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, Cursor> eldest) {
+                    if (size() > MAX_CACHED_PAGES) {
+                        eldest.getValue().close();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    // 每个读过的页最后一行的修改时间和ID，下一页从这里开始；预取线程也会访问，需要同步
+    private final SparseArray<long[]> mPageEnds = new SparseArray<long[]>();
+
+    // 以下成员只在持有 mLock 时访问
+    private final Object mLock = new Object();
+    // 已预取、还没被移动到的页
+    private final Map<Integer, Cursor> mPrefetched = new HashMap<Integer, Cursor>();
+    // 已提交或正在进行的预取
+    private final Set<Integer> mPrefetching = new HashSet<Integer>();
+    private boolean mClosed;
+
+    // 当前行所在的页
+    private Cursor mPage;
+
+    /**
+     * 查询总行数。会访问提供者，应在后台线程调用，之后再调用 {@link #loadFirstPage()}。
+     */
+    PagedNotesCursor(ContentResolver resolver, Uri uri, String[] projection, String selection,
+                     String[] selectionArgs, int pageSize) {
+        mResolver = resolver;
+        mUri = uri;
+        mProjection = projection;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        mPageSize = pageSize;
+
+        mIdIndex = Arrays.asList(projection).indexOf(NotePad.Notes._ID);
+        mModifiedIndex = Arrays.asList(projection).indexOf(
+                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+        if (mIdIndex < 0 || mModifiedIndex < 0) {
+            throw new IllegalArgumentException("The projection of a paged cursor must include "
+                    + NotePad.Notes._ID + " and " + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+        }
+
+        mCount = queryCount();
+    }
+
+    /**
+     * 加载第一页，并开始预取第二页。会访问提供者，应在后台线程调用。
+     */
+    void loadFirstPage() {
+        if (mCount > 0) {
+            getPage(0);
+            prefetchAround(0);
+        }
+    }
+
+    private int queryCount() {
+        Cursor cursor = mResolver.query(mUri,
+                new String[] { "count(*) AS " + BaseColumns._COUNT },
+                mSelection, mSelectionArgs, null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * 返回指定页。不在内存中时先取预取的结果，正在预取时等待预取完成，都没有时从提供者加载。
+     */
+    private Cursor getPage(int pageNumber) {
+        Cursor page = mPages.get(pageNumber);
+        if (page == null) {
+            page = takePrefetched(pageNumber);
+            if (page == null) {
+                page = loadPage(pageNumber);
+            }
+            mPages.put(pageNumber, page);
+        }
+        return page;
+    }
+
+    // 返回并移除预取的页；正在预取时等待，没有预取或预取失败时返回 null
+    private Cursor takePrefetched(int pageNumber) {
+        synchronized (mLock) {
+            while (mPrefetching.contains(pageNumber)) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            return mPrefetched.remove(pageNumber);
+        }
+    }
+
+    /**
+     * 在后台线程预取指定页前后的页，已在内存中或正在预取的页除外
+     */
+    private void prefetchAround(int pageNumber) {
+        // 跳转后离得远的预取结果不再需要
+        synchronized (mLock) {
+            Iterator<Map.Entry<Integer, Cursor>> prefetched =
+                    mPrefetched.entrySet().iterator();
+            while (prefetched.hasNext()) {
+                Map.Entry<Integer, Cursor> entry = prefetched.next();
+                if (Math.abs(entry.getKey() - pageNumber) > 1) {
+                    entry.getValue().close();
+                    prefetched.remove();
+                }
+            }
+        }
+        prefetch(pageNumber + 1);
+        prefetch(pageNumber - 1);
+    }
+
+    private void prefetch(final int pageNumber) {
+        if (pageNumber < 0 || pageNumber * mPageSize >= mCount
+                || mPages.containsKey(pageNumber)) {
+            return;
+        }
+        synchronized (mLock) {
+            if (mClosed || mPrefetching.contains(pageNumber)
+                    || mPrefetched.containsKey(pageNumber)) {
+                return;
+            }
+            mPrefetching.add(pageNumber);
+        }
+        try {
+            PREFETCH_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Cursor page = null;
+                    try {
+                        // loadPage() 移动到最后一行，Cursor 窗口在预取线程中就已填满
+                        page = loadPage(pageNumber);
+                    } catch (RuntimeException e) {
+                        // 需要这一页时会在当前线程中重新读取
+                        Log.w(TAG, "Failed to prefetch page " + pageNumber, e);
+                    } finally {
+                        synchronized (mLock) {
+                            mPrefetching.remove(pageNumber);
+                            if (page != null) {
+                                if (mClosed) {
+                                    page.close();
+                                } else {
+                                    mPrefetched.put(pageNumber, page);
+                                }
+                            }
+                            mLock.notifyAll();
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 预取线程忙不过来，需要时再在当前线程中读取
+            synchronized (mLock) {
+                mPrefetching.remove(pageNumber);
+            }
+        }
+    }
+
+    private Cursor loadPage(int pageNumber) {
+        Uri.Builder builder = mUri.buildUpon().appendQueryParameter(
+                NotePad.Notes.PAGE_SIZE_PARAMETER, String.valueOf(mPageSize));
+
+        long[] previousEnd = null;
+        if (pageNumber > 0) {
+            synchronized (mPageEnds) {
+                previousEnd = mPageEnds.get(pageNumber - 1);
+            }
+        }
+        if (previousEnd != null) {
+            builder.appendQueryParameter(NotePad.Notes.PAGE_AFTER_MODIFIED_PARAMETER,
+                    String.valueOf(previousEnd[0]));
+            builder.appendQueryParameter(NotePad.Notes.PAGE_AFTER_ID_PARAMETER,
+                    String.valueOf(previousEnd[1]));
+        } else if (pageNumber > 0) {
+            builder.appendQueryParameter(NotePad.Notes.PAGE_OFFSET_PARAMETER,
+                    String.valueOf(pageNumber * mPageSize));
+        }
+
+        Cursor page = mResolver.query(builder.build(), mProjection, mSelection, mSelectionArgs,
+                null);
+        if (page == null) {
+            page = new MatrixCursor(mProjection, 0);
+        }
+
+        if (page.moveToLast()) {
+            long[] end = new long[] { page.getLong(mModifiedIndex), page.getLong(mIdIndex) };
+            synchronized (mPageEnds) {
+                mPageEnds.put(pageNumber, end);
+            }
+        }
+        return page;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        int pageNumber = newPosition / mPageSize;
+        Cursor page = getPage(pageNumber);
+        if (page != mPage) {
+            // 进入了另一页，预取接下来可能需要的页
+            mPage = page;
+            prefetchAround(pageNumber);
+        }
+
+        // 数据在两次分页之间被修改时页可能变短；此时该行读作空值，
+        // 提供者的变更通知随后会让列表重新加载
+        mPage.moveToPosition(newPosition - pageNumber * mPageSize);
+        return true;
+    }
+
+    /**
+     * 返回当前行所在的页，当前行不存在时返回 null
+     */
+    private Cursor currentRow() {
+        if (mPage == null || mPage.isBeforeFirst() || mPage.isAfterLast()) {
+            return null;
+        }
+        return mPage;
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mProjection;
+    }
+
+    @Override
+    public String getString(int column) {
+        Cursor row = currentRow();
+        return row == null ? null : row.getString(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        Cursor row = currentRow();
+        return row == null ? 0 : row.getShort(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        Cursor row = currentRow();
+        return row == null ? 0 : row.getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        Cursor row = currentRow();
+        return row == null ? 0 : row.getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        Cursor row = currentRow();
+        return row == null ? 0 : row.getFloat(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        Cursor row = currentRow();
+        return row == null ? 0 : row.getDouble(column);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        Cursor row = currentRow();
+        return row == null ? null : row.getBlob(column);
+    }
+
+    @Override
+    public int getType(int column) {
+        Cursor row = currentRow();
+        return row == null ? FIELD_TYPE_NULL : row.getType(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        Cursor row = currentRow();
+        return row == null || row.isNull(column);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        for (Cursor page : mPages.values()) {
+            page.close();
+        }
+        mPages.clear();
+        mPage = null;
+
+        // 还在进行的预取完成时自己关闭结果
+        synchronized (mLock) {
+            mClosed = true;
+            for (Cursor page : mPrefetched.values()) {
+                page.close();
+            }
+            mPrefetched.clear();
+        }
+    }
+}
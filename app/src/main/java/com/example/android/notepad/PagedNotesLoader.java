@@ -0,0 +1,53 @@
+package com.example.android.notepad;
+
+import android.content.Context;
+import android.content.CursorLoader;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * 加载 {@link PagedNotesCursor} 的 Loader。
+ *
+ * 除了返回分页 Cursor 之外与 CursorLoader 相同：笔记变化时自动重新加载。
+ * 分页结果总是按 {@link NotePad.Notes#PAGED_SORT_ORDER} 排序，因此不接受排序参数。
+ * 加载被放弃时（例如搜索词又变了）不再读取第一页，已读到的结果也会关闭。
+ */
+class PagedNotesLoader extends CursorLoader {
+
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+
+    // 正在进行的加载是否已被放弃
+    private volatile boolean mCanceled;
+
+    PagedNotesLoader(Context context, Uri uri, String[] projection, String selection,
+                     String[] selectionArgs) {
+        super(context, uri, projection, selection, selectionArgs, null);
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        mCanceled = false;
+        PagedNotesCursor cursor = new PagedNotesCursor(getContext().getContentResolver(),
+                getUri(), getProjection(), getSelection(), getSelectionArgs(),
+                PagedNotesCursor.DEFAULT_PAGE_SIZE);
+        // 查询总行数和读取第一页之间，以及之后，检查加载是否已被放弃；被放弃的结果不会被使用
+        if (!mCanceled) {
+            cursor.loadFirstPage();
+        }
+        if (mCanceled) {
+            cursor.close();
+            return null;
+        }
+
+        // 笔记变化时重新加载，与 CursorLoader 的行为一致
+        cursor.registerContentObserver(mObserver);
+        cursor.setNotificationUri(getContext().getContentResolver(), getUri());
+        return cursor;
+    }
+
+    @Override
+    public void cancelLoadInBackground() {
+        super.cancelLoadInBackground();
+        mCanceled = true;
+    }
+}
@@ -0,0 +1,281 @@
+package com.example.android.notepad;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * NotePadProvider 各个入口的性能统计。
+ *
+ * 按操作（查询、插入、更新、删除、导出）和 URI 匹配码分别记录调用次数、行数和延迟直方图，另外
+ * 记录导出的字节数和按 URI 匹配码统计的变更通知数。所有计数都是无锁的原子操作，可以在多个线程中
+ * 同时记录。关闭时 {@link #start()} 返回 0，各个记录方法只读一个 volatile 字段就返回，所以几乎
+ * 没有开销。
+ */
+final class ProviderMetrics {
+
+    // 统计的操作
+    static final int QUERY = 0;
+    static final int INSERT = 1;
+    static final int UPDATE = 2;
+    static final int DELETE = 3;
+    static final int STREAM = 4;
+
+    private static final String[] OP_NAMES = { "query", "insert", "update", "delete", "stream" };
+
+    // 各个 URI 匹配码的名称，下标为匹配码；不认识的匹配码记在 0 下
+    private final String[] mMatchNames;
+
+    private volatile boolean mEnabled;
+    private volatile long mSince = SystemClock.uptimeMillis();
+
+    // 按 [操作 * 匹配码数 + 匹配码] 存放；直方图在第一次记录时创建
+    private final AtomicReferenceArray<Histogram> mLatencies;
+    private final AtomicLongArray mRows;
+    private final AtomicLongArray mNotifications;
+    private final AtomicLong mBytesStreamed = new AtomicLong();
+
+    /**
+     * @param matchNames 各个 URI 匹配码的名称，下标为匹配码，0 为不认识的 URI
+     */
+    ProviderMetrics(String[] matchNames) {
+        mMatchNames = matchNames;
+        mLatencies = new AtomicReferenceArray<Histogram>(OP_NAMES.length * matchNames.length);
+        mRows = new AtomicLongArray(OP_NAMES.length * matchNames.length);
+        mNotifications = new AtomicLongArray(matchNames.length);
+    }
+
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * 开始计时一次操作
+     * @return 开始的时刻（纳秒），统计关闭时为 0
+     */
+    long start() {
+        return mEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * 记录一次操作
+     * @param op 操作，如 {@link #QUERY}
+     * @param match URI 匹配码
+     * @param start 开始的时刻，即 {@link #start()} 的返回值；为 0 或统计关闭时不记录
+     * @param rows 返回或改动的行数
+     */
+    void record(int op, int match, long start, long rows) {
+        if (start == 0 || !mEnabled) {
+            return;
+        }
+        long micros = (System.nanoTime() - start) / 1000;
+        int slot = op * mMatchNames.length + matchIndex(match);
+        Histogram histogram = mLatencies.get(slot);
+        if (histogram == null) {
+            mLatencies.compareAndSet(slot, null, new Histogram());
+            histogram = mLatencies.get(slot);
+        }
+        histogram.record(micros);
+        mRows.addAndGet(slot, rows);
+    }
+
+    /**
+     * 记录导出的字节数
+     */
+    void recordBytesStreamed(long bytes) {
+        if (mEnabled) {
+            mBytesStreamed.addAndGet(bytes);
+        }
+    }
+
+    /**
+     * 记录发给某个 URI 的观察者的一次变更通知
+     */
+    void recordNotification(int match) {
+        if (mEnabled) {
+            mNotifications.incrementAndGet(matchIndex(match));
+        }
+    }
+
+    /**
+     * 返回一种操作在一种 URI 上的延迟直方图，还没有记录时返回 null
+     */
+    Histogram getLatency(int op, int match) {
+        return mLatencies.get(op * mMatchNames.length + matchIndex(match));
+    }
+
+    /**
+     * 返回一种操作在一种 URI 上返回或改动的总行数
+     */
+    long getRows(int op, int match) {
+        return mRows.get(op * mMatchNames.length + matchIndex(match));
+    }
+
+    long getBytesStreamed() {
+        return mBytesStreamed.get();
+    }
+
+    /**
+     * 返回发给一种 URI 的观察者的变更通知数
+     */
+    long getNotifications(int match) {
+        return mNotifications.get(matchIndex(match));
+    }
+
+    /**
+     * 清空所有统计
+     */
+    void reset() {
+        for (int slot = 0; slot < mLatencies.length(); slot++) {
+            mLatencies.set(slot, null);
+            mRows.set(slot, 0);
+        }
+        for (int i = 0; i < mNotifications.length(); i++) {
+            mNotifications.set(i, 0);
+        }
+        mBytesStreamed.set(0);
+        mSince = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * 返回 dumpsys 风格的文本报告：每种记录过的操作和 URI 一行，然后是导出的字节数和通知数
+     */
+    String describe() {
+        StringBuilder report = new StringBuilder();
+        report.append("NotePadProvider metrics (").append(mEnabled ? "enabled" : "disabled")
+                .append(", last ").append((SystemClock.uptimeMillis() - mSince) / 1000)
+                .append("s):\n");
+        for (int op = 0; op < OP_NAMES.length; op++) {
+            for (int match = 0; match < mMatchNames.length; match++) {
+                int slot = op * mMatchNames.length + match;
+                Histogram histogram = mLatencies.get(slot);
+                if (histogram != null) {
+                    report.append("  ").append(OP_NAMES[op]).append(' ')
+                            .append(mMatchNames[match]).append(": ").append(histogram)
+                            .append(", rows=").append(mRows.get(slot)).append('\n');
+                }
+            }
+        }
+        report.append("  bytes streamed: ").append(mBytesStreamed.get()).append('\n');
+        report.append("  notifications:");
+        for (int match = 0; match < mMatchNames.length; match++) {
+            long count = mNotifications.get(match);
+            if (count > 0) {
+                report.append(' ').append(mMatchNames[match]).append('=').append(count);
+            }
+        }
+        return report.append('\n').toString();
+    }
+
+    private int matchIndex(int match) {
+        return match > 0 && match < mMatchNames.length ? match : 0;
+    }
+
+    /**
+     * 无锁的对数-线性延迟直方图（HDR 风格）。
+     *
+     * 样本以微秒计。每个 2 的幂区间再等分成 SUB_BUCKETS 个桶，所以百分位数的相对误差不超过
+     * 1/SUB_BUCKETS，而桶数只随最大值的位数增长。百分位数以所在桶的上界估计（不超过最大值）。
+     */
+    static final class Histogram {
+
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        // 能区分的最大延迟约 2^40 微秒（约 12 天），更慢的样本记入最后一个桶
+        private static final int MAX_BITS = 40;
+        private static final int BUCKETS = (MAX_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mTotal = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        void record(long micros) {
+            if (micros < 0) {
+                micros = 0;
+            }
+            mCounts.incrementAndGet(bucketOf(micros));
+            mCount.incrementAndGet();
+            mTotal.addAndGet(micros);
+            long max = mMax.get();
+            while (micros > max && !mMax.compareAndSet(max, micros)) {
+                max = mMax.get();
+            }
+        }
+
+        long getCount() {
+            return mCount.get();
+        }
+
+        /**
+         * 返回平均延迟（微秒）
+         */
+        long getMean() {
+            long count = mCount.get();
+            return count == 0 ? 0 : mTotal.get() / count;
+        }
+
+        long getMax() {
+            return mMax.get();
+        }
+
+        /**
+         * 返回百分位数的估计值（微秒）：至少 percentile% 的样本不超过这个值
+         * @param percentile 0 到 100 之间的百分位
+         */
+        long getPercentile(double percentile) {
+            long count = mCount.get();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max((long) Math.ceil(count * percentile / 100), 1);
+            long seen = 0;
+            long max = mMax.get();
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                seen += mCounts.get(bucket);
+                if (seen >= rank) {
+                    return Math.min(upperBound(bucket), max);
+                }
+            }
+            return max;
+        }
+
+        // 小于 SUB_BUCKETS 的值各占一个桶；之后每个 2 的幂区间占 SUB_BUCKETS 个桶
+        static int bucketOf(long micros) {
+            if (micros < SUB_BUCKETS) {
+                return (int) micros;
+            }
+            int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_BITS);
+            if (exponent == MAX_BITS) {
+                return BUCKETS - 1;
+            }
+            int shift = exponent - SUB_BUCKET_BITS;
+            int sub = (int) (micros >>> shift) & (SUB_BUCKETS - 1);
+            return (shift + 1) * SUB_BUCKETS + sub;
+        }
+
+        // 返回桶中最大的值
+        static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+            return lower + (1L << shift) - 1;
+        }
+
+        @Override
+        public String toString() {
+            return "n=" + getCount() + ", mean=" + getMean() + "us, p50<=" + getPercentile(50)
+                    + "us, p95<=" + getPercentile(95) + "us, p99<=" + getPercentile(99)
+                    + "us, max=" + getMax() + "us";
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package com.example.android.notepad;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * NotePadProvider 的查询结果缓存。
+ *
+ * 以规范化的 SQL（由 SQLiteQueryBuilder 生成，已包含投影、条件、排序和分页）和参数为键，缓存
+ * 结果的不可变快照，命中时返回快照上的新 Cursor，不再查询 SQLite。行数和估计的内存占用都有上限，
+ * 超出时按最近最少使用淘汰；过大的结果不缓存。
+ *
+ * 写入某个表后调用 {@link #invalidate(String)}，只丢弃读过这个表的结果。查询开始前取得的
+ * {@link #getGeneration()} 与放入时不同，说明查询期间有过写入，结果可能已过时，就不放入缓存。
+ * 可以在多个线程中使用。
+ */
+final class QueryResultCache {
+
+    // 默认的条目数、内存占用上限，以及可以缓存的最大行数
+    static final int DEFAULT_MAX_ENTRIES = 32;
+    static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+    static final int MAX_ROWS = 500;
+
+    private final int mMaxEntries;
+    private final int mMaxBytes;
+
+    // 可能被查询读取的表名，以及在 SQL 中匹配各个表名的模式
+    private final String[] mTables;
+    private final Pattern[] mTablePatterns;
+
+    // 按访问顺序排列，最早的是最近最少使用的
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private int mBytes;
+    private long mGeneration;
+
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+    private long mInvalidations;
+    private long mSkipped;
+
+    private static final class Entry {
+        final Snapshot snapshot;
+        // 读过的表在 mTables 中的下标对应的位
+        final int tables;
+
+        Entry(Snapshot snapshot, int tables) {
+            this.snapshot = snapshot;
+            this.tables = tables;
+        }
+    }
+
+    /**
+     * @param tables 查询可能读取的表名，写入时以这些名称使缓存失效
+     */
+    QueryResultCache(String[] tables, int maxEntries, int maxBytes) {
+        mTables = tables;
+        mTablePatterns = new Pattern[tables.length];
+        for (int i = 0; i < tables.length; i++) {
+            mTablePatterns[i] = Pattern.compile("\\b" + Pattern.quote(tables[i]) + "\\b");
+        }
+        mMaxEntries = maxEntries;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * 返回缓存的键：SQL 规范化后连同参数，参数以长度为前缀，所以不同的参数不会得到相同的键
+     */
+    static String key(String sql, String[] selectionArgs) {
+        StringBuilder key = new StringBuilder(normalize(sql));
+        if (selectionArgs != null) {
+            for (String arg : selectionArgs) {
+                key.append('\0');
+                if (arg == null) {
+                    key.append('-');
+                } else {
+                    key.append(arg.length()).append(':').append(arg);
+                }
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * 把 SQL 中引号以外连续的空白合并为一个空格并去掉首尾空白；引号内的内容保持不变
+     */
+    static String normalize(String sql) {
+        StringBuilder normalized = new StringBuilder(sql.length());
+        char quote = 0;
+        boolean space = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (quote == 0 && Character.isWhitespace(c)) {
+                space = normalized.length() > 0;
+                continue;
+            }
+            if (space) {
+                normalized.append(' ');
+                space = false;
+            }
+            normalized.append(c);
+            if (quote == 0 && (c == '\'' || c == '"')) {
+                quote = c;
+            } else if (c == quote) {
+                quote = 0;
+            }
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * 返回写入的代数。查询开始前取得，放入结果时传给 {@link #put(String, Cursor, long)}
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * 返回缓存的结果上的新 Cursor，没有缓存时返回 null
+     */
+    Cursor get(String key) {
+        Entry entry;
+        synchronized (this) {
+            entry = mEntries.get(key);
+            if (entry == null) {
+                mMisses++;
+                return null;
+            }
+            mHits++;
+        }
+        return new SnapshotCursor(entry.snapshot);
+    }
+
+    /**
+     * 读出查询结果并放入缓存，返回代替 cursor 的结果。结果的行数超过 {@link #MAX_ROWS}、或估计
+     * 占用的内存超过上限的四分之一时不缓存，原样返回 cursor（位置回到第一行之前）；否则 cursor
+     * 被读完并关闭，返回快照上的 Cursor。查询开始后有过写入时也只返回快照，不放入缓存。
+     *
+     * @param generation 查询开始前的 {@link #getGeneration()}
+     */
+    Cursor put(String key, Cursor cursor, long generation) {
+        Snapshot snapshot = null;
+        if (cursor.getCount() <= MAX_ROWS) {
+            snapshot = Snapshot.read(cursor, mMaxBytes / 4);
+        }
+        if (snapshot == null) {
+            synchronized (this) {
+                mSkipped++;
+            }
+            cursor.moveToPosition(-1);
+            return cursor;
+        }
+        cursor.close();
+
+        int tables = 0;
+        for (int i = 0; i < mTablePatterns.length; i++) {
+            if (mTablePatterns[i].matcher(key).find()) {
+                tables |= 1 << i;
+            }
+        }
+
+        synchronized (this) {
+            if (generation != mGeneration) {
+                mSkipped++;
+            } else {
+                Entry previous = mEntries.put(key, new Entry(snapshot, tables));
+                if (previous != null) {
+                    mBytes -= previous.snapshot.bytes;
+                }
+                mBytes += snapshot.bytes;
+                evict();
+            }
+        }
+        return new SnapshotCursor(snapshot);
+    }
+
+    /**
+     * 表的内容有了变化：丢弃读过这个表的结果，并使正在进行的查询的结果不被放入缓存
+     */
+    synchronized void invalidate(String table) {
+        mGeneration++;
+        int bit = 0;
+        for (int i = 0; i < mTables.length; i++) {
+            if (mTables[i].equals(table)) {
+                bit = 1 << i;
+            }
+        }
+        Iterator<Entry> entries = mEntries.values().iterator();
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            // 不认识的表可能被任何查询读过
+            if (bit == 0 || (entry.tables & bit) != 0) {
+                mBytes -= entry.snapshot.bytes;
+                entries.remove();
+                mInvalidations++;
+            }
+        }
+    }
+
+    /**
+     * 清空缓存，例如绕过提供者直接修改了数据库之后
+     */
+    synchronized void clear() {
+        mGeneration++;
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+    synchronized long getHits() {
+        return mHits;
+    }
+
+    synchronized long getMisses() {
+        return mMisses;
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * 返回统计的摘要
+     */
+    synchronized String describe() {
+        long lookups = mHits + mMisses;
+        return "entries=" + mEntries.size() + ", bytes=" + mBytes + ", hits=" + mHits
+                + ", misses=" + mMisses
+                + (lookups > 0 ? String.format(" (%.1f%% hit)", mHits * 100.0 / lookups) : "")
+                + ", evictions=" + mEvictions + ", invalidations=" + mInvalidations
+                + ", skipped=" + mSkipped;
+    }
+
+    // 淘汰最近最少使用的条目，直到条目数和内存占用都不超过上限
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> entries = mEntries.entrySet().iterator();
+        while ((mEntries.size() > mMaxEntries || mBytes > mMaxBytes) && entries.hasNext()) {
+            mBytes -= entries.next().getValue().snapshot.bytes;
+            entries.remove();
+            mEvictions++;
+        }
+    }
+
+    /**
+     * 查询结果的不可变快照：列名和各行的值（Long、Double、String、byte[] 或 null）
+     */
+    static final class Snapshot {
+        final String[] columnNames;
+        final Object[][] rows;
+        // 估计占用的内存（字节）
+        final int bytes;
+
+        private Snapshot(String[] columnNames, Object[][] rows, int bytes) {
+            this.columnNames = columnNames;
+            this.rows = rows;
+            this.bytes = bytes;
+        }
+
+        /**
+         * 读出 cursor 的所有行；估计的内存占用超过 maxBytes 时停止读取，返回 null
+         */
+        static Snapshot read(Cursor cursor, int maxBytes) {
+            String[] columnNames = cursor.getColumnNames();
+            Object[][] rows = new Object[cursor.getCount()][];
+            int bytes = 64;
+            cursor.moveToPosition(-1);
+            for (int row = 0; cursor.moveToNext(); row++) {
+                Object[] values = new Object[columnNames.length];
+                bytes += 16 + 4 * values.length;
+                for (int column = 0; column < values.length; column++) {
+                    switch (cursor.getType(column)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            values[column] = cursor.getLong(column);
+                            bytes += 24;
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            values[column] = cursor.getDouble(column);
+                            bytes += 24;
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            String text = cursor.getString(column);
+                            values[column] = text;
+                            bytes += 40 + 2 * text.length();
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            byte[] blob = cursor.getBlob(column);
+                            values[column] = blob;
+                            bytes += 16 + blob.length;
+                            break;
+                    }
+                }
+                rows[row] = values;
+                if (bytes > maxBytes) {
+                    return null;
+                }
+            }
+            return new Snapshot(columnNames, rows, bytes);
+        }
+    }
+
+    /**
+     * 快照上的 Cursor。快照不可变，所以同一个快照可以同时被多个 Cursor 读取
+     */
+    private static final class SnapshotCursor extends AbstractCursor {
+        private final Snapshot mSnapshot;
+
+        SnapshotCursor(Snapshot snapshot) {
+            mSnapshot = snapshot;
+        }
+
+        private Object get(int column) {
+            if (column < 0 || column >= mSnapshot.columnNames.length) {
+                throw new IndexOutOfBoundsException("Requested column: " + column
+                        + ", # of columns: " + mSnapshot.columnNames.length);
+            }
+            checkPosition();
+            return mSnapshot.rows[mPos][column];
+        }
+
+        @Override
+        public int getCount() {
+            return mSnapshot.rows.length;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mSnapshot.columnNames;
+        }
+
+        @Override
+        public int getType(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return Cursor.FIELD_TYPE_NULL;
+            } else if (value instanceof Long) {
+                return Cursor.FIELD_TYPE_INTEGER;
+            } else if (value instanceof Double) {
+                return Cursor.FIELD_TYPE_FLOAT;
+            } else if (value instanceof byte[]) {
+                return Cursor.FIELD_TYPE_BLOB;
+            }
+            return Cursor.FIELD_TYPE_STRING;
+        }
+
+        @Override
+        public String getString(int column) {
+            Object value = get(column);
+            if (value == null || value instanceof String) {
+                return (String) value;
+            }
+            if (value instanceof byte[]) {
+                throw new IllegalStateException("Unable to convert BLOB to string");
+            }
+            return value.toString();
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return 0;
+            }
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            return (long) parseNumber(value);
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return 0;
+            }
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            return parseNumber(value);
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            Object value = get(column);
+            if (value == null || value instanceof byte[]) {
+                return (byte[]) value;
+            }
+            throw new IllegalStateException("Unable to convert " + value + " to BLOB");
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return get(column) == null;
+        }
+
+        // SQLite 把不是数字的文本读作 0
+        private static double parseNumber(Object value) {
+            try {
+                return Double.parseDouble(value.toString().trim());
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.android.notepad;
+
+import android.os.SystemClock;
+
+/**
+ * 按秒统计事件发生次数的计数器。
+ *
+ * 最近一段时间内每秒的次数记在环形的桶中，所以可以得到最近几秒的平均速率和每秒的峰值，
+ * 记录的开销和占用的内存都是常数。可以在多个线程中使用。
+ */
+final class RateCounter {
+
+    // 保留最近多少秒的次数
+    static final int WINDOW_SECONDS = 60;
+
+    // 每个桶所对应的秒，以及这一秒内的次数
+    private final long[] mSeconds = new long[WINDOW_SECONDS];
+    private final long[] mCounts = new long[WINDOW_SECONDS];
+    private long mTotal;
+
+    /**
+     * 记录发生了 count 次事件
+     */
+    synchronized void record(long count) {
+        long second = currentSecond();
+        int slot = (int) (second % WINDOW_SECONDS);
+        if (mSeconds[slot] != second) {
+            mSeconds[slot] = second;
+            mCounts[slot] = 0;
+        }
+        mCounts[slot] += count;
+        mTotal += count;
+    }
+
+    /**
+     * 返回记录的总次数
+     */
+    synchronized long getTotal() {
+        return mTotal;
+    }
+
+    /**
+     * 返回最近 seconds 秒（不含当前这一秒）内平均每秒的次数
+     * @param seconds 1 到 {@link #WINDOW_SECONDS} - 1 之间的秒数
+     */
+    synchronized double getRate(int seconds) {
+        long now = currentSecond();
+        long count = 0;
+        for (int slot = 0; slot < WINDOW_SECONDS; slot++) {
+            if (mSeconds[slot] < now && mSeconds[slot] >= now - seconds) {
+                count += mCounts[slot];
+            }
+        }
+        return count / (double) seconds;
+    }
+
+    /**
+     * 返回最近 {@link #WINDOW_SECONDS} 秒内单独一秒的最大次数
+     */
+    synchronized long getPeak() {
+        long now = currentSecond();
+        long peak = 0;
+        for (int slot = 0; slot < WINDOW_SECONDS; slot++) {
+            if (mSeconds[slot] > now - WINDOW_SECONDS && mCounts[slot] > peak) {
+                peak = mCounts[slot];
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * 清空所有记录
+     */
+    synchronized void reset() {
+        for (int slot = 0; slot < WINDOW_SECONDS; slot++) {
+            mSeconds[slot] = 0;
+            mCounts[slot] = 0;
+        }
+        mTotal = 0;
+    }
+
+    private static long currentSecond() {
+        return SystemClock.uptimeMillis() / 1000;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "total=" + mTotal + ", last 1s=" + Math.round(getRate(1)) + "/s, last 10s="
+                + Math.round(getRate(10)) + "/s, peak=" + getPeak() + "/s";
+    }
+}
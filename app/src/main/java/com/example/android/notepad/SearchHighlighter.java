@@ -0,0 +1,121 @@
+package com.example.android.notepad;
+
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 在列表中高亮显示搜索词。
+ *
+ * 搜索词在设置时拆分成词并转为小写，之后每次高亮只是逐字符比较，不编译正则表达式，
+ * 也不创建字符串。高亮用的 span 对象在多次调用之间复用：TextView.setText() 会复制文本和
+ * span，而这些 span 本身没有状态，所以同一个对象可以同时出现在多行中。
+ * 因此同一段文本只能高亮一次。只能在一个线程中使用。
+ */
+final class SearchHighlighter {
+
+    // 高亮的背景色
+    static final int HIGHLIGHT_COLOR = 0x66FFC107;
+
+    // 当前的搜索词，以及拆分并转为小写后的各个词
+    private String mQuery = "";
+    private char[][] mTerms = new char[0][];
+
+    // 复用的 span，第 i 处匹配使用第 i 个
+    private final List<BackgroundColorSpan> mSpans = new ArrayList<>();
+
+    /**
+     * 设置要高亮的搜索词。与当前的搜索词相同时不做任何事。
+     * 搜索词按空白拆分，与提供者的全文搜索一致。
+     */
+    void setQuery(String query) {
+        if (query == null) {
+            query = "";
+        }
+        if (query.equals(mQuery)) {
+            return;
+        }
+        mQuery = query;
+
+        List<char[]> terms = new ArrayList<>();
+        for (String term : query.trim().split("\\s+")) {
+            term = term.replace("\"", "");
+            if (term.length() == 0) {
+                continue;
+            }
+            char[] folded = new char[term.length()];
+            for (int i = 0; i < folded.length; i++) {
+                folded[i] = fold(term.charAt(i));
+            }
+            terms.add(folded);
+        }
+        mTerms = terms.toArray(new char[terms.size()][]);
+    }
+
+    /**
+     * 是否有需要高亮的词
+     */
+    boolean isActive() {
+        return mTerms.length > 0;
+    }
+
+    /**
+     * 高亮文本中 [start, end) 范围内所有与搜索词匹配的地方（不区分大小写）。
+     * 同一位置匹配多个词时取最长的。
+     *
+     * @return 高亮的处数
+     */
+    int highlight(Spannable text, int start, int end) {
+        int matches = 0;
+        int position = start;
+        while (position < end) {
+            int length = longestMatchAt(text, position, end);
+            if (length == 0) {
+                position++;
+                continue;
+            }
+            text.setSpan(getSpan(matches), position, position + length,
+                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            matches++;
+            position += length;
+        }
+        return matches;
+    }
+
+    /**
+     * 返回从 position 开始匹配的最长的词的长度，没有匹配时返回 0
+     */
+    private int longestMatchAt(CharSequence text, int position, int end) {
+        int longest = 0;
+        for (char[] term : mTerms) {
+            if (term.length <= longest || position + term.length > end) {
+                continue;
+            }
+            int i = 0;
+            while (i < term.length && fold(text.charAt(position + i)) == term[i]) {
+                i++;
+            }
+            if (i == term.length) {
+                longest = term.length;
+            }
+        }
+        return longest;
+    }
+
+    private BackgroundColorSpan getSpan(int index) {
+        if (index == mSpans.size()) {
+            mSpans.add(new BackgroundColorSpan(HIGHLIGHT_COLOR));
+        }
+        return mSpans.get(index);
+    }
+
+    /**
+     * 忽略大小写比较时使用的字符。先转大写再转小写，与 String.equalsIgnoreCase() 相同。
+     */
+    private static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+}
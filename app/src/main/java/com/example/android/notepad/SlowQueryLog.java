@@ -0,0 +1,220 @@
+package com.example.android.notepad;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * NotePadProvider 的慢查询日志。
+ *
+ * 耗时超过阈值的查询连同生成的 SQL、参数的形式、耗时、行数和 SQLite 选择的查询计划记入一个
+ * 固定大小的环形缓冲区（查询计划在后台线程中取得，之后再填入记录），满了以后覆盖最早的记录，所以占用的内存有上限。SQL 中的字符串常量
+ * （如搜索词）和参数的值都不记录，只记录参数的个数和类型，日志中不会出现笔记的内容。可以在多个
+ * 线程中使用。
+ */
+final class SlowQueryLog {
+
+    // 默认保留的记录数和阈值
+    static final int DEFAULT_CAPACITY = 32;
+    static final long DEFAULT_THRESHOLD_MILLIS = 100;
+
+    private final Entry[] mEntries;
+    private int mNext;
+    private long mRecorded;
+
+    // 阈值（纳秒）；小于 0 时不记录
+    private volatile long mThresholdNanos;
+
+    /**
+     * 一条慢查询的记录
+     */
+    static final class Entry {
+        final long timeMillis;
+        final String uriPattern;
+        final String sql;
+        final String args;
+        final long durationMicros;
+        final int rows;
+        // 还没有取得时为 null
+        volatile String plan;
+
+        /**
+         * @param uriPattern 查询的 URI 的种类
+         * @param sql 执行的 SQL；其中的字符串常量会被替换掉
+         * @param selectionArgs 查询的参数；只记录个数和类型
+         */
+        Entry(long timeMillis, String uriPattern, String sql, String[] selectionArgs,
+                long durationMicros, int rows) {
+            this.timeMillis = timeMillis;
+            this.uriPattern = uriPattern;
+            this.sql = maskLiterals(sql);
+            this.args = describeArgs(selectionArgs);
+            this.durationMicros = durationMicros;
+            this.rows = rows;
+        }
+
+        /**
+         * 填入查询计划
+         * @param plan EXPLAIN QUERY PLAN 的结果，各步骤以 "; " 分隔
+         */
+        void setPlan(String plan) {
+            this.plan = plan;
+        }
+
+        @Override
+        public String toString() {
+            return new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US).format(new Date(timeMillis))
+                    + " " + uriPattern + ": " + (durationMicros / 1000) + "ms, rows=" + rows
+                    + "\n    sql: " + sql + "\n    args: " + args + "\n    plan: " + (plan != null ? plan : "pending");
+        }
+    }
+
+    SlowQueryLog(int capacity, long thresholdMillis) {
+        mEntries = new Entry[capacity];
+        setThresholdMillis(thresholdMillis);
+    }
+
+    /**
+     * 设置阈值（毫秒）；小于 0 时不再记录
+     */
+    void setThresholdMillis(long thresholdMillis) {
+        mThresholdNanos = thresholdMillis < 0 ? -1 : thresholdMillis * 1000000;
+    }
+
+    long getThresholdMillis() {
+        long threshold = mThresholdNanos;
+        return threshold < 0 ? -1 : threshold / 1000000;
+    }
+
+    /**
+     * 返回是否在记录慢查询，即查询是否需要计时
+     */
+    boolean isEnabled() {
+        return mThresholdNanos >= 0;
+    }
+
+    /**
+     * 返回耗时 nanos 纳秒的查询是否应当记录
+     */
+    boolean isSlow(long nanos) {
+        long threshold = mThresholdNanos;
+        return threshold >= 0 && nanos >= threshold;
+    }
+
+    /**
+     * 记录一条慢查询，缓冲区满时覆盖最早的一条
+     */
+    synchronized void add(Entry entry) {
+        mEntries[mNext] = entry;
+        mNext = (mNext + 1) % mEntries.length;
+        mRecorded++;
+    }
+
+    /**
+     * 返回缓冲区中的记录，从早到晚
+     */
+    synchronized Entry[] getEntries() {
+        int count = (int) Math.min(mRecorded, mEntries.length);
+        Entry[] entries = new Entry[count];
+        int first = mRecorded > mEntries.length ? mNext : 0;
+        for (int i = 0; i < count; i++) {
+            entries[i] = mEntries[(first + i) % mEntries.length];
+        }
+        return entries;
+    }
+
+    /**
+     * 返回记录过的慢查询总数，包括已被覆盖的
+     */
+    synchronized long getRecordedCount() {
+        return mRecorded;
+    }
+
+    /**
+     * 清空所有记录
+     */
+    synchronized void clear() {
+        for (int i = 0; i < mEntries.length; i++) {
+            mEntries[i] = null;
+        }
+        mNext = 0;
+        mRecorded = 0;
+    }
+
+    /**
+     * 返回文本报告：阈值、记录总数，以及缓冲区中的每条记录，从早到晚
+     */
+    String describe() {
+        Entry[] entries = getEntries();
+        StringBuilder report = new StringBuilder();
+        report.append("Slow queries (threshold ");
+        long threshold = getThresholdMillis();
+        report.append(threshold < 0 ? "off" : threshold + "ms").append(", ")
+                .append(getRecordedCount()).append(" recorded, last ").append(entries.length)
+                .append(" kept):\n");
+        for (Entry entry : entries) {
+            report.append("  ").append(entry).append('\n');
+        }
+        return report.toString();
+    }
+
+    /**
+     * 把 SQL 中的字符串常量替换为 '…'，使日志中不出现搜索词等用户输入
+     */
+    static String maskLiterals(String sql) {
+        if (sql == null) {
+            return null;
+        }
+        StringBuilder masked = new StringBuilder(sql.length());
+        boolean inLiteral = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (!inLiteral) {
+                masked.append(c);
+                inLiteral = c == '\'';
+            } else if (c == '\'') {
+                // 两个连续的引号是常量中转义的引号
+                if (i + 1 < sql.length() && sql.charAt(i + 1) == '\'') {
+                    i++;
+                } else {
+                    masked.append("…'");
+                    inLiteral = false;
+                }
+            }
+        }
+        return masked.toString();
+    }
+
+    /**
+     * 描述参数的形式而不是值：每个参数是数字还是文本，文本记录长度，如 "[num, text(5)]"
+     */
+    static String describeArgs(String[] args) {
+        if (args == null) {
+            return "[]";
+        }
+        StringBuilder shape = new StringBuilder("[");
+        for (int i = 0; i < args.length; i++) {
+            if (i > 0) {
+                shape.append(", ");
+            }
+            String arg = args[i];
+            if (arg == null) {
+                shape.append("null");
+            } else if (isNumber(arg)) {
+                shape.append("num");
+            } else {
+                shape.append("text(").append(arg.length()).append(')');
+            }
+        }
+        return shape.append(']').toString();
+    }
+
+    private static boolean isNumber(String arg) {
+        try {
+            Double.parseDouble(arg);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.example.android.notepad;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * 把时间戳格式化为显示用的文字，供笔记列表和各个编辑器共用。
+ *
+ * 格式化的结果按显示的最小单位缓存（日期和时间按分钟，只有日期的按本地时区的天）：同一单位
+ * 内的时间戳显示相同，所以滚动列表时重新绑定同一行、或者多条笔记在同一分钟内修改时，都直接
+ * 返回缓存的字符串，不再创建 Date 和格式化。
+ * 相对时间（“5 分钟前”）的文字是预先生成的。可以在多个线程中使用。
+ *
+ * 缓存按创建时的默认时区和语言生成，之后修改系统设置不会更新已缓存的结果。
+ */
+final class TimestampFormatter {
+
+    private static final long MINUTE_MILLIS = 60 * 1000L;
+    private static final long HOUR_MILLIS = 60 * MINUTE_MILLIS;
+    private static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+    // 缓存的大小，必须是 2 的幂；按分钟数或天数的低位直接映射
+    private static final int CACHE_SIZE = 256;
+
+    // 相对时间的文字，下标是分钟数或小时数
+    private static final String JUST_NOW = "刚刚";
+    private static final String[] MINUTES_AGO = new String[60];
+    private static final String[] HOURS_AGO = new String[24];
+
+    static {
+        for (int i = 1; i < MINUTES_AGO.length; i++) {
+            MINUTES_AGO[i] = i + " 分钟前";
+        }
+        for (int i = 1; i < HOURS_AGO.length; i++) {
+            HOURS_AGO[i] = i + " 小时前";
+        }
+    }
+
+    private static final TimestampFormatter DATE_TIME =
+            new TimestampFormatter("yyyy-MM-dd HH:mm", false);
+    private static final TimestampFormatter DATE = new TimestampFormatter("yyyy-MM-dd", true);
+
+    // 是否只显示日期，即缓存按天而不是按分钟
+    private final boolean mByDay;
+
+    // 以下成员只在持有 this 锁时访问
+    private final SimpleDateFormat mFormat;
+    private final TimeZone mTimeZone;
+    private final Date mDate = new Date();
+    private final long[] mCachedKeys = new long[CACHE_SIZE];
+    private final String[] mCachedText = new String[CACHE_SIZE];
+
+    private TimestampFormatter(String pattern, boolean byDay) {
+        mFormat = new SimpleDateFormat(pattern, Locale.getDefault());
+        mTimeZone = mFormat.getTimeZone();
+        mByDay = byDay;
+    }
+
+    /**
+     * 返回显示日期和时间（精确到分钟）的格式化器
+     */
+    static TimestampFormatter getDateTimeInstance() {
+        return DATE_TIME;
+    }
+
+    /**
+     * 返回只显示日期的格式化器
+     */
+    static TimestampFormatter getDateInstance() {
+        return DATE;
+    }
+
+    /**
+     * 格式化一个时间戳
+     * @param timestamp 自 1970 年以来的毫秒数
+     */
+    synchronized String format(long timestamp) {
+        // 本地时区的天数，或者分钟数
+        long key = mByDay
+                ? floorDiv(timestamp + mTimeZone.getOffset(timestamp), DAY_MILLIS)
+                : floorDiv(timestamp, MINUTE_MILLIS);
+        int slot = (int) (key & (CACHE_SIZE - 1));
+        String text = mCachedText[slot];
+        if (text == null || mCachedKeys[slot] != key) {
+            mDate.setTime(timestamp);
+            text = mFormat.format(mDate);
+            mCachedKeys[slot] = key;
+            mCachedText[slot] = text;
+        }
+        return text;
+    }
+
+    // 向下取整的除法（1970 年以前的时间戳是负数）
+    private static long floorDiv(long value, long divisor) {
+        long quotient = value / divisor;
+        return value % divisor < 0 ? quotient - 1 : quotient;
+    }
+
+    /**
+     * 格式化一个时间戳：一天之内的时间显示为相对时间，例如“5 分钟前”，其他时间与
+     * {@link #format(long)} 相同。
+     * @param timestamp 自 1970 年以来的毫秒数
+     * @param now 当前时间
+     */
+    String formatRelative(long timestamp, long now) {
+        long elapsed = now - timestamp;
+        if (elapsed < 0 || elapsed >= DAY_MILLIS) {
+            return format(timestamp);
+        }
+        if (elapsed < MINUTE_MILLIS) {
+            return JUST_NOW;
+        }
+        if (elapsed < HOUR_MILLIS) {
+            return MINUTES_AGO[(int) (elapsed / MINUTE_MILLIS)];
+        }
+        return HOURS_AGO[(int) (elapsed / HOUR_MILLIS)];
+    }
+}
@@ -17,7 +17,10 @@
 package com.example.android.notepad;
 
 import android.app.Activity;
+import android.app.LoaderManager;
 import android.content.ContentValues;
+import android.content.CursorLoader;
+import android.content.Loader;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
@@ -28,12 +31,10 @@ import android.widget.EditText;
  * This Activity allows the user to edit a note's title. It displays a floating window
  * containing an EditText.
  *
- * NOTE: Notice that the provider operations in this Activity are taking place on the UI thread.
- * This is not a good practice. It is only done here to make the code more readable. A real
- * application should use the {@link android.content.AsyncQueryHandler}
- * or {@link android.os.AsyncTask} object to perform operations asynchronously on a separate thread.
+ * The note is read through a {@link CursorLoader}, so the query runs on a background thread.
+ * NOTE: Notice that the update in this Activity is still taking place on the UI thread.
  */
-public class TitleEditor extends Activity {
+public class TitleEditor extends Activity implements LoaderManager.LoaderCallbacks<Cursor> {
 
     /**
      * This is a special intent action that means "edit the title of a note".
@@ -49,6 +50,9 @@ public class TitleEditor extends Activity {
     // The position of the title column in a Cursor returned by the provider.
     private static final int COLUMN_INDEX_TITLE = 1;
 
+    // The ID of the loader that reads the note
+    private static final int NOTE_LOADER = 0;
+
     // A Cursor object that will contain the results of querying the provider for a note.
     private Cursor mCursor;
 
@@ -58,6 +62,9 @@ public class TitleEditor extends Activity {
     // A URI object for the note whose title is being edited.
     private Uri mUri;
 
+    // The title as it is in the provider: as loaded, or as last saved. Null until loaded.
+    private String mSavedTitle;
+
     /**
      * This method is called by Android when the Activity is first started. From the incoming
      * Intent, it determines what kind of editing is desired, and then does it.
@@ -73,50 +80,53 @@ public class TitleEditor extends Activity {
         // title we need to edit.
         mUri = getIntent().getData();
 
+        // Gets the View ID for the EditText box
+        mText = (EditText) this.findViewById(R.id.title);
+
         /*
-         * Using the URI passed in with the triggering Intent, gets the note.
-         *
-         * Note: This is being done on the UI thread. It will block the thread until the query
-         * completes. In a sample app, going against a simple provider based on a local database,
-         * the block will be momentary, but in a real app you should use
-         * android.content.AsyncQueryHandler or android.os.AsyncTask.
+         * Using the URI passed in with the triggering Intent, gets the note. The query runs on
+         * a background thread and the Cursor is delivered to onLoadFinished().
          */
+        getLoaderManager().initLoader(NOTE_LOADER, null, this);
+    }
 
-        mCursor = managedQuery(
+    @Override
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        return new CursorLoader(
+            this,
             mUri,        // The URI for the note that is to be retrieved.
             PROJECTION,  // The columns to retrieve
             null,        // No selection criteria are used, so no where columns are needed.
             null,        // No where columns are used, so no where values are needed.
             null         // No sort order is needed.
         );
-
-        // Gets the View ID for the EditText box
-        mText = (EditText) this.findViewById(R.id.title);
     }
 
     /**
-     * This method is called when the Activity is about to come to the foreground. This happens
-     * when the Activity comes to the top of the task stack, OR when it is first starting.
-     *
-     * Displays the current title for the selected note.
+     * This method is called when the loader delivers the note. The loader delivers it again
+     * after each save, so only the first delivery displays the current title; later ones would
+     * overwrite what the user is typing.
      */
     @Override
-    protected void onResume() {
-        super.onResume();
+    public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+        boolean firstLoad = mCursor == null;
+        mCursor = cursor;
 
-        // Verifies that the query made in onCreate() actually worked. If it worked, then the
-        // Cursor object is not null. If it is *empty*, then mCursor.getCount() == 0.
-        if (mCursor != null) {
-
-            // The Cursor was just retrieved, so its index is set to one record *before* the first
-            // record retrieved. This moves it to the first record.
-            mCursor.moveToFirst();
+        // The Cursor was just retrieved, so its index is set to one record *before* the first
+        // record retrieved. This moves it to the first record.
+        if (firstLoad && mCursor != null && mCursor.moveToFirst()) {
 
             // Displays the current title text in the EditText object.
             mText.setText(mCursor.getString(COLUMN_INDEX_TITLE));
+            mSavedTitle = mText.getText().toString();
         }
     }
 
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+        mCursor = null;
+    }
+
     /**
      * This method is called when the Activity loses focus.
      *
@@ -126,22 +136,24 @@ public class TitleEditor extends Activity {
      * to it to complete their work. The act of going away should save everything and leave the
      * Activity in a state where Android can destroy it if necessary.
      *
-     * Updates the note with the text currently in the text box.
+     * Updates the note with the text currently in the text box, if it differs from the saved
+     * title. An unchanged note isn't written, so it keeps its modification date and its place
+     * in the notes list, and observers of the notes aren't disturbed.
      */
     @Override
     protected void onPause() {
         super.onPause();
 
-        // Verifies that the query made in onCreate() actually worked. If it worked, then the
-        // Cursor object is not null. If it is *empty*, then mCursor.getCount() == 0.
-
-        if (mCursor != null) {
+        // Verifies that the note has been loaded. Until it has, the text box doesn't hold the
+        // title, so there is nothing to save.
+        String title = mText.getText().toString();
+        if (mCursor != null && !title.equals(mSavedTitle)) {
 
             // Creates a values map for updating the provider.
             ContentValues values = new ContentValues();
 
             // In the values map, sets the title to the current contents of the edit box.
-            values.put(NotePad.Notes.COLUMN_NAME_TITLE, mText.getText().toString());
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
 
             /*
              * Updates the provider with the note's new title.
@@ -157,7 +169,7 @@ public class TitleEditor extends Activity {
                 null,    // No selection criteria is used, so no "where" columns are needed.
                 null     // No "where" columns are used, so no "where" values are needed.
             );
-
+            mSavedTitle = title;
         }
     }
 
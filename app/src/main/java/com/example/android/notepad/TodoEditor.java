@@ -2,7 +2,10 @@ package com.example.android.notepad;
 
 import android.app.Activity;
 import android.app.DatePickerDialog;
+import android.app.LoaderManager;
 import android.content.ContentValues;
+import android.content.CursorLoader;
+import android.content.Loader;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
@@ -18,11 +21,12 @@ import android.widget.RadioGroup;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.text.SimpleDateFormat;
 import java.util.Calendar;
-import java.util.Locale;
 
-public class TodoEditor extends Activity {
+public class TodoEditor extends Activity implements LoaderManager.LoaderCallbacks<Cursor> {
+
+    // 读取待办事项的 Loader ID
+    private static final int TODO_LOADER = 0;
 
     private static final String[] PROJECTION = new String[] {
             NotePad.Notes._ID,
@@ -45,7 +49,10 @@ public class TodoEditor extends Activity {
     private TextView mDueDateText;
 
     private Calendar mDueDate;
-    private SimpleDateFormat mDateFormatter;
+
+    // 数据库中的待办内容（加载时或上次保存时），用于判断是否有修改；加载前为 null
+    private ContentValues mSavedValues;
+    private final TimestampFormatter mDateFormatter = TimestampFormatter.getDateInstance();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -53,7 +60,6 @@ public class TodoEditor extends Activity {
         setContentView(R.layout.todo_editor);
 
         mUri = getIntent().getData();
-        mDateFormatter = new SimpleDateFormat("yyyy-MM-dd", Locale.getDefault());
 
         initializeViews();
         loadTodoData();
@@ -75,10 +81,25 @@ public class TodoEditor extends Activity {
         });
     }
 
+    /**
+     * 在后台线程加载待办数据，结果交给 onLoadFinished
+     */
     private void loadTodoData() {
-        mCursor = managedQuery(mUri, PROJECTION, null, null, null);
+        getLoaderManager().initLoader(TODO_LOADER, null, this);
+    }
+
+    @Override
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        return new CursorLoader(this, mUri, PROJECTION, null, null, null);
+    }
+
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+        // 保存后 Loader 会重新加载，只在首次加载时填充界面，避免覆盖正在编辑的内容
+        boolean firstLoad = mCursor == null;
+        mCursor = cursor;
 
-        if (mCursor != null && mCursor.moveToFirst()) {
+        if (firstLoad && mCursor != null && mCursor.moveToFirst()) {
             mTitleText.setText(mCursor.getString(mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
             mDescriptionText.setText(mCursor.getString(mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE)));
 
@@ -105,11 +126,22 @@ public class TodoEditor extends Activity {
             if (dueDate > 0) {
                 mDueDate = Calendar.getInstance();
                 mDueDate.setTimeInMillis(dueDate);
-                mDueDateText.setText(mDateFormatter.format(mDueDate.getTime()));
+                mDueDateText.setText(mDateFormatter.format(mDueDate.getTimeInMillis()));
             }
+
+            // 界面显示的就是数据库中的内容
+            mSavedValues = getTodoValues();
+
+            // 现在可以保存了
+            invalidateOptionsMenu();
         }
     }
 
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+        mCursor = null;
+    }
+
     private void showDatePicker() {
         Calendar currentDate = mDueDate != null ? mDueDate : Calendar.getInstance();
 
@@ -121,7 +153,7 @@ public class TodoEditor extends Activity {
                             mDueDate = Calendar.getInstance();
                         }
                         mDueDate.set(year, month, dayOfMonth);
-                        mDueDateText.setText(mDateFormatter.format(mDueDate.getTime()));
+                        mDueDateText.setText(mDateFormatter.format(mDueDate.getTimeInMillis()));
                     }
                 },
                 currentDate.get(Calendar.YEAR),
@@ -138,6 +170,16 @@ public class TodoEditor extends Activity {
         return true;
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        // 加载完成之前界面上还不是待办的内容，不能保存
+        MenuItem save = menu.findItem(R.id.menu_save_todo);
+        if (save != null) {
+            save.setEnabled(mSavedValues != null);
+        }
+        return super.onPrepareOptionsMenu(menu);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         // 使用 if-else 语句代替 switch，因为资源ID在编译时不是常量
@@ -155,13 +197,35 @@ public class TodoEditor extends Activity {
         }
     }
 
+    /**
+     * 保存待办事项。内容没有修改时不写入数据库，这样修改时间和在列表中的位置都不会变，
+     * 也不会通知列表重新查询。首次加载完成之前界面上还是空白或默认值，不保存，
+     * 以免覆盖数据库中的内容。
+     */
     private void saveTodo() {
+        if (mCursor == null || mSavedValues == null) {
+            return;
+        }
+        ContentValues values = getTodoValues();
+        if (values.equals(mSavedValues)) {
+            return;
+        }
+
+        // 修改时间由提供者更新
+        getContentResolver().update(mUri, values, null, null);
+        mSavedValues = values;
+        Toast.makeText(this, "待办事项已保存", Toast.LENGTH_SHORT).show();
+    }
+
+    /**
+     * 返回界面上的待办内容
+     */
+    private ContentValues getTodoValues() {
         ContentValues values = new ContentValues();
         values.put(NotePad.Notes.COLUMN_NAME_TITLE, mTitleText.getText().toString());
         values.put(NotePad.Notes.COLUMN_NAME_NOTE, mDescriptionText.getText().toString());
         values.put(NotePad.Notes.COLUMN_NAME_IS_TODO, 1); // 标记为待办事项
         values.put(NotePad.Notes.COLUMN_NAME_IS_COMPLETED, mCompletedCheckbox.isChecked() ? 1 : 0);
-        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
 
         // 设置优先级
         int priority = NotePad.Notes.PRIORITY_MEDIUM;
@@ -179,12 +243,13 @@ public class TodoEditor extends Activity {
         } else {
             values.putNull(NotePad.Notes.COLUMN_NAME_DUE_DATE);
         }
-
-        getContentResolver().update(mUri, values, null, null);
-        Toast.makeText(this, "待办事项已保存", Toast.LENGTH_SHORT).show();
+        return values;
     }
 
     private void deleteTodo() {
+        // 先停止加载，这样 onPause 不会再保存已删除的待办
+        getLoaderManager().destroyLoader(TODO_LOADER);
+        mCursor = null;
         getContentResolver().delete(mUri, null, null);
         Toast.makeText(this, "待办事项已删除", Toast.LENGTH_SHORT).show();
     }
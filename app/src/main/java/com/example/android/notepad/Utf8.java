@@ -0,0 +1,155 @@
+package com.example.android.notepad;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * UTF-8 编码相关的工具方法。
+ */
+final class Utf8 {
+
+    private Utf8() {
+    }
+
+    /**
+     * 返回文本按 UTF-8 编码后的字节数，不实际编码；null 为 0。
+     * 不成对的代理字符按 3 个字节计算。
+     */
+    static long length(CharSequence text) {
+        if (text == null) {
+            return 0;
+        }
+        long length = 0;
+        int count = text.length();
+        for (int i = 0; i < count; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < count
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * 把文本按 UTF-8 编码写入输出流，不生成中间的 String 或 byte[]：字符直接编码到一个重复使用的
+     * 缓冲区中，缓冲区满时写出。跨两次 write() 的代理对也能正确编码；不成对的代理字符写为 U+FFFD，
+     * 与 {@link Utf8#length(CharSequence)} 的计算一致。不是线程安全的。
+     */
+    static final class Encoder {
+        private final OutputStream mOut;
+        private final byte[] mBuffer;
+        private int mCount;
+        // 上一次 write() 末尾的高代理字符，等待与下一个字符组成代理对；没有时为 0
+        private char mPendingHighSurrogate;
+        private long mBytesWritten;
+
+        /**
+         * @param bufferSize 缓冲区的大小（字节），至少为 4
+         */
+        Encoder(OutputStream out, int bufferSize) {
+            mOut = out;
+            mBuffer = new byte[Math.max(bufferSize, 4)];
+        }
+
+        /**
+         * 写入文本；null 不写入任何内容
+         */
+        void write(CharSequence text) throws IOException {
+            if (text == null) {
+                return;
+            }
+            int count = text.length();
+            for (int i = 0; i < count; i++) {
+                write(text.charAt(i));
+            }
+        }
+
+        /**
+         * 写入一个字符
+         */
+        void write(char c) throws IOException {
+            if (mCount + 4 > mBuffer.length) {
+                drain();
+            }
+            if (mPendingHighSurrogate != 0) {
+                char high = mPendingHighSurrogate;
+                mPendingHighSurrogate = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int codePoint = Character.toCodePoint(high, c);
+                    put(0xf0 | (codePoint >> 18));
+                    put(0x80 | ((codePoint >> 12) & 0x3f));
+                    put(0x80 | ((codePoint >> 6) & 0x3f));
+                    put(0x80 | (codePoint & 0x3f));
+                    return;
+                }
+                putReplacement();
+                if (mCount + 4 > mBuffer.length) {
+                    drain();
+                }
+            }
+            if (c < 0x80) {
+                put(c);
+            } else if (c < 0x800) {
+                put(0xc0 | (c >> 6));
+                put(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c)) {
+                mPendingHighSurrogate = c;
+            } else if (Character.isLowSurrogate(c)) {
+                putReplacement();
+            } else {
+                put(0xe0 | (c >> 12));
+                put(0x80 | ((c >> 6) & 0x3f));
+                put(0x80 | (c & 0x3f));
+            }
+        }
+
+        /**
+         * 写出缓冲区中的内容并刷新输出流。末尾不成对的高代理字符写为 U+FFFD
+         */
+        void flush() throws IOException {
+            if (mPendingHighSurrogate != 0) {
+                mPendingHighSurrogate = 0;
+                if (mCount + 3 > mBuffer.length) {
+                    drain();
+                }
+                putReplacement();
+            }
+            drain();
+            mOut.flush();
+        }
+
+        /**
+         * 返回已编码的字节数，包括还在缓冲区中的
+         */
+        long getBytesWritten() {
+            return mBytesWritten + mCount;
+        }
+
+        private void put(int b) {
+            mBuffer[mCount++] = (byte) b;
+        }
+
+        // U+FFFD
+        private void putReplacement() {
+            put(0xef);
+            put(0xbf);
+            put(0xbd);
+        }
+
+        private void drain() throws IOException {
+            if (mCount > 0) {
+                mOut.write(mBuffer, 0, mCount);
+                mBytesWritten += mCount;
+                mCount = 0;
+            }
+        }
+    }
+}